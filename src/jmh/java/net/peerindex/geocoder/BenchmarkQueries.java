@@ -0,0 +1,37 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The checked-in query corpus: a mix of ambiguous names, multi-token and non-Latin queries and junk that doesn't
+ * resolve to anything, roughly in the proportions seen in social media profiles
+ */
+enum BenchmarkQueries {
+    ;
+
+    static String[] load() {
+        try {
+            List<String> lines = Resources.readLines(Resources.getResource(BenchmarkQueries.class, "benchmark.queries.txt"), Charsets.UTF_8);
+            return lines.toArray(new String[lines.size()]);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * The bundled geocoder, or the snapshot given with -Dgeocoder.snapshot
+     */
+    static Geocoder geocoder() throws IOException {
+        String snapshot = System.getProperty("geocoder.snapshot");
+        Geocoder.Builder builder = Geocoder.builder();
+        if (snapshot != null) {
+            builder.snapshot(new File(snapshot));
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,116 @@
+package net.peerindex.geocoder;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stages of {@link Geocoder#resolve(String)} on their own and end to end. Each invocation processes the whole
+ * query corpus, so scores are per corpus pass
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GeocoderBenchmark {
+    private Geocoder geocoder;
+    private GeoIndex index;
+    private String[] queries;
+    private int[][] tokens;
+    private int[][] candidates;
+    private double[] coordinates;
+
+    @State(Scope.Thread)
+    public static class Scratch {
+        final TokenBuffer buffer = new TokenBuffer();
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        geocoder = BenchmarkQueries.geocoder();
+        index = geocoder.index();
+        queries = BenchmarkQueries.load();
+        tokens = new int[queries.length][];
+        candidates = new int[queries.length][];
+        Tokenizer tokenizer = new Tokenizer();
+        TokenBuffer buffer = new TokenBuffer();
+        for (int i = 0; i < queries.length; i++) {
+            tokenizer.tokenize(queries[i], buffer);
+            tokens[i] = Arrays.copyOf(index.tokens.ids(buffer), buffer.size());
+            candidates[i] = geocoder.candidates(tokens[i], tokens[i].length);
+        }
+        // Random points on land and sea, as many as there are queries
+        Random random = new Random(0);
+        coordinates = new double[queries.length * 2];
+        for (int i = 0; i < queries.length; i++) {
+            coordinates[i * 2] = Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1));
+            coordinates[i * 2 + 1] = random.nextDouble() * 360 - 180;
+        }
+    }
+
+    @Benchmark
+    public void tokenize(Scratch scratch, Blackhole bh) {
+        Tokenizer tokenizer = new Tokenizer();
+        for (String query : queries) {
+            tokenizer.tokenize(query, scratch.buffer);
+            bh.consume(index.tokens.ids(scratch.buffer));
+        }
+    }
+
+    @Benchmark
+    public void tokenizeToList(Blackhole bh) {
+        Tokenizer tokenizer = new Tokenizer();
+        for (String query : queries) {
+            bh.consume(tokenizer.tokenize(query));
+        }
+    }
+
+    @Benchmark
+    public void match(Blackhole bh) {
+        for (int[] query : tokens) {
+            bh.consume(geocoder.candidates(query, query.length));
+        }
+    }
+
+    @Benchmark
+    public void disambiguate(Blackhole bh) {
+        for (int i = 0; i < tokens.length; i++) {
+            bh.consume(geocoder.disambiguate(tokens[i], tokens[i].length, candidates[i]));
+        }
+    }
+
+    @Benchmark
+    public void resolve(Blackhole bh) {
+        for (String query : queries) {
+            bh.consume(geocoder.resolve(query));
+        }
+    }
+
+    @Benchmark
+    public void resolveTop5(Blackhole bh) {
+        for (String query : queries) {
+            bh.consume(geocoder.resolveTopK(query, 5));
+        }
+    }
+
+    @Benchmark
+    public void reverse(Blackhole bh) {
+        for (int i = 0; i < coordinates.length; i += 2) {
+            bh.consume(geocoder.reverse(coordinates[i], coordinates[i + 1]));
+        }
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void resolveMultiThreaded(Blackhole bh) {
+        for (String query : queries) {
+            bh.consume(geocoder.resolve(query));
+        }
+    }
+}
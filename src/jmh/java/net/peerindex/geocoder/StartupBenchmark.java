@@ -0,0 +1,42 @@
+package net.peerindex.geocoder;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of creating a {@link Geocoder}: building the bundled index from the gazetteer, and opening a snapshot of it
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+    private File snapshot;
+
+    @Setup
+    public void setUp() throws IOException {
+        snapshot = File.createTempFile("geocoder", ".snapshot");
+        snapshot.deleteOnExit();
+        new Geocoder().writeSnapshot(snapshot);
+    }
+
+    @TearDown
+    public void tearDown() {
+        snapshot.delete();
+    }
+
+    @Benchmark
+    public Geocoder build() {
+        return new Geocoder();
+    }
+
+    @Benchmark
+    public Geocoder openSnapshot() throws IOException {
+        return new Geocoder(snapshot);
+    }
+}
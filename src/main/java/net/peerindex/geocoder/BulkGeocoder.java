@@ -0,0 +1,297 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Geocodes a stream of location strings, one per line, e.g. for backfills. Lines are read in chunks that are
+ * resolved by a pool of workers sharing one {@link Geocoder}, and the results are written in input order, one line
+ * per input line.
+ * <p/>
+ * Finished chunks wait in a bounded reorder buffer until all chunks before them are written, and reading pauses
+ * while the buffer is full, so memory use doesn't depend on the size of the input.
+ */
+public class BulkGeocoder {
+    public enum OutputFormat {
+        /**
+         * The location string, geonameId, default name, feature code, country code, lat and lng, tab separated.
+         * All but the location string are empty if it couldn't be resolved
+         */
+        TSV,
+        /**
+         * One JSON object per line with the location string as "query" and the location (or null) as "location"
+         */
+        NDJSON
+    }
+
+    private enum InputFormat {
+        LINES, TSV, NDJSON
+    }
+
+    private static final Future<Chunk> END = Futures.<Chunk>immediateFuture(null);
+
+    private final Geocoder geocoder;
+    private InputFormat inputFormat = InputFormat.LINES;
+    private int column;
+    private String field;
+    private OutputFormat outputFormat = OutputFormat.NDJSON;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = 1000;
+
+    public BulkGeocoder(Geocoder geocoder) {
+        this.geocoder = Preconditions.checkNotNull(geocoder);
+    }
+
+    /**
+     * The whole line is the location. This is the default
+     */
+    public BulkGeocoder lines() {
+        this.inputFormat = InputFormat.LINES;
+        return this;
+    }
+
+    /**
+     * Lines are tab separated; the location is in the column with the given (0 based) index
+     */
+    public BulkGeocoder tsv(int column) {
+        Preconditions.checkArgument(column >= 0, "Negative column: %s", column);
+        this.inputFormat = InputFormat.TSV;
+        this.column = column;
+        return this;
+    }
+
+    /**
+     * Lines are JSON objects; the location is the top level string field with the given name
+     */
+    public BulkGeocoder ndjson(String field) {
+        this.inputFormat = InputFormat.NDJSON;
+        this.field = Preconditions.checkNotNull(field);
+        return this;
+    }
+
+    public BulkGeocoder output(OutputFormat outputFormat) {
+        this.outputFormat = Preconditions.checkNotNull(outputFormat);
+        return this;
+    }
+
+    public BulkGeocoder threads(int threads) {
+        Preconditions.checkArgument(threads > 0, "Not a positive number of threads: %s", threads);
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param chunkSize Number of lines that are handed to a worker at once
+     */
+    public BulkGeocoder chunkSize(int chunkSize) {
+        Preconditions.checkArgument(chunkSize > 0, "Not a positive chunk size: %s", chunkSize);
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Geocodes every line of the input and writes the results to the output. Neither is closed
+     * @return The number of lines processed
+     */
+    public long run(final BufferedReader in, Writer out) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("bulk-geocoder-%d").build());
+        // Chunks in input order; the writer waits for the oldest one. Bounds the number of chunks in memory
+        final BlockingQueue<Future<Chunk>> pending = new ArrayBlockingQueue<>(threads * 4);
+        Thread reader = new Thread(new Reader(in, workers, pending), "bulk-geocoder-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long count = 0;
+        try {
+            while (true) {
+                Future<Chunk> next = pending.take();
+                if (next == END) {
+                    break;
+                }
+                Chunk chunk = next.get();
+                out.write(chunk.output.toString());
+                count += chunk.lines.size();
+            }
+            out.flush();
+            return count;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        } finally {
+            reader.interrupt();
+            workers.shutdownNow();
+        }
+    }
+
+    private String query(String line) {
+        switch (inputFormat) {
+            case TSV:
+                int start = 0;
+                for (int i = 0; i < column; i++) {
+                    start = line.indexOf('\t', start) + 1;
+                    if (start == 0) {
+                        return null;
+                    }
+                }
+                int end = line.indexOf('\t', start);
+                return end < 0 ? line.substring(start) : line.substring(start, end);
+            case NDJSON:
+                return LocationJson.stringField(line, field);
+            default:
+                return line;
+        }
+    }
+
+    private void write(String query, Location location, StringBuilder out) {
+        if (outputFormat == OutputFormat.NDJSON) {
+            LocationJson.appendResult(query, location, out).append('\n');
+            return;
+        }
+        appendTsv(query, out);
+        if (location == null) {
+            out.append("\t\t\t\t\t\t\n");
+            return;
+        }
+        out.append('\t').append(location.getGeonameId()).append('\t');
+        appendTsv(location.getDefaultName(), out).append('\t');
+        appendTsv(location.getFeatureCode(), out).append('\t');
+        appendTsv(location.getCodes().get(FeatureCodeCategory.PCL), out).append('\t');
+        out.append(location.getLat()).append('\t').append(location.getLng()).append('\n');
+    }
+
+    private static StringBuilder appendTsv(String value, StringBuilder out) {
+        if (value == null) {
+            return out;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            // Would break the row
+            out.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+        }
+        return out;
+    }
+
+
+    private class Chunk implements Callable<Chunk> {
+        private final List<String> lines;
+        private final StringBuilder output = new StringBuilder();
+
+        Chunk(List<String> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public Chunk call() {
+            for (String line : lines) {
+                String query = query(line);
+                write(query, query == null ? null : geocoder.resolve(query), output);
+            }
+            return this;
+        }
+    }
+
+    private class Reader implements Runnable {
+        private final BufferedReader in;
+        private final ExecutorService workers;
+        private final BlockingQueue<Future<Chunk>> pending;
+
+        Reader(BufferedReader in, ExecutorService workers, BlockingQueue<Future<Chunk>> pending) {
+            this.in = in;
+            this.workers = workers;
+            this.pending = pending;
+        }
+
+        @Override
+        public void run() {
+            try {
+                try {
+                    List<String> lines = new ArrayList<>(chunkSize);
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        lines.add(line);
+                        if (lines.size() == chunkSize) {
+                            pending.put(workers.submit(new Chunk(lines)));
+                            lines = new ArrayList<>(chunkSize);
+                        }
+                    }
+                    if (!lines.isEmpty()) {
+                        pending.put(workers.submit(new Chunk(lines)));
+                    }
+                    pending.put(END);
+                } catch (IOException | RuntimeException e) {
+                    // Hand it to the writer
+                    pending.put(Futures.<Chunk>immediateFailedFuture(e));
+                }
+            } catch (InterruptedException e) {
+                // The writer gave up
+            }
+        }
+    }
+
+    /**
+     * Usage: {@code BulkGeocoder [--snapshot FILE] [--cache SIZE] [--threads N] [--input lines|tsv:COLUMN|ndjson:FIELD]
+     * [--output ndjson|tsv] [INPUT [OUTPUT]]}. Reads stdin and writes stdout if no files are given. All files are
+     * UTF-8
+     */
+    public static void main(String[] args) throws Exception {
+        Geocoder.Builder geocoder = Geocoder.builder();
+        String input = null;
+        String output = null;
+        String inputFormat = "lines";
+        OutputFormat outputFormat = OutputFormat.NDJSON;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--snapshot":
+                    geocoder.snapshot(new File(args[++i]));
+                    break;
+                case "--cache":
+                    geocoder.cacheSize(Integer.parseInt(args[++i]));
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--input":
+                    inputFormat = args[++i];
+                    break;
+                case "--output":
+                    outputFormat = OutputFormat.valueOf(args[++i].toUpperCase());
+                    break;
+                default:
+                    if (input == null) {
+                        input = args[i];
+                    } else {
+                        output = args[i];
+                    }
+            }
+        }
+
+        BulkGeocoder bulk = new BulkGeocoder(geocoder.build()).threads(threads).output(outputFormat);
+        if (inputFormat.startsWith("tsv:")) {
+            bulk.tsv(Integer.parseInt(inputFormat.substring("tsv:".length())));
+        } else if (inputFormat.startsWith("ndjson:")) {
+            bulk.ndjson(inputFormat.substring("ndjson:".length()));
+        } else if (!inputFormat.equals("lines")) {
+            throw new IllegalArgumentException("Unknown input format: " + inputFormat);
+        }
+
+        try (
+                BufferedReader in = new BufferedReader(new InputStreamReader(input == null ? System.in : new FileInputStream(input), Charsets.UTF_8), 1 << 16);
+                Writer out = new BufferedWriter(new OutputStreamWriter(output == null ? System.out : new FileOutputStream(output), Charsets.UTF_8), 1 << 16)
+        ) {
+            bulk.run(in, out);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package net.peerindex.geocoder;
+
+/**
+ * A location a query could refer to, as ranked by {@link Geocoder#resolveTopK(String, int)}, or a place named in a
+ * text, as found by {@link Geocoder#extractAll(String)}
+ */
+public class Candidate {
+    private final Location location;
+    private final double weight;
+    private final boolean consistent;
+    private final int tokenStart;
+    private final int tokenEnd;
+
+    Candidate(Location location, double weight, boolean consistent, int tokenStart, int tokenEnd) {
+        this.location = location;
+        this.weight = weight;
+        this.consistent = consistent;
+        this.tokenStart = tokenStart;
+        this.tokenEnd = tokenEnd;
+    }
+
+    public Location getLocation() {
+        return location;
+    }
+
+    /**
+     * @return Population share of the location, adjusted for online activity. Candidates are ranked by this
+     */
+    public double getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return Whether every other place named in the query contains this location (e.g. "London" in "London, UK").
+     * Consistent candidates are ranked before inconsistent ones
+     */
+    public boolean isConsistent() {
+        return consistent;
+    }
+
+    /**
+     * @return Index of the first token of the name this location was matched by, among the tokens (words, without
+     * punctuation) of the query
+     */
+    public int getTokenStart() {
+        return tokenStart;
+    }
+
+    /**
+     * @return Index after the last token of the name this location was matched by
+     */
+    public int getTokenEnd() {
+        return tokenEnd;
+    }
+
+    @Override
+    public String toString() {
+        return "Candidate{" +
+                "location=" + location +
+                ", weight=" + weight +
+                ", consistent=" + consistent +
+                ", tokens=[" + tokenStart + ", " + tokenEnd + ")" +
+                '}';
+    }
+}
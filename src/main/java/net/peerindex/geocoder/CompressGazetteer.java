@@ -2,7 +2,6 @@ package net.peerindex.geocoder;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.Files;
 
 import java.io.*;
 
@@ -18,15 +17,15 @@ class CompressGazetteer extends GazetteerParser<Void> {
     }
 
     @Override
-    protected boolean doProcessLine(String line, Location location) {
-        long threshold = populationTh.get(location.getFeatureCodeCategory());
+    protected boolean processRow(GazetteerRow row) {
+        long threshold = populationTh.get(row.category());
 
-        if(location.getPopulation() < threshold){
+        if(row.population() < threshold){
             // This location is too small to extractLocations
             return true;
         }
 
-        out.println(line);
+        out.println(row.line());
 
         return true;
     }
@@ -38,11 +37,12 @@ class CompressGazetteer extends GazetteerParser<Void> {
 
     public static void main(String[] args) throws Exception {
         try (
-                PrintWriter out = new PrintWriter("compressed.gazetteer.txt");
+                InputStream gazetteer = new FileInputStream(args[0]);
+                PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream("compressed.gazetteer.txt"), Charsets.UTF_8)));
                 BufferedReader threshold = new BufferedReader(new InputStreamReader(CompressGazetteer.class.getResourceAsStream("population.threshold.txt"), Charsets.UTF_8));
         ) {
             ImmutableMap<FeatureCodeCategory, Long> populationTh = Utils.readPopulationTh(threshold);
-            Files.readLines(new File(args[0]), Charsets.UTF_8, new CompressGazetteer(populationTh, out));
+            GazetteerReader.read(gazetteer, new CompressGazetteer(populationTh, out));
         }
     }
 
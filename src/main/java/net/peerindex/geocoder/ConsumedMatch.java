@@ -1,15 +1,14 @@
 package net.peerindex.geocoder;
 
-import java.util.Set;
-
 /**
  * @author Enno Shioji (eshioji@gmail.com)
  */
 class ConsumedMatch {
     final Integer consumedUpto;
-    final Set<Location> match;
+    // The matched key (see TokenTrie)
+    final int match;
 
-    ConsumedMatch(Integer consumedUpto, Set<Location> match) {
+    ConsumedMatch(Integer consumedUpto, int match) {
         this.consumedUpto = consumedUpto;
         this.match = match;
     }
@@ -10,23 +10,38 @@ import java.util.Set;
 */
 class ExtractLocations extends GazetteerParser<Set<Location>> {
     private final ImmutableMap<FeatureCodeCategory, Long> populationTh;
+    private final LocationFilter filter;
     private final Set<Location> ret = new HashSet<>();
+    // Countries rejected by the filter, which are still needed to calibrate weights
+    private final Set<Location> otherCountries = new HashSet<>();
 
     ExtractLocations(ImmutableMap<FeatureCodeCategory, Long> populationTh) {
+        this(populationTh, LocationFilter.ALL);
+    }
+
+    ExtractLocations(ImmutableMap<FeatureCodeCategory, Long> populationTh, LocationFilter filter) {
         this.populationTh = populationTh;
+        this.filter = filter;
     }
 
 
     @Override
-    protected boolean doProcessLine(String line, Location location) {
-        long threshold = populationTh.get(location.getFeatureCodeCategory());
+    protected boolean processRow(GazetteerRow row) {
+        long threshold = populationTh.get(row.category());
 
-        if(location.getPopulation() < threshold){
+        if(row.population() < threshold){
             // This location is too small to extractLocations
             return true;
         }
 
-        ret.add(location);
+        if (!filter.accepts(row)) {
+            if (row.category() == FeatureCodeCategory.PCL) {
+                otherCountries.add(row.toLocation());
+            }
+            return true;
+        }
+
+        ret.add(row.toLocation());
         return true;
 
     }
@@ -35,4 +50,11 @@ class ExtractLocations extends GazetteerParser<Set<Location>> {
     public Set<Location> getResult() {
         return ret;
     }
+
+    /**
+     * @return The countries that passed the population threshold but not the filter
+     */
+    Set<Location> getOtherCountries() {
+        return otherCountries;
+    }
 }
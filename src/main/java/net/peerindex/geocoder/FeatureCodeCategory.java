@@ -27,6 +27,10 @@ public enum FeatureCodeCategory {
         this.featureCodes = featureCodes;
     }
 
+    Set<String> featureCodes() {
+        return featureCodes;
+    }
+
     /**
      * Translate Geonames feature code to our internal feature code category
      * @param geonamesFeatureCode
@@ -0,0 +1,63 @@
+package net.peerindex.geocoder;
+
+/**
+ * Approximate access frequency of hashed keys (a count-min sketch with 4 rows of saturating 4 bit counts). All
+ * counts are halved once the number of recorded accesses reaches a multiple of the capacity, so the frequencies
+ * reflect recent history rather than all time. Not thread-safe.
+ */
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final byte[] counts;
+    private final int width;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param capacity Number of keys whose frequency is of interest
+     */
+    FrequencySketch(int capacity) {
+        // A few counters per key in every row, so that collisions rarely inflate estimates much
+        width = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 3;
+        counts = new byte[DEPTH * width];
+        sampleSize = 10 * Math.max(capacity, 8);
+    }
+
+    void increment(int hash) {
+        for (int row = 0; row < DEPTH; row++) {
+            int i = index(hash, row);
+            if (counts[i] < MAX_COUNT) {
+                counts[i]++;
+            }
+        }
+        if (++additions == sampleSize) {
+            age();
+        }
+    }
+
+    /**
+     * @return Estimated number of recent increments of the hash, at most 15
+     */
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, counts[index(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private int index(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return row * width + (h & (width - 1));
+    }
+
+    private void age() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] >>>= 1;
+        }
+        additions /= 2;
+    }
+}
@@ -0,0 +1,282 @@
+package net.peerindex.geocoder;
+
+import java.util.Arrays;
+
+/**
+ * Finds the tokens of a {@link TokenDictionary} within a small edit distance of a misspelled token, with a table of
+ * deletions (as in SymSpell): every token is stored under the hashes of all strings obtained by deleting up to
+ * {@code maxEdits} characters from it. Two strings within edit distance k share such a deletion, so the candidates
+ * for a query are the tokens stored under the hashes of the deletions of the query. Candidates are confirmed with
+ * the actual (optimal string alignment) distance, which also sorts out hash collisions.
+ * <p/>
+ * Short tokens aren't corrected at all and mid-length tokens by at most one edit, as almost every short string is
+ * within two edits of some place name. The number of probes and of confirmed candidates is capped, so a query that
+ * doesn't resemble anything costs at most a few hundred binary searches.
+ */
+class FuzzyTokenIndex {
+    // Shortest token that is corrected, and shortest one that is corrected by two edits
+    static final int MIN_LENGTH = 4;
+    static final int MIN_LENGTH_TWO_EDITS = 8;
+    // Hard caps per query token
+    static final int MAX_PROBES = 256;
+    static final int MAX_VERIFIED = 512;
+    static final int MAX_CORRECTIONS = 8;
+
+    private final TokenDictionary tokens;
+    private final int maxEdits;
+    // (hash of a deletion << 32 | token id), sorted
+    private final long[] deletions;
+
+    FuzzyTokenIndex(TokenDictionary tokens, int maxEdits) {
+        if (maxEdits < 1 || maxEdits > 2) {
+            throw new IllegalArgumentException("Edit distance must be 1 or 2: " + maxEdits);
+        }
+        this.tokens = tokens;
+        this.maxEdits = maxEdits;
+
+        long[] deletions = new long[tokens.size() * 8];
+        int size = 0;
+        char[] scratch = new char[16];
+        for (int id = 0; id < tokens.size(); id++) {
+            String token = tokens.token(id);
+            int edits = Math.min(maxEdits, allowedEdits(token.length()));
+            if (edits == 0) {
+                continue;
+            }
+            int length = token.length();
+            int needed = 1 + length + (edits == 2 ? length * (length - 1) / 2 : 0);
+            if (size + needed > deletions.length) {
+                deletions = Arrays.copyOf(deletions, Math.max(size + needed, deletions.length * 2));
+            }
+            if (scratch.length < length) {
+                scratch = new char[length * 2];
+            }
+            token.getChars(0, length, scratch, 0);
+            deletions[size++] = entry(hash(scratch, length, -1, -1), id);
+            for (int i = 0; i < length; i++) {
+                deletions[size++] = entry(hash(scratch, length, i, -1), id);
+                for (int j = i + 1; j < length && edits == 2; j++) {
+                    deletions[size++] = entry(hash(scratch, length, i, j), id);
+                }
+            }
+        }
+        Arrays.sort(deletions, 0, size);
+        // The same deletion can come from different positions (e.g. either L of "HALL")
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (distinct == 0 || deletions[i] != deletions[distinct - 1]) {
+                deletions[distinct++] = deletions[i];
+            }
+        }
+        this.deletions = Arrays.copyOf(deletions, distinct);
+    }
+
+    /**
+     * Finds the known tokens within the allowed edit distance of {@code chars[offset] .. chars[offset + length - 1]}
+     * @param ids Receives the ids of up to {@link #MAX_CORRECTIONS} tokens, closest first (ties in id order)
+     * @param distances Receives their distances
+     * @return The number of corrections found
+     */
+    int corrections(char[] chars, int offset, int length, int[] ids, int[] distances) {
+        int edits = Math.min(maxEdits, allowedEdits(length));
+        if (edits == 0) {
+            return 0;
+        }
+        Search search = new Search(Arrays.copyOfRange(chars, offset, offset + length), edits, ids, distances);
+        search.probe(-1, -1);
+        for (int i = 0; i < length; i++) {
+            search.probe(i, -1);
+        }
+        for (int i = 0; i < length && edits == 2; i++) {
+            for (int j = i + 1; j < length; j++) {
+                search.probe(i, j);
+            }
+        }
+        return search.count;
+    }
+
+    static int allowedEdits(int length) {
+        return length < MIN_LENGTH ? 0 : length < MIN_LENGTH_TWO_EDITS ? 1 : 2;
+    }
+
+    /**
+     * Keeps the best {@link #MAX_CORRECTIONS} by distance, then id
+     */
+    private static int insert(int[] ids, int[] distances, int count, int id, int distance) {
+        int i = Math.min(count, MAX_CORRECTIONS - 1);
+        if (count == MAX_CORRECTIONS && !closer(distance, id, distances[i], ids[i])) {
+            return count;
+        }
+        for (; i > 0 && closer(distance, id, distances[i - 1], ids[i - 1]); i--) {
+            ids[i] = ids[i - 1];
+            distances[i] = distances[i - 1];
+        }
+        ids[i] = id;
+        distances[i] = distance;
+        return Math.min(count + 1, MAX_CORRECTIONS);
+    }
+
+    private static boolean closer(int distance, int id, int otherDistance, int otherId) {
+        return distance < otherDistance || (distance == otherDistance && id < otherId);
+    }
+
+    private int first(int hash) {
+        long key = (long) hash << 32;
+        int low = 0;
+        int high = deletions.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (deletions[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static long entry(int hash, int id) {
+        return ((long) hash << 32) | id;
+    }
+
+    /**
+     * @return Hash of the string without the characters at skip1 and skip2 (-1 for none). Kept non-negative, so that
+     * entries sort by hash
+     */
+    private static int hash(char[] chars, int length, int skip1, int skip2) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            if (i != skip1 && i != skip2) {
+                h = 31 * h + chars[i];
+            }
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Optimal string alignment distance (Levenshtein plus transpositions of adjacent characters)
+     * @return The distance, or limit + 1 if it is greater than the limit
+     */
+    static int distance(char[] a, String b, int limit) {
+        int n = a.length;
+        int m = b.length();
+        if (Math.abs(n - m) > limit) {
+            return limit + 1;
+        }
+        int[] previous2 = new int[m + 1];
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= n; i++) {
+            current[0] = i;
+            for (int j = 1; j <= m; j++) {
+                int cost = a[i - 1] == b.charAt(j - 1) ? 0 : 1;
+                int d = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a[i - 1] == b.charAt(j - 2) && a[i - 2] == b.charAt(j - 1)) {
+                    d = Math.min(d, previous2[j - 2] + 1);
+                }
+                current[j] = d;
+            }
+            int[] recycled = previous2;
+            previous2 = previous;
+            previous = current;
+            current = recycled;
+        }
+        return Math.min(previous[m], limit + 1);
+    }
+
+    private class Search {
+        private final char[] query;
+        private final int edits;
+        private final int[] ids;
+        private final int[] distances;
+        private int count;
+        private int probes;
+        private int verified;
+        // Ids already looked at
+        private final IdSet seen = new IdSet();
+
+        private Search(char[] query, int edits, int[] ids, int[] distances) {
+            this.query = query;
+            this.edits = edits;
+            this.ids = ids;
+            this.distances = distances;
+        }
+
+        /**
+         * Looks up the tokens stored under the query without the characters at skip1 and skip2
+         */
+        private void probe(int skip1, int skip2) {
+            if (probes == MAX_PROBES || verified == MAX_VERIFIED) {
+                return;
+            }
+            probes++;
+            int hash = hash(query, query.length, skip1, skip2);
+            for (int p = first(hash); p < deletions.length && (int) (deletions[p] >>> 32) == hash
+                    && verified < MAX_VERIFIED; p++) {
+                int id = (int) deletions[p];
+                if (!seen.add(id)) {
+                    continue;
+                }
+                verified++;
+                String candidate = tokens.token(id);
+                int limit = Math.min(edits, allowedEdits(candidate.length()));
+                int distance = distance(query, candidate, limit);
+                if (distance <= limit) {
+                    count = insert(ids, distances, count, id, distance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set of non-negative ids with open addressing (linear probing), kept at most half full
+     */
+    private static class IdSet {
+        private int[] slots = newSlots(32);
+        private int size;
+
+        /**
+         * @return Whether the id wasn't in the set yet
+         */
+        boolean add(int id) {
+            if (!insert(slots, id)) {
+                return false;
+            }
+            if (++size * 2 > slots.length) {
+                int[] grown = newSlots(slots.length * 2);
+                for (int slot : slots) {
+                    if (slot >= 0) {
+                        insert(grown, slot);
+                    }
+                }
+                slots = grown;
+            }
+            return true;
+        }
+
+        private static boolean insert(int[] slots, int id) {
+            int mask = slots.length - 1;
+            for (int i = (id * 0x9e3779b9) >>> 16 & mask; ; i = (i + 1) & mask) {
+                if (slots[i] == id) {
+                    return false;
+                }
+                if (slots[i] < 0) {
+                    slots[i] = id;
+                    return true;
+                }
+            }
+        }
+
+        private static int[] newSlots(int length) {
+            int[] ret = new int[length];
+            Arrays.fill(ret, -1);
+            return ret;
+        }
+    }
+}
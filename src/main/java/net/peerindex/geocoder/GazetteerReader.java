@@ -0,0 +1,83 @@
+package net.peerindex.geocoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads the Geonames download as line aligned chunks of bytes, for {@link GazetteerParser#processLines}. Bytes are
+ * never decoded here; lines end with {@code \n} or {@code \r\n}
+ */
+class GazetteerReader {
+    // Bytes per chunk, unless a line is longer than that
+    static final int CHUNK_BYTES = 1 << 20;
+
+    private final InputStream in;
+    private final int chunkBytes;
+    // Start of a line that didn't fit into the previous chunk
+    private byte[] carry = new byte[0];
+    private boolean eof;
+
+    GazetteerReader(InputStream in, int chunkBytes) {
+        this.in = in;
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * Runs all lines of the stream through the parser
+     * @return {@link GazetteerParser#getResult()}
+     */
+    static <T> T read(InputStream in, GazetteerParser<T> parser) throws IOException {
+        GazetteerReader reader = new GazetteerReader(in, CHUNK_BYTES);
+        ByteBuffer chunk;
+        while ((chunk = reader.next()) != null) {
+            if (!parser.processLines(chunk.array(), 0, chunk.limit())) {
+                break;
+            }
+        }
+        return parser.getResult();
+    }
+
+    /**
+     * @return A new array holding whole lines from its start up to the limit of the buffer, or null at the end of the
+     * stream
+     */
+    ByteBuffer next() throws IOException {
+        if (eof) {
+            return null;
+        }
+        byte[] buf = Arrays.copyOf(carry, Math.max(chunkBytes, carry.length * 2));
+        int length = carry.length;
+        int searched = length;
+        while (true) {
+            int read = in.read(buf, length, buf.length - length);
+            if (read < 0) {
+                eof = true;
+                carry = null;
+                return length == 0 ? null : ByteBuffer.wrap(buf, 0, length);
+            }
+            length += read;
+            if (length < buf.length) {
+                continue;
+            }
+            int end = lastLineEnd(buf, searched, length);
+            if (end >= 0) {
+                carry = Arrays.copyOfRange(buf, end, length);
+                return ByteBuffer.wrap(buf, 0, end);
+            }
+            // A line longer than the buffer
+            searched = length;
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+    }
+
+    private static int lastLineEnd(byte[] buf, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buf[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,283 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A row of the Geonames download, parsed in place from UTF-8 bytes. {@link #parse} only finds the column offsets and
+ * reads the feature code, country code and population, which is all that is needed to decide whether a row is
+ * wanted. Everything else is decoded by {@link #toLocation()}, for the rows that are kept. Rows are reused, so a row
+ * is only valid until the next {@link #parse}
+ */
+final class GazetteerRow {
+    private static final Splitter ON_COMMA = Splitter.on(',').omitEmptyStrings().trimResults();
+
+    // geonameid, name, asciiname, alternatenames, latitude, longitude, feature class, feature code, country code,
+    // cc2, admin1 code, admin2 code, admin3 code, admin4 code, population, ... (only the first 15 are used)
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int ALTERNATE_NAMES = 3;
+    private static final int LAT = 4;
+    private static final int LNG = 5;
+    private static final int FEATURE_CODE = 7;
+    private static final int COUNTRY_CODE = 8;
+    private static final int ADM1_CODE = 10;
+    private static final int POPULATION = 14;
+    private static final int COLUMNS = POPULATION + 1;
+    // The codes in ADM1_CODE onwards
+    private static final FeatureCodeCategory[] ADMS = {
+            FeatureCodeCategory.ADM1, FeatureCodeCategory.ADM2, FeatureCodeCategory.ADM3, FeatureCodeCategory.ADM4};
+
+    // Indexable feature codes packed into longs (one byte per character), with their category and string
+    private static final long[] CODES;
+    private static final FeatureCodeCategory[] CODE_CATEGORIES;
+    private static final String[] CODE_STRINGS;
+
+    static {
+        int n = 0;
+        for (FeatureCodeCategory category : FeatureCodeCategory.values()) {
+            n += category.featureCodes().size();
+        }
+        CODES = new long[n];
+        CODE_CATEGORIES = new FeatureCodeCategory[n];
+        CODE_STRINGS = new String[n];
+        int i = 0;
+        for (FeatureCodeCategory category : FeatureCodeCategory.values()) {
+            for (String code : category.featureCodes()) {
+                byte[] bytes = code.getBytes(Charsets.US_ASCII);
+                CODES[i] = pack(bytes, 0, bytes.length);
+                CODE_CATEGORIES[i] = category;
+                CODE_STRINGS[i] = code;
+                i++;
+            }
+        }
+    }
+
+    // Exactly representable powers of ten
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private final int[] starts = new int[COLUMNS];
+    private final int[] ends = new int[COLUMNS];
+    private byte[] buf;
+    private int from;
+    private int to;
+    private FeatureCodeCategory category;
+    private String featureCode;
+    private long population;
+
+    /**
+     * Parses the line {@code buf[from, to)}, without the line terminator
+     * @return false if the row isn't for indexing (it's too short, it has no country code or its feature code doesn't
+     * belong to a {@link FeatureCodeCategory})
+     */
+    boolean parse(byte[] buf, int from, int to) {
+        this.buf = buf;
+        this.from = from;
+        this.to = to;
+        int column = 0;
+        starts[0] = from;
+        for (int i = from; i < to && column < COLUMNS; i++) {
+            if (buf[i] == '\t') {
+                ends[column++] = i;
+                if (column < COLUMNS) {
+                    starts[column] = i + 1;
+                }
+            }
+        }
+        if (column < COLUMNS - 1) {
+            return false;
+        }
+        if (column == COLUMNS - 1) {
+            ends[column] = to;
+        }
+
+        int code = code(starts[FEATURE_CODE], ends[FEATURE_CODE]);
+        if (code < 0 || starts[COUNTRY_CODE] == ends[COUNTRY_CODE]) {
+            return false;
+        }
+        category = CODE_CATEGORIES[code];
+        featureCode = CODE_STRINGS[code];
+        population = parseLong(POPULATION);
+        return true;
+    }
+
+    FeatureCodeCategory category() {
+        return category;
+    }
+
+    long population() {
+        return population;
+    }
+
+    /**
+     * @return The country code packed like {@link #pack}, or -1 if it is too long to be one
+     */
+    long packedCountry() {
+        int start = starts[COUNTRY_CODE];
+        int end = ends[COUNTRY_CODE];
+        return end - start > 8 ? -1 : pack(buf, start, end);
+    }
+
+    /**
+     * @return The whole line
+     */
+    String line() {
+        return new String(buf, from, to - from, Charsets.UTF_8);
+    }
+
+    Location toLocation() {
+        String defaultName = string(NAME);
+        Location location = new Location();
+        location.setGeonameId(parseInt(ID));
+        location.setDefaultName(defaultName);
+        location.setLat(parseDouble(LAT));
+        location.setLng(parseDouble(LNG));
+        location.addCode(FeatureCodeCategory.PCL, string(COUNTRY_CODE));
+        for (int i = 0; i < ADMS.length; i++) {
+            if (starts[ADM1_CODE + i] != ends[ADM1_CODE + i]) {
+                location.addCode(ADMS[i], string(ADM1_CODE + i));
+            }
+        }
+        location.setPopulation(population);
+        location.setFeatureCodeCategory(category);
+        location.setFeatureCode(featureCode);
+        location.setNames(names(defaultName, location.getCodes().get(category)));
+        return location;
+    }
+
+    /**
+     * Alternate names, the default name and the code, skipping single characters. Names are added in this order so
+     * that the resulting set iterates like it always did
+     */
+    private Set<String> names(String defaultName, String code) {
+        Set<String> names = new HashSet<>();
+        if (starts[ALTERNATE_NAMES] != ends[ALTERNATE_NAMES]) {
+            for (String name : ON_COMMA.split(string(ALTERNATE_NAMES))) {
+                if (name.length() > 1) {
+                    names.add(name);
+                }
+            }
+        }
+        if (defaultName.length() > 1) {
+            names.add(defaultName);
+        }
+        if (code != null && !code.isEmpty()) {
+            names.add(code);
+        }
+        return ImmutableSet.copyOf(names);
+    }
+
+    private String string(int column) {
+        return new String(buf, starts[column], ends[column] - starts[column], Charsets.UTF_8);
+    }
+
+    private int code(int start, int end) {
+        if (end == start || end - start > 8) {
+            return -1;
+        }
+        long packed = pack(buf, start, end);
+        for (int i = 0; i < CODES.length; i++) {
+            if (CODES[i] == packed) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Up to 8 bytes, one per byte of the long
+     */
+    static long pack(byte[] bytes, int start, int end) {
+        long packed = 0;
+        for (int i = start; i < end; i++) {
+            packed = (packed << 8) | (bytes[i] & 0xff);
+        }
+        return packed;
+    }
+
+    private int parseInt(int column) {
+        long value = parseLong(column);
+        if (value != (int) value) {
+            throw new NumberFormatException("Not an int: " + string(column));
+        }
+        return (int) value;
+    }
+
+    /**
+     * Plain decimal integers of up to 18 digits are read off the bytes, anything else is left to
+     * {@link Long#parseLong}, which also reports malformed numbers
+     */
+    private long parseLong(int column) {
+        int i = starts[column];
+        int end = ends[column];
+        boolean negative = i < end && buf[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            return Long.parseLong(string(column));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.parseLong(string(column));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Plain decimals with at most 15 significant digits are computed as an integer divided by a power of ten. Both
+     * are exact as doubles, so the correctly rounded quotient is the same double {@link Double#parseDouble} returns.
+     * Anything else (exponents, long mantissas, malformed input) goes to {@link Double#parseDouble}
+     */
+    private double parseDouble(int column) {
+        int i = starts[column];
+        int end = ends[column];
+        boolean negative = i < end && buf[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int seen = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (; i < end; i++) {
+            byte b = buf[i];
+            if (b == '.' && fraction < 0) {
+                fraction = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || digits == 15) {
+                return Double.parseDouble(string(column));
+            }
+            mantissa = mantissa * 10 + digit;
+            seen++;
+            if (mantissa != 0) {
+                digits++;
+            }
+            if (fraction >= 0) {
+                fraction++;
+            }
+        }
+        if (seen == 0 || fraction >= POW10.length) {
+            return Double.parseDouble(string(column));
+        }
+        double value = fraction > 0 ? mantissa / POW10[fraction] : mantissa;
+        return negative ? -value : value;
+    }
+}
@@ -6,8 +6,14 @@ import com.google.common.collect.*;
 import com.google.common.io.CharStreams;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 
@@ -16,9 +22,19 @@ import static com.google.common.base.Preconditions.checkState;
  * @author Enno Shioji (eshioji@gmail.com)
  */
 class GeoDbIndexer {
+    // Gazetteer lines parsed per task
+    private static final int CHUNK_LINES = 4096;
+    // Locations whose names are tokenized per task
+    private static final int CHUNK_LOCATIONS = 1024;
+
+    // One of the two is set
     private final BufferedReader gazetteer;
+    private final InputStream gazetteerBytes;
     private final ImmutableMap<FeatureCodeCategory, Long> populationThreshold;
     private final ImmutableMap<String, Double> pclToActivityShare;
+    private LocationFilter filter = LocationFilter.ALL;
+    // Of all countries of the gazetteer, including filtered ones. Set by extractLocations
+    private ImmutableMap<String, Double> countryPopulations;
 
     private final Tokenizer tokenizer = new Tokenizer();
 
@@ -28,23 +44,27 @@ class GeoDbIndexer {
      * @param populationThresholdSrc
      */
     GeoDbIndexer(BufferedReader gazetteer, BufferedReader populationThresholdSrc, BufferedReader pclToActivityShareSrc) throws IOException {
-        this.gazetteer = gazetteer;
-        this.populationThreshold = Utils.readPopulationTh(populationThresholdSrc);
-        this.pclToActivityShare = Utils.readActivityShare(pclToActivityShareSrc);
+        this(gazetteer, Utils.readPopulationTh(populationThresholdSrc), Utils.readActivityShare(pclToActivityShareSrc));
+    }
 
-        // Fail if our population threshold map doesn't have threshold for all {@link FeatureCodeCategory}
-        checkState(
-                Sets.difference(
-                        populationThreshold.keySet(),
-                        EnumSet.allOf(FeatureCodeCategory.class)
-                ).size() == 0,
-                "You must provide population threshold for all of " + ImmutableList.copyOf(FeatureCodeCategory.values())
-                );
+    GeoDbIndexer(BufferedReader gazetteer, ImmutableMap<FeatureCodeCategory, Long> populationThreshold, ImmutableMap<String, Double> activityShare) throws IOException {
+        this(checkNotNull(gazetteer), null, populationThreshold, activityShare);
+    }
+
+    /**
+     * Reads the gazetteer as UTF-8 bytes, which is cheaper than reading it as lines of text
+     */
+    GeoDbIndexer(InputStream gazetteer, BufferedReader populationThresholdSrc, BufferedReader pclToActivityShareSrc) throws IOException {
+        this(gazetteer, Utils.readPopulationTh(populationThresholdSrc), Utils.readActivityShare(pclToActivityShareSrc));
+    }
 
+    GeoDbIndexer(InputStream gazetteer, ImmutableMap<FeatureCodeCategory, Long> populationThreshold, ImmutableMap<String, Double> activityShare) throws IOException {
+        this(null, checkNotNull(gazetteer), populationThreshold, activityShare);
     }
 
-    GeoDbIndexer(BufferedReader gazetteer, ImmutableMap<FeatureCodeCategory, Long> populationThreshold, ImmutableMap<String, Double> activityShare) throws IOException {
+    private GeoDbIndexer(BufferedReader gazetteer, InputStream gazetteerBytes, ImmutableMap<FeatureCodeCategory, Long> populationThreshold, ImmutableMap<String, Double> activityShare) {
         this.gazetteer = gazetteer;
+        this.gazetteerBytes = gazetteerBytes;
         this.populationThreshold = populationThreshold;
         this.pclToActivityShare = activityShare;
 
@@ -60,19 +80,72 @@ class GeoDbIndexer {
     }
 
 
+    /**
+     * Only extract the locations accepted by the filter. Other rows are skipped as they are parsed, except that the
+     * populations of all countries still go into the weights of the locations that are kept
+     */
+    GeoDbIndexer filter(LocationFilter filter) {
+        this.filter = checkNotNull(filter);
+        return this;
+    }
+
     /**
      * Takes path to Gazetter and population threshold configuration for each feature category to produce a map from location names to locations
      * @return A SetMultimap where key is the normalized name and values are the locations who share that name
      */
     Set<Location> extractLocations() {
         try {
-            Set<Location> extracted = CharStreams.readLines(
-                    gazetteer,
-                    new ExtractLocations(populationThreshold)
-            );
+            ExtractLocations parser = new ExtractLocations(populationThreshold, filter);
+            Set<Location> extracted = gazetteerBytes != null
+                    ? GazetteerReader.read(gazetteerBytes, parser)
+                    : CharStreams.readLines(gazetteer, parser);
+
+            // Raw population stats doesn't work great in the internet as-is. Calibrate for online activity
+            calibrateWeight(extracted, parser.getOtherCountries());
+
+            return extracted;
+
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Same as {@link #extractLocations()}, but parses line aligned chunks of the gazetteer on the pool while reading
+     * ahead. Chunks are merged in input order, so the result is the same as the sequential one
+     */
+    Set<Location> extractLocations(ForkJoinPool pool) {
+        return extractLocations(pool, gazetteerBytes != null ? GazetteerReader.CHUNK_BYTES : CHUNK_LINES);
+    }
+
+    /**
+     * @param chunkSize Bytes per chunk when reading bytes, lines per chunk otherwise
+     */
+    Set<Location> extractLocations(ForkJoinPool pool, int chunkSize) {
+        try {
+            Set<Location> extracted = new HashSet<>();
+            Set<Location> otherCountries = new HashSet<>();
+            GazetteerReader reader = gazetteerBytes != null ? new GazetteerReader(gazetteerBytes, chunkSize) : null;
+            // Chunks being parsed, oldest first. Bounded, so that the gazetteer isn't read into memory all at once
+            Deque<ForkJoinTask<ExtractLocations>> pending = new ArrayDeque<>();
+            Callable<ExtractLocations> chunk;
+            while ((chunk = nextChunk(reader, chunkSize)) != null) {
+                pending.add(pool.submit(chunk));
+                if (pending.size() > pool.getParallelism() * 4) {
+                    // Locations seen first win, as in the sequential version
+                    ExtractLocations parsed = pending.poll().join();
+                    extracted.addAll(parsed.getResult());
+                    otherCountries.addAll(parsed.getOtherCountries());
+                }
+            }
+            while (!pending.isEmpty()) {
+                ExtractLocations parsed = pending.poll().join();
+                extracted.addAll(parsed.getResult());
+                otherCountries.addAll(parsed.getOtherCountries());
+            }
 
             // Raw population stats doesn't work great in the internet as-is. Calibrate for online activity
-            calibrateWeight(extracted);
+            calibrateWeight(extracted, otherCountries);
 
             return extracted;
 
@@ -81,6 +154,45 @@ class GeoDbIndexer {
         }
     }
 
+    /**
+     * @return A task parsing the next chunk, or null at the end of the gazetteer
+     */
+    private Callable<ExtractLocations> nextChunk(GazetteerReader reader, int chunkLines) throws IOException {
+        if (reader != null) {
+            final ByteBuffer bytes = reader.next();
+            if (bytes == null) {
+                return null;
+            }
+            return new Callable<ExtractLocations>() {
+                @Override
+                public ExtractLocations call() throws IOException {
+                    ExtractLocations parser = new ExtractLocations(populationThreshold, filter);
+                    parser.processLines(bytes.array(), 0, bytes.limit());
+                    return parser;
+                }
+            };
+        }
+
+        final List<String> lines = new ArrayList<>(chunkLines);
+        String line;
+        while (lines.size() < chunkLines && (line = gazetteer.readLine()) != null) {
+            lines.add(line);
+        }
+        if (lines.isEmpty()) {
+            return null;
+        }
+        return new Callable<ExtractLocations>() {
+            @Override
+            public ExtractLocations call() throws IOException {
+                ExtractLocations parser = new ExtractLocations(populationThreshold, filter);
+                for (String line : lines) {
+                    parser.processLine(line);
+                }
+                return parser;
+            }
+        };
+    }
+
     ImmutableMap<ImmutableList<String>, Set<Location>> index(Set<Location> locations) {
         // We will have at least locations.size number of entries
         Map<ImmutableList<String>, Set<Location>> index = new HashMap<>(locations.size());
@@ -93,7 +205,78 @@ class GeoDbIndexer {
         return ImmutableMap.copyOf(index);
     }
 
-    private void put(Map<ImmutableList<String>, Set<Location>> index, ImmutableList<String> key, Location location) {
+    /**
+     * Same as {@link #index(Set)}, but tokenizes names on the pool. Keys are hash partitioned and each partition is
+     * merged by one task, in location order, so the result doesn't depend on scheduling
+     */
+    ImmutableMap<ImmutableList<String>, Set<Location>> index(Set<Location> locations, ForkJoinPool pool) {
+        return index(locations, pool, CHUNK_LOCATIONS);
+    }
+
+    ImmutableMap<ImmutableList<String>, Set<Location>> index(Set<Location> locations, ForkJoinPool pool, final int chunkLocations) {
+        final Location[] all = locations.toArray(new Location[locations.size()]);
+        final int partitions = Integer.highestOneBit(pool.getParallelism() * 4 - 1) << 1;
+        int chunks = (all.length + chunkLocations - 1) / chunkLocations;
+
+        // Tokenized names of each chunk of locations, by partition of the key
+        final KeyedLocations[][] buckets = new KeyedLocations[chunks][partitions];
+        ParallelLoop.run(pool, chunks, new ParallelLoop.Body() {
+            @Override
+            public void run(int chunk) {
+                KeyedLocations[] bucket = buckets[chunk];
+                for (int i = chunk * chunkLocations; i < Math.min(all.length, (chunk + 1) * chunkLocations); i++) {
+                    for (String name : all[i].getNames()) {
+                        ImmutableList<String> key = tokenizer.tokenize(name);
+                        int partition = partition(key, partitions);
+                        if (bucket[partition] == null) {
+                            bucket[partition] = new KeyedLocations();
+                        }
+                        bucket[partition].keys.add(key);
+                        bucket[partition].locations.add(all[i]);
+                    }
+                }
+            }
+        });
+
+        // Each task fills the map of its partition only
+        final List<Map<ImmutableList<String>, Set<Location>>> merged = new ArrayList<>(partitions);
+        for (int partition = 0; partition < partitions; partition++) {
+            merged.add(new HashMap<ImmutableList<String>, Set<Location>>());
+        }
+        ParallelLoop.run(pool, partitions, new ParallelLoop.Body() {
+            @Override
+            public void run(int partition) {
+                Map<ImmutableList<String>, Set<Location>> index = merged.get(partition);
+                for (KeyedLocations[] bucket : buckets) {
+                    KeyedLocations pairs = bucket[partition];
+                    if (pairs == null) {
+                        continue;
+                    }
+                    for (int i = 0; i < pairs.keys.size(); i++) {
+                        put(index, pairs.keys.get(i), pairs.locations.get(i));
+                    }
+                }
+            }
+        });
+
+        // Partitions are disjoint, so they go into the immutable map as they are
+        ImmutableMap.Builder<ImmutableList<String>, Set<Location>> b = ImmutableMap.builder();
+        for (Map<ImmutableList<String>, Set<Location>> partition : merged) {
+            b.putAll(partition);
+        }
+        return b.build();
+    }
+
+    private static int partition(ImmutableList<String> key, int partitions) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (partitions - 1);
+    }
+
+    private static void put(Map<ImmutableList<String>, Set<Location>> index, ImmutableList<String> key, Location location) {
+        if (key.isEmpty()) {
+            // A name without tokens (e.g. an alternate name that is all punctuation) can't be matched
+            return;
+        }
         Set<Location> locations = index.get(key);
         if(locations == null){
             locations = new HashSet<>();
@@ -102,51 +285,116 @@ class GeoDbIndexer {
         locations.add(location);
     }
 
+    /**
+     * Splits an index by country, e.g. to spread it over several processes (see {@link ShardedGeocoder}). Each
+     * country goes to one shard, whole: the shard gets the country's locations under every key that refers to them.
+     * Countries are assigned largest first to the shard with the fewest locations so far, so shards are of similar
+     * size. Locations without a country code can be contained by (or contain) locations of any country, so they are
+     * put in every shard
+     * @return The shards, each in the form of {@link #index(Set)}. Keys only refer to locations of the shard
+     */
+    static List<ImmutableMap<ImmutableList<String>, Set<Location>>> shards(
+            Map<ImmutableList<String>, Set<Location>> index, int shards) {
+        checkArgument(shards > 0, "Not a positive number of shards: %s", shards);
+        final Map<String, Integer> sizes = new HashMap<>();
+        for (Location location : ImmutableSet.copyOf(Iterables.concat(index.values()))) {
+            String country = location.getCodes().get(FeatureCodeCategory.PCL);
+            if (country != null) {
+                Integer size = sizes.get(country);
+                sizes.put(country, size == null ? 1 : size + 1);
+            }
+        }
+        List<String> countries = new ArrayList<>(sizes.keySet());
+        Collections.sort(countries, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int bySize = sizes.get(b).compareTo(sizes.get(a));
+                return bySize != 0 ? bySize : a.compareTo(b);
+            }
+        });
+        Map<String, Integer> shardOf = new HashMap<>();
+        long[] shardSizes = new long[shards];
+        for (String country : countries) {
+            int smallest = 0;
+            for (int shard = 1; shard < shards; shard++) {
+                if (shardSizes[shard] < shardSizes[smallest]) {
+                    smallest = shard;
+                }
+            }
+            shardOf.put(country, smallest);
+            shardSizes[smallest] += sizes.get(country);
+        }
 
+        List<Map<ImmutableList<String>, Set<Location>>> split = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            split.add(new HashMap<ImmutableList<String>, Set<Location>>());
+        }
+        for (Map.Entry<ImmutableList<String>, Set<Location>> entry : index.entrySet()) {
+            for (Location location : entry.getValue()) {
+                String country = location.getCodes().get(FeatureCodeCategory.PCL);
+                if (country == null) {
+                    for (Map<ImmutableList<String>, Set<Location>> shard : split) {
+                        put(shard, entry.getKey(), location);
+                    }
+                } else {
+                    put(split.get(shardOf.get(country)), entry.getKey(), location);
+                }
+            }
+        }
+        List<ImmutableMap<ImmutableList<String>, Set<Location>>> ret = new ArrayList<>(shards);
+        for (Map<ImmutableList<String>, Set<Location>> shard : split) {
+            ret.add(ImmutableMap.copyOf(shard));
+        }
+        return ret;
+    }
 
+    /**
+     * @return The populations of all countries of the gazetteer by country code, including countries that weren't
+     * extracted. What the weights of the extracted locations were calibrated with
+     * @throws IllegalStateException if the locations haven't been extracted yet
+     */
+    ImmutableMap<String, Double> countryPopulations() {
+        checkState(countryPopulations != null, "Locations haven't been extracted");
+        return countryPopulations;
+    }
 
-    private void calibrateWeight(Set<Location> precursor) {
+    /**
+     * @param otherCountries Countries that aren't extracted, but count towards the world population
+     */
+    private void calibrateWeight(Set<Location> precursor, Set<Location> otherCountries) {
 
         // Calculate (rough) world population
         Map<String, Double> pclCode_population = pclToPopulation(precursor);
-        double worldPopulation = sum(pclCode_population.values());
-
-        // Obtain online activity share per PCL (from an external source)
-        Map<String, Double> pcl_onlineActivityShare = pclToActivityShare;
-
-        // Obtain total population for which online activity calibration data is available
-        double totalPopulationWithCalibData = totalPopulationWithCalibData(pclCode_population, pcl_onlineActivityShare.keySet());
-
-        // Obtain total population for which online activity calibration isn't available
-        double restPopulation = worldPopulation - totalPopulationWithCalibData;
-
-
-        double totalShareForCalibPCLs = sum(pcl_onlineActivityShare.values());
-        double totalShareForNoCalibPCLs = 1.0 - totalShareForCalibPCLs;
-
+        pclCode_population.putAll(pclToPopulation(otherCountries));
+        countryPopulations = ImmutableMap.copyOf(pclCode_population);
 
+        Calibration calibration = new Calibration(pclCode_population, pclToActivityShare);
         for (Location location : precursor) {
-            String country = location.getCodes().get(FeatureCodeCategory.PCL);
-            double correctedShare;
-            if (pcl_onlineActivityShare.containsKey(country)) {
-                // A country with online activity share data
-                double incountry = location.getPopulation() / pclCode_population.get(country);
-                double country_share = pcl_onlineActivityShare.get(country);
-                correctedShare = country_share * incountry;
-            } else {
-                // Location in a country without online activity share data
-                if (!pclCode_population.keySet().contains(country)){
-                    // This country is tiny, approximate with zero
-                    location.setWeight(0.0);
-                    continue;
-                }
+            location.setWeight(calibration.weight(location.getCodes().get(FeatureCodeCategory.PCL), location.getPopulation()));
+        }
+    }
 
-                double incountry = location.getPopulation() / pclCode_population.get(country);
-                double country_share = (pclCode_population.get(country) / restPopulation) * totalShareForNoCalibPCLs;
-                correctedShare = country_share * incountry;
-            }
-            location.setWeight(correctedShare);
+    /**
+     * Weights the locations of the store like {@link #extractLocations()} would, but with the given activity shares
+     * @param pclCode_population Populations of all countries (see {@link #countryPopulations()})
+     * @return The weights, by ordinal
+     * @throws IllegalArgumentException if a location is in a country with an activity share but without a population
+     */
+    static double[] calibrateWeights(LocationStore locations, Map<String, Double> pclCode_population,
+                                     Map<String, Double> pclToActivityShare) {
+        String[] countries = new String[locations.size()];
+        for (int i = 0; i < countries.length; i++) {
+            countries[i] = locations.codeDictionary()[locations.code(i, 0)];
+            checkArgument(!pclToActivityShare.containsKey(countries[i]) || pclCode_population.containsKey(countries[i]),
+                    "No population of country %s to calibrate its activity share with", countries[i]);
+        }
+
+        Calibration calibration = new Calibration(pclCode_population, pclToActivityShare);
+        double[] weights = new double[countries.length];
+        for (int i = 0; i < countries.length; i++) {
+            weights[i] = calibration.weight(countries[i], locations.populations()[i]);
         }
+        return weights;
     }
 
     private static double totalPopulationWithCalibData(Map<String, Double> pclCode_population, Set<String> pcl_onlineActivityShare) {
@@ -178,4 +426,59 @@ class GeoDbIndexer {
         return sum;
     }
 
+    /**
+     * Locations and the keys they go under, pairwise
+     */
+    private static class KeyedLocations {
+        private final List<ImmutableList<String>> keys = new ArrayList<>();
+        private final List<Location> locations = new ArrayList<>();
+    }
+
+    /**
+     * Share of the online activity of the world a location accounts for, given the populations of the countries
+     * and their online activity shares
+     */
+    private static class Calibration {
+        private final Map<String, Double> pclCode_population;
+        private final Map<String, Double> pcl_onlineActivityShare;
+        private final double restPopulation;
+        private final double totalShareForNoCalibPCLs;
+
+        Calibration(Map<String, Double> pclCode_population, Map<String, Double> pcl_onlineActivityShare) {
+            this.pclCode_population = pclCode_population;
+            // Obtain online activity share per PCL (from an external source)
+            this.pcl_onlineActivityShare = pcl_onlineActivityShare;
+
+            double worldPopulation = sum(pclCode_population.values());
+
+            // Obtain total population for which online activity calibration data is available
+            double totalPopulationWithCalibData = totalPopulationWithCalibData(pclCode_population, pcl_onlineActivityShare.keySet());
+
+            // Obtain total population for which online activity calibration isn't available
+            restPopulation = worldPopulation - totalPopulationWithCalibData;
+
+
+            double totalShareForCalibPCLs = sum(pcl_onlineActivityShare.values());
+            totalShareForNoCalibPCLs = 1.0 - totalShareForCalibPCLs;
+        }
+
+        double weight(String country, long population) {
+            if (pcl_onlineActivityShare.containsKey(country)) {
+                // A country with online activity share data
+                double incountry = population / pclCode_population.get(country);
+                double country_share = pcl_onlineActivityShare.get(country);
+                return country_share * incountry;
+            }
+            // Location in a country without online activity share data
+            if (!pclCode_population.keySet().contains(country)){
+                // This country is tiny, approximate with zero
+                return 0.0;
+            }
+
+            double incountry = population / pclCode_population.get(country);
+            double country_share = (pclCode_population.get(country) / restPopulation) * totalShareForNoCalibPCLs;
+            return country_share * incountry;
+        }
+    }
+
 }
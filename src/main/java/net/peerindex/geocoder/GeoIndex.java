@@ -0,0 +1,206 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.primitives.Ints;
+
+import java.util.*;
+
+/**
+ * The immutable, fully built index a {@link Geocoder} works on: the indexed locations, the dictionary of the tokens
+ * that occur in their names and the keys (tokenized names) that point to them. Also the structures derived from
+ * these: parents for disambiguation, the spatial index for lookups by coordinate and the automaton for extracting
+ * locations from longer texts
+ */
+class GeoIndex {
+    final LocationStore locations;
+    final TokenDictionary tokens;
+    final TokenTrie keys;
+    final ParentIndex parents;
+    final SpatialIndex spatial;
+    // Of all countries of the gazetteer by country code, for calibrating weights (see GeoDbIndexer#countryPopulations)
+    final ImmutableMap<String, Double> countryPopulations;
+    // Built on first use, as only extractAll needs it
+    private final Supplier<KeyAutomaton> automaton;
+
+    /**
+     * @param keys Posting lists in any order; they are ranked for the weights of the locations
+     */
+    GeoIndex(LocationStore locations, TokenDictionary tokens, TokenTrie keys,
+             ImmutableMap<String, Double> countryPopulations) {
+        this.locations = locations;
+        this.tokens = tokens;
+        this.countryPopulations = countryPopulations;
+        this.keys = keys.rankedBy(locations);
+        this.parents = new ParentIndex(locations, this.keys);
+        this.spatial = new SpatialIndex(locations);
+        this.automaton = automaton(this.keys);
+    }
+
+    /**
+     * Takes everything as it is, e.g. as stored in a snapshot
+     * @param keys Posting lists ranked for the weights of the locations
+     */
+    GeoIndex(LocationStore locations, TokenDictionary tokens, TokenTrie keys, ParentIndex parents,
+             SpatialIndex spatial, ImmutableMap<String, Double> countryPopulations) {
+        this(locations, tokens, keys, parents, spatial, automaton(keys), countryPopulations);
+    }
+
+    private GeoIndex(LocationStore locations, TokenDictionary tokens, TokenTrie keys, ParentIndex parents,
+                     SpatialIndex spatial, Supplier<KeyAutomaton> automaton,
+                     ImmutableMap<String, Double> countryPopulations) {
+        this.locations = locations;
+        this.tokens = tokens;
+        this.countryPopulations = countryPopulations;
+        this.keys = keys;
+        this.parents = parents;
+        this.spatial = spatial;
+        this.automaton = automaton;
+    }
+
+    private static Supplier<KeyAutomaton> automaton(final TokenTrie keys) {
+        return Suppliers.memoize(new Supplier<KeyAutomaton>() {
+            @Override
+            public KeyAutomaton get() {
+                return new KeyAutomaton(keys);
+            }
+        });
+    }
+
+    KeyAutomaton automaton() {
+        return automaton.get();
+    }
+
+    /**
+     * Offers the locations of the finest key to the choice, flagged with whether all the other keys have a
+     * location that contains it. The postings are ranked by weight, so this stops as soon as the choice is settled
+     * @param candidates Key nodes of the query. {@link TokenTrie#NONE} stands for a key this index doesn't have (see
+     * {@link IndexShard}), which has no locations
+     */
+    void pickoutLocationsWithConsistency(Offers choice, int[] candidates, int finestKey) {
+        if (candidates[finestKey] == TokenTrie.NONE) {
+            return;
+        }
+        for (int p = keys.postingStart(candidates[finestKey]); p < keys.postingEnd(candidates[finestKey]); p++) {
+            int finest = keys.posting(p);
+            if (choice.settled(finest)) {
+                break;
+            }
+            choice.offer(finest, isConsistent(candidates, finestKey, finest), finestKey);
+        }
+    }
+
+    /**
+     * @return Whether each of the other keys has a location that contains the given one
+     */
+    boolean isConsistent(int[] candidates, int finestKey, int finest) {
+        boolean consistent = true;
+        for (int i = 0; i < candidates.length && consistent; i++) {
+            // Is there a parent among the coarser location candidates?
+            consistent = i == finestKey || (candidates[i] != TokenTrie.NONE && parents.hasParent(candidates[i], finest));
+        }
+        return consistent;
+    }
+
+    /**
+     * @return An index of the same locations and keys with other weights. Shares everything but the weights and the
+     * order of the posting lists with this one, so it costs a double per location and an int per posting. (The
+     * spatial index keeps the weights it was built with to tell duplicate administrative areas apart; the parents
+     * and the automaton don't depend on the order of the postings)
+     */
+    GeoIndex withWeights(double[] weights) {
+        LocationStore reweighted = locations.withWeights(weights);
+        return new GeoIndex(reweighted, tokens, keys.rankedBy(reweighted), parents, spatial, automaton,
+                countryPopulations);
+    }
+
+    /**
+     * Builds the index from the output of {@link GeoDbIndexer#index(Set)}
+     */
+    static GeoIndex of(Map<ImmutableList<String>, Set<Location>> index) {
+        return of(index, true);
+    }
+
+    /**
+     * @param keepNames false to drop the names of the locations once they are indexed
+     */
+    static GeoIndex of(Map<ImmutableList<String>, Set<Location>> index, boolean keepNames) {
+        return of(index, keepNames, null);
+    }
+
+    /**
+     * @param countryPopulations Of all countries of the gazetteer (see {@link GeoDbIndexer#countryPopulations()}), or
+     * null to take those of the countries in the index. Only needed if the index was built with a
+     * {@link LocationFilter}, so that its weights can be recalibrated like those of the full index
+     */
+    static GeoIndex of(Map<ImmutableList<String>, Set<Location>> index, boolean keepNames,
+                       ImmutableMap<String, Double> countryPopulations) {
+        LocationStore locations = LocationStore.of(ImmutableSet.copyOf(Iterables.concat(index.values())), keepNames);
+        if (countryPopulations == null) {
+            countryPopulations = countryPopulations(locations);
+        }
+
+        Set<String> distinctTokens = new HashSet<>();
+        for (ImmutableList<String> key : index.keySet()) {
+            distinctTokens.addAll(key);
+        }
+        TokenDictionary tokens = TokenDictionary.of(distinctTokens);
+
+        // Insert keys in token id order so that node ids don't depend on hash iteration order
+        SortedMap<int[], int[]> encoded = new TreeMap<>(Ints.lexicographicalComparator());
+        for (Map.Entry<ImmutableList<String>, Set<Location>> entry : index.entrySet()) {
+            int[] ordinals = new int[entry.getValue().size()];
+            int i = 0;
+            for (Location location : entry.getValue()) {
+                ordinals[i++] = locations.ordinalOf(location.getGeonameId());
+            }
+            Arrays.sort(ordinals);
+            encoded.put(tokens.ids(entry.getKey()), ordinals);
+        }
+        TokenTrie.Builder keys = new TokenTrie.Builder(encoded.size());
+        for (Map.Entry<int[], int[]> entry : encoded.entrySet()) {
+            keys.add(entry.getKey(), entry.getValue());
+        }
+        return new GeoIndex(locations, tokens, keys.build(), countryPopulations);
+    }
+
+    private static ImmutableMap<String, Double> countryPopulations(LocationStore locations) {
+        Map<String, Double> ret = new HashMap<>();
+        for (int i = 0; i < locations.size(); i++) {
+            if (locations.category(i) == FeatureCodeCategory.PCL) {
+                ret.put(locations.codeDictionary()[locations.code(i, 0)], (double) locations.populations()[i]);
+            }
+        }
+        return ImmutableMap.copyOf(ret);
+    }
+
+    /**
+     * @return The index in the form {@link GeoDbIndexer#index(Set)} produces it
+     */
+    ImmutableMap<ImmutableList<String>, Set<Location>> toMap() {
+        final Location[] materialized = new Location[locations.size()];
+        for (int i = 0; i < materialized.length; i++) {
+            materialized[i] = locations.get(i);
+        }
+        final ImmutableMap.Builder<ImmutableList<String>, Set<Location>> b = ImmutableMap.builder();
+        keys.forEachKey(new TokenTrie.KeyVisitor() {
+            @Override
+            public void visit(int[] key, int[] postings) {
+                ImmutableList.Builder<String> tokenized = ImmutableList.builder();
+                for (int token : key) {
+                    tokenized.add(tokens.token(token));
+                }
+                ImmutableSet.Builder<Location> posting = ImmutableSet.builder();
+                for (int ordinal : postings) {
+                    posting.add(materialized[ordinal]);
+                }
+                b.put(tokenized.build(), posting.build());
+            }
+        });
+        return b.build();
+    }
+}
@@ -1,212 +1,1208 @@
 package net.peerindex.geocoder;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.*;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.*;
+import com.google.common.io.Files;
+import com.google.common.primitives.Ints;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @author Enno Shioji (eshioji@gmail.com)
  */
 public class Geocoder {
-    private final ImmutableMap<ImmutableList<String>, Set<Location>> index;
+    static final int NONE = -1;
+    // Most combinations of corrected tokens tried per query
+    private static final int MAX_FUZZY_COMBINATIONS = 64;
+    // Places named at most this many tokens apart in a text disambiguate each other (see extractAll)
+    private static final int EXTRACT_CONTEXT = 3;
+    // Special rules that improve the results: a query whose first candidate is SPECIAL_RULE_FROM[i] and that contains
+    // the token SPECIAL_RULE_TOKENS[i] resolves to SPECIAL_RULE_TO[i] instead
+    // TODO better documentation
+    static final int[] SPECIAL_RULE_FROM = {5128638, 4331987};
+    static final String[] SPECIAL_RULE_TOKENS = {"NY", "LA"};
+    static final int[] SPECIAL_RULE_TO = {5128581, 5368361};
 
-    // Special rules
-    private final Location loc5128581;
-    private final Location loc5368361;
+    // The index and what is derived from it. Replaced as a whole by the reload methods. Calls read it once, so that
+    // each of them runs on one version of the index even if it is replaced meanwhile
+    private volatile Resolver resolver;
+    // Null if metrics are disabled
+    private final GeocoderMetrics metrics;
+    // 0 if caching is disabled
+    private final int cacheSize;
+    // 0 if typo tolerance is disabled
+    private final int maxEdits;
+    // Whether indexes loaded by reload keep the names of their locations
+    private final boolean keepNames;
+    // Whether snapshots loaded by reload are checksummed
+    private final boolean verifySnapshots;
+    // Name -> activity shares of the weighting profiles
+    private final ImmutableMap<String, ImmutableMap<String, Double>> profiles;
 
     private final Tokenizer tokenizer = new Tokenizer();
+    private final ThreadLocal<TokenBuffer> tokenBuffers = new ThreadLocal<TokenBuffer>() {
+        @Override
+        protected TokenBuffer initialValue() {
+            return new TokenBuffer();
+        }
+    };
 
     public Geocoder(){
+        this(buildDefaultIndex(LocationFilter.ALL, true));
+    }
+
+
+    public Geocoder(ImmutableMap<ImmutableList<String>, Set<Location>> index) {
+        this(GeoIndex.of(index));
+    }
+
+    /**
+     * Opens an index snapshot previously written by {@link #writeSnapshot(File)}. This is much cheaper than
+     * building the index from the bundled gazetteer
+     * @param snapshot Snapshot file
+     * @throws IOException if the snapshot can't be read, is corrupt or was written by an incompatible version
+     */
+    public Geocoder(File snapshot) throws IOException {
+        this(IndexSnapshot.read(snapshot));
+    }
+
+    Geocoder(GeoIndex index) {
+        this(index, 0, null, 0, true, true, ImmutableMap.<String, ImmutableMap<String, Double>>of());
+    }
+
+    Geocoder(GeoIndex index, int cacheSize, GeocoderMetrics metrics, int maxEdits, boolean keepNames,
+             boolean verifySnapshots, ImmutableMap<String, ImmutableMap<String, Double>> profiles) {
+        this.cacheSize = cacheSize;
+        this.metrics = metrics;
+        this.maxEdits = maxEdits;
+        this.keepNames = keepNames;
+        this.verifySnapshots = verifySnapshots;
+        this.profiles = profiles;
+        this.resolver = resolver(index, null);
+    }
+
+    /**
+     * @return A builder for geocoders with non-default options
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private static GeoIndex buildDefaultIndex(LocationFilter filter, boolean keepNames) {
         try {
             try (
-                    BufferedReader gazetteer = new BufferedReader(new InputStreamReader(Geocoder.class.getResourceAsStream("compressed.gazetteer.txt"), Charsets.UTF_8));
+                    InputStream gazetteer = Geocoder.class.getResourceAsStream("compressed.gazetteer.txt");
                     BufferedReader pThreshold = new BufferedReader(new InputStreamReader(Geocoder.class.getResourceAsStream("population.threshold.txt"), Charsets.UTF_8));
                     BufferedReader activityShare = new BufferedReader(new InputStreamReader(Geocoder.class.getResourceAsStream("online.activity.share.txt"), Charsets.UTF_8));
             ) {
-                GeoDbIndexer indexer = new GeoDbIndexer(gazetteer, pThreshold, activityShare);
-                Set<Location> locations = indexer.extractLocations();
-                index = indexer.index(locations);
-                loc5128581 = tryFindById(index, 5128581);
-                loc5368361 = tryFindById(index, 5368361);
+                GeoDbIndexer indexer = new GeoDbIndexer(gazetteer, pThreshold, activityShare).filter(filter);
+                ForkJoinPool pool = ParallelLoop.defaultPool();
+                Set<Location> locations = indexer.extractLocations(pool);
+                return GeoIndex.of(indexer.index(locations, pool), keepNames, indexer.countryPopulations());
             }
         }catch (IOException e){
             // Not supposed to happen
             throw new AssertionError(e);
         }
+    }
 
+    GeoIndex index() {
+        return resolver.index;
     }
 
+    /**
+     * Writes the index of this object to a file, so that it can be opened with {@link #Geocoder(File)}
+     * @param snapshot Destination file. Overwritten if it exists
+     */
+    public void writeSnapshot(File snapshot) throws IOException {
+        IndexSnapshot.write(resolver.index, snapshot);
+    }
 
-    public Geocoder(ImmutableMap<ImmutableList<String>, Set<Location>> index) {
-        this.index = index;
-        loc5128581 = tryFindById(index, 5128581);
-        loc5368361 = tryFindById(index, 5368361);
+    /**
+     * Splits the index of this object by country (see {@link GeoDbIndexer#shards}) and writes each shard to a
+     * snapshot file of its own, named like the given file with the number of the shard appended (".0", ".1", ...).
+     * Each can be served by a {@link ShardServer} for a {@link ShardedGeocoder}
+     * @return The files written
+     */
+    public List<File> writeSnapshotShards(File snapshot, int shards) throws IOException {
+        List<File> ret = new ArrayList<>(shards);
+        ImmutableMap<ImmutableList<String>, Set<Location>> index = resolver.index.toMap();
+        for (ImmutableMap<ImmutableList<String>, Set<Location>> shard : GeoDbIndexer.shards(index, shards)) {
+            File file = new File(snapshot.getPath() + "." + ret.size());
+            IndexSnapshot.write(GeoIndex.of(shard, true, resolver.index.countryPopulations), file);
+            ret.add(file);
+        }
+        return ret;
     }
 
-    private Location tryFindById(Map<ImmutableList<String>, Set<Location>> locations, int id) {
-        for (Location location : Iterables.concat(locations.values())) {
-            if(location.getGeonameId() == id){
-                return location;
-            }
+    /**
+     * Re-weights the locations for new online activity shares, without rebuilding the index. Only the weights are
+     * recalibrated; keys, postings and everything else that doesn't depend on weights are shared with the current
+     * index. Calls that are running when the new weights are swapped in finish with the old ones.
+     * <p/>
+     * Weights are calibrated with the country populations the index was built with, which are those of all
+     * countries for the bundled index and snapshots, even if restricted by {@link Builder#countries} or
+     * {@link Builder#categories} (see {@link Builder#profile}). The result cache, if any, starts empty
+     * @param activityShare Same format as the bundled online.activity.share.txt
+     * @throws IllegalArgumentException if a country of the shares has locations in the index but no population
+     */
+    public synchronized void reloadActivityShare(BufferedReader activityShare) throws IOException {
+        reweight(Utils.readActivityShare(activityShare));
+    }
+
+    synchronized void reweight(Map<String, Double> pclToActivityShare) {
+        Resolver current = resolver;
+        double[] weights = GeoDbIndexer.calibrateWeights(current.index.locations, current.index.countryPopulations,
+                pclToActivityShare);
+        resolver = resolver(current.index.withWeights(weights), current.fuzzy);
+    }
+
+    /**
+     * Replaces the index with the given snapshot (see {@link #writeSnapshot(File)}), e.g. one built from newer
+     * gazetteer data. The snapshot is opened and everything derived from it is built before it is swapped in, so
+     * calls never wait and each runs either on the old or on the new index. The result cache, if any, starts empty
+     * @throws IOException if the snapshot can't be read, in which case the current index stays
+     */
+    public synchronized void reload(File snapshot) throws IOException {
+        resolver = resolver(IndexSnapshot.read(snapshot, keepNames, verifySnapshots), null);
+    }
+
+    /**
+     * Replaces the index with the given one (as built by {@link GeoDbIndexer}). See {@link #reload(File)}
+     */
+    public synchronized void reload(ImmutableMap<ImmutableList<String>, Set<Location>> index) {
+        resolver = resolver(GeoIndex.of(index, keepNames), null);
+    }
+
+    /**
+     * @param fuzzy Typo table of the same tokens to share, or null to build one if typo tolerance is enabled
+     * @return A resolver of the index, and one of each weighting profile sharing the index
+     */
+    private Resolver resolver(GeoIndex index, FuzzyTokenIndex fuzzy) {
+        if (fuzzy == null && maxEdits > 0) {
+            fuzzy = new FuzzyTokenIndex(index.tokens, maxEdits);
+        }
+        ImmutableMap.Builder<String, Resolver> byProfile = ImmutableMap.builder();
+        for (Map.Entry<String, ImmutableMap<String, Double>> profile : profiles.entrySet()) {
+            double[] weights = GeoDbIndexer.calibrateWeights(index.locations, index.countryPopulations,
+                    profile.getValue());
+            byProfile.put(profile.getKey(),
+                    new Resolver(index.withWeights(weights), fuzzy, ImmutableMap.<String, Resolver>of()));
         }
-        return null;
+        return new Resolver(index, fuzzy, byProfile.build());
+    }
+
+    /**
+     * @return The names of the weighting profiles (see {@link Builder#profile})
+     */
+    public Set<String> profiles() {
+        return profiles.keySet();
     }
 
     public Location resolve(String freeTextLocation) {
+        TokenBuffer tokenizedQuery = tokenBuffers.get();
+        long start = start();
+        tokenizer.tokenize(freeTextLocation, tokenizedQuery);
+        return resolve(resolver, tokenizedQuery, start);
+    }
 
-        ImmutableList<String> tokenizedQuery = tokenizer.tokenize(freeTextLocation);
-        List<Set<Location>> candidates = match(tokenizedQuery);
+    /**
+     * Same as {@link #resolve(String)}, but ranks locations by the weights of the given profile. The profile only
+     * selects another weight array, so this costs the same as resolve
+     * @param profile Name of a profile (see {@link Builder#profile})
+     * @throws IllegalArgumentException if there is no such profile
+     */
+    public Location resolve(String freeTextLocation, String profile) {
+        Resolver current = resolver.profile(profile);
+        TokenBuffer tokenizedQuery = tokenBuffers.get();
+        long start = start();
+        tokenizer.tokenize(freeTextLocation, tokenizedQuery);
+        return resolve(current, tokenizedQuery, start);
+    }
 
-        Location ret = disambiguate(tokenizedQuery, candidates);
+    /**
+     * Same as {@link #resolve(String)}, but reads UTF-8 encoded text directly, without decoding it to a String
+     */
+    public Location resolve(byte[] utf8, int offset, int length) {
+        TokenBuffer tokenizedQuery = tokenBuffers.get();
+        long start = start();
+        tokenizer.tokenize(utf8, offset, length, tokenizedQuery);
+        return resolve(resolver, tokenizedQuery, start);
+    }
+
+    /**
+     * Same as {@link #resolve(String)}, but reads the remaining UTF-8 encoded bytes of the buffer directly, without
+     * decoding them to a String. The position of the buffer is not changed
+     */
+    public Location resolve(ByteBuffer utf8) {
+        TokenBuffer tokenizedQuery = tokenBuffers.get();
+        long start = start();
+        tokenizer.tokenize(utf8, tokenizedQuery);
+        return resolve(resolver, tokenizedQuery, start);
+    }
+
+    private Location resolve(Resolver current, TokenBuffer tokenizedQuery, long tokenizeStart) {
+        int[] tokens = current.ids(tokenizedQuery, tokenizeStart);
+        int length = tokenizedQuery.size();
+        int ret = current.cache == null
+                ? current.resolve(tokens, length) : current.resolveCached(TokenSequence.copyOf(tokens, length));
+        if (ret == NONE && current.fuzzy != null) {
+            ret = current.resolveFuzzy(tokenizedQuery, tokens, length);
+        }
+        return ret == NONE ? null : current.index.locations.get(ret);
+    }
+
+    /**
+     * Resolves every line of the file (UTF-8, one query per line), so that the most frequent ones are in the cache
+     * right from the start
+     * @param pastQueries E.g. a sample of the queries of a previous run
+     * @return The number of queries read
+     * @throws IllegalStateException if this geocoder doesn't cache results (see {@link Builder#cacheSize(int)})
+     */
+    public int warmUpCache(File pastQueries) throws IOException {
+        Preconditions.checkState(cacheSize > 0, "Caching is not enabled");
+        int count = 0;
+        try (BufferedReader queries = Files.newReader(pastQueries, Charsets.UTF_8)) {
+            String query;
+            while ((query = queries.readLine()) != null) {
+                resolve(query);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Hit, miss and eviction counts of the cache of the results with the default weights (all zero if caching
+     * is disabled). Each weighting profile has a cache of its own, see {@link #cacheStats(String)}. Queries that were
+     * resolved but not admitted to the cache count as evictions. Counted since the index was last (re)loaded or
+     * reweighted
+     */
+    public CacheStats cacheStats() {
+        return cacheStats(resolver);
+    }
+
+    /**
+     * Same as {@link #cacheStats()}, for the cache of the results of {@link #resolve(String, String)} with the given
+     * weighting profile
+     * @throws IllegalArgumentException if there is no such profile
+     */
+    public CacheStats cacheStats(String profile) {
+        return cacheStats(resolver.profile(profile));
+    }
+
+    private static CacheStats cacheStats(Resolver resolver) {
+        ResultCache cache = resolver.cache;
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    /**
+     * Ranks the locations the query could refer to. The first candidate is what {@link #resolve(String)} returns;
+     * the rest are the runners-up in the order resolve considers them: consistent candidates before inconsistent ones,
+     * then by weight. Only the top k are kept while ranking, so this costs about the same as resolve for small k
+     * @param k Maximum number of candidates
+     * @return Up to k candidates, best first. Empty if nothing matches
+     */
+    public List<Candidate> resolveTopK(String freeTextLocation, int k) {
+        return resolveTopK(resolver, freeTextLocation, k);
+    }
+
+    /**
+     * Same as {@link #resolveTopK(String, int)}, but ranks locations by the weights of the given profile
+     * @throws IllegalArgumentException if there is no such profile
+     */
+    public List<Candidate> resolveTopK(String freeTextLocation, int k, String profile) {
+        return resolveTopK(resolver.profile(profile), freeTextLocation, k);
+    }
+
+    private List<Candidate> resolveTopK(Resolver current, String freeTextLocation, int k) {
+        Preconditions.checkArgument(k > 0, "k must be positive: %s", k);
+        TokenBuffer tokenizedQuery = tokenBuffers.get();
+        tokenizer.tokenize(freeTextLocation, tokenizedQuery);
+        int[] tokens = current.index.tokens.ids(tokenizedQuery);
+        int length = tokenizedQuery.size();
+        int[] spans = new int[length * 2];
+        int[] candidates = current.candidates(tokens, length, spans);
+        if (candidates.length == 0) {
+            return Collections.emptyList();
+        }
+
+        // No more than the locations that can be offered
+        TokenTrie keys = current.index.keys;
+        int offered = keys.postingEnd(candidates[0]) - keys.postingStart(candidates[0]);
+        if (candidates.length > 1) {
+            int last = candidates[candidates.length - 1];
+            offered += keys.postingEnd(last) - keys.postingStart(last);
+        }
+        LocationStore locations = current.index.locations;
+        TopK top = new TopK(locations, Math.max(1, Math.min(k, offered)));
+        current.index.pickoutLocationsWithConsistency(top, candidates, 0);
+        if (candidates.length > 1) {
+            current.index.pickoutLocationsWithConsistency(top, candidates, candidates.length - 1);
+        }
+        int n = top.rank();
+        if (n > 0) {
+            // Same special rules as resolve
+            int first = current.pickOne(tokens, length, top.ordinals[0]);
+            if (first != top.ordinals[0]) {
+                top.replaceFirst(first, current.index.isConsistent(candidates, top.keys[0], first));
+                n = top.size;
+            }
+        }
+
+        List<Candidate> ret = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int ordinal = top.ordinals[i];
+            int key = top.keys[i];
+            ret.add(new Candidate(locations.get(ordinal), locations.weight(ordinal), top.consistent[i],
+                    spans[key * 2], spans[key * 2 + 1]));
+        }
         return ret;
     }
 
+    /**
+     * Finds every place named in a longer text, such as an article or a post. Names are matched like in
+     * {@link #resolve(String)} (longest name first, from left to right, without overlaps), but in one pass over the
+     * text, so the cost is linear in its length. Each name is resolved on its own: of the locations it can refer to,
+     * the one contained by the most places named within a few words of it wins, then the heaviest one. E.g. in
+     * "from Paris, France to London, UK" both France and UK are near Paris, and France decides it
+     * @return One candidate per place named, in the order they appear in the text. {@link Candidate#isConsistent()}
+     * tells whether every place named near it contains it
+     */
+    public List<Candidate> extractAll(String text) {
+        Resolver current = resolver;
+        TokenBuffer tokenizedText = tokenBuffers.get();
+        tokenizer.tokenize(text, tokenizedText);
+        int[] tokens = current.index.tokens.ids(tokenizedText);
+        return current.extractAll(tokens, tokenizedText.size());
+    }
+
+    /**
+     * Reverse geocoding: finds the indexed town or city (a {@link FeatureCodeCategory#SUBADM} location) nearest to
+     * the coordinate. Its codes name the administrative areas and the country it is in (see
+     * {@link #reverseHierarchy(double, double)} for those as locations)
+     * @return The nearest town, or null if there are none
+     */
+    public Location reverse(double lat, double lng) {
+        return reverse(lat, lng, FeatureCodeCategory.SUBADM);
+    }
 
+    /**
+     * @return The location of the category nearest to the coordinate, or null if there are none. Note that
+     * administrative areas and countries are points too (roughly their centers), so the nearest one doesn't
+     * necessarily contain the coordinate
+     */
+    public Location reverse(double lat, double lng, FeatureCodeCategory category) {
+        checkCoordinate(lat, lng);
+        GeoIndex index = resolver.index;
+        int ret = index.spatial.nearest(lat, lng, Preconditions.checkNotNull(category));
+        return ret == NONE ? null : index.locations.get(ret);
+    }
 
-    private Location disambiguate(List<String> tokenizedQuery, List<Set<Location>> candidates) {
-        if (candidates.size() <= 0) {
-            return null;
+    /**
+     * @return The town or city nearest to the coordinate followed by the indexed areas that contain it, finest
+     * first (e.g. Rancho Cordova, California, US). Empty if there are no towns
+     */
+    public List<Location> reverseHierarchy(double lat, double lng) {
+        checkCoordinate(lat, lng);
+        GeoIndex index = resolver.index;
+        int town = index.spatial.nearest(lat, lng, FeatureCodeCategory.SUBADM);
+        if (town == NONE) {
+            return Collections.emptyList();
         }
+        List<Location> ret = new ArrayList<>();
+        ret.add(index.locations.get(town));
+        for (int level = LocationStore.LEVELS.length - 1; level >= 0; level--) {
+            int area = index.spatial.area(town, level);
+            if (area != NONE) {
+                ret.add(index.locations.get(area));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return The locations (of all categories) within the given distance of the coordinate, nearest first
+     */
+    public List<Location> within(double lat, double lng, double radiusKm) {
+        checkCoordinate(lat, lng);
+        Preconditions.checkArgument(radiusKm >= 0, "Invalid radius: %s", radiusKm);
+        GeoIndex index = resolver.index;
+        return locations(index.locations, index.spatial.within(lat, lng, radiusKm));
+    }
+
+    /**
+     * @param west Western edge. Greater than east for boxes that cross the antimeridian
+     * @return The locations (of all categories) in the box, edges included, in geonameId order
+     */
+    public List<Location> within(double south, double west, double north, double east) {
+        checkCoordinate(south, west);
+        checkCoordinate(north, east);
+        Preconditions.checkArgument(south <= north, "South of the box is north of its north: %s > %s", south, north);
+        GeoIndex index = resolver.index;
+        return locations(index.locations, index.spatial.within(south, west, north, east));
+    }
 
-        Set<Location> consistent = new HashSet<>();
-        Set<Location> inconsistent = new HashSet<>();
+    private static void checkCoordinate(double lat, double lng) {
+        Preconditions.checkArgument(lat >= -90 && lat <= 90, "Invalid latitude: %s", lat);
+        Preconditions.checkArgument(lng >= -180 && lng <= 180, "Invalid longitude: %s", lng);
+    }
+
+    private static List<Location> locations(LocationStore locations, int[] ordinals) {
+        List<Location> ret = new ArrayList<>(ordinals.length);
+        for (int ordinal : ordinals) {
+            ret.add(locations.get(ordinal));
+        }
+        return ret;
+    }
+
+    /**
+     * Resolves all the given locations, like {@link #resolve(String)} would, on a shared pool with one worker per
+     * processor
+     * @return The resolved locations (or null) in the order of the input
+     */
+    public List<Location> resolveAll(List<String> freeTextLocations) {
+        return resolveAll(freeTextLocations, ParallelLoop.defaultPool());
+    }
 
-        List<Set<Location>> westernOrder = new ArrayList<>(candidates);
-        List<Set<Location>> invertedOrder = new ArrayList<>(candidates);
-        Collections.reverse(invertedOrder);
+    /**
+     * Resolves all the given locations, like {@link #resolve(String)} would, using the given pool. Inputs that
+     * tokenize to the same tokens are resolved only once, but each of them gets its own {@link Location} object
+     * @return The resolved locations (or null) in the order of the input
+     */
+    public List<Location> resolveAll(List<String> freeTextLocations, ForkJoinPool pool) {
+        return Arrays.asList(resolveAll(freeTextLocations.toArray(new String[freeTextLocations.size()]), pool));
+    }
 
-        pickoutLocationsWithConsistency(consistent, inconsistent, westernOrder);
+    /**
+     * Array version of {@link #resolveAll(List)}
+     */
+    public Location[] resolveAll(String[] freeTextLocations) {
+        return resolveAll(freeTextLocations, ParallelLoop.defaultPool());
+    }
 
-        pickoutLocationsWithConsistency(consistent, inconsistent, invertedOrder);
+    /**
+     * Array version of {@link #resolveAll(List, ForkJoinPool)}
+     */
+    public Location[] resolveAll(final String[] freeTextLocations, ForkJoinPool pool) {
+        int n = freeTextLocations.length;
+        final Resolver current = resolver;
+        final TokenSequence[] queries = new TokenSequence[n];
+        ParallelLoop.run(pool, n, new ParallelLoop.Body() {
+            @Override
+            public void run(int i) {
+                TokenBuffer tokenizedQuery = tokenBuffers.get();
+                long start = start();
+                tokenizer.tokenize(freeTextLocations[i], tokenizedQuery);
+                queries[i] = TokenSequence.copyOf(current.ids(tokenizedQuery, start), tokenizedQuery.size());
+            }
+        });
 
+        // Feeds are repetitive, so only resolve each distinct query once
+        Map<TokenSequence, Integer> distinctIds = new HashMap<>();
+        final List<TokenSequence> distinct = new ArrayList<>();
+        int[] distinctOf = new int[n];
+        for (int i = 0; i < n; i++) {
+            Integer id = distinctIds.get(queries[i]);
+            if (id == null) {
+                id = distinct.size();
+                distinctIds.put(queries[i], id);
+                distinct.add(queries[i]);
+            }
+            distinctOf[i] = id;
+        }
 
-        Comparator<Location> byPriorDesc = new Comparator<Location>() {
+        final int[] resolved = new int[distinct.size()];
+        ParallelLoop.run(pool, resolved.length, new ParallelLoop.Body() {
             @Override
-            public int compare(Location location1, Location location2) {
-                // Descending!
-                return -1 * location1.getWeight().compareTo(location2.getWeight());
+            public void run(int i) {
+                TokenSequence query = distinct.get(i);
+                resolved[i] = current.cache == null
+                        ? current.resolve(query.tokens, query.tokens.length) : current.resolveCached(query);
             }
-        };
+        });
+
+        final int[] ordinals = new int[n];
+        for (int i = 0; i < n; i++) {
+            ordinals[i] = resolved[distinctOf[i]];
+        }
+        if (current.fuzzy != null) {
+            // Unknown tokens are all the same id, so misspelled inputs are retried one by one
+            ParallelLoop.run(pool, n, new ParallelLoop.Body() {
+                @Override
+                public void run(int i) {
+                    if (ordinals[i] == NONE && Ints.contains(queries[i].tokens, TokenDictionary.UNKNOWN)) {
+                        TokenBuffer tokenizedQuery = tokenBuffers.get();
+                        tokenizer.tokenize(freeTextLocations[i], tokenizedQuery);
+                        ordinals[i] = current.resolveFuzzy(tokenizedQuery, queries[i].tokens, queries[i].tokens.length);
+                    }
+                }
+            });
+        }
 
+        Location[] ret = new Location[n];
+        for (int i = 0; i < n; i++) {
+            ret[i] = ordinals[i] == NONE ? null : current.index.locations.get(ordinals[i]);
+        }
+        return ret;
+    }
 
-        if (consistent.size() > 0) {
-            List<Location> finalCandidates = new ArrayList<>(consistent);
-            Collections.sort(finalCandidates, byPriorDesc);
-            return pickOne(tokenizedQuery, finalCandidates);
-        } else if (inconsistent.size() > 0) {
-            // Fallback to inconsistent matches
-            List<Location> finalCandidates = new ArrayList<>(inconsistent);
-            Collections.sort(finalCandidates, byPriorDesc);
-            return pickOne(tokenizedQuery, finalCandidates);
-        } else {
-            // No candidates
-            return null;
+    public List<Set<Location>> match(final ImmutableList<String> input) {
+        Resolver current = resolver;
+        List<Set<Location>> ret = new ArrayList<>();
+        TokenTrie keys = current.index.keys;
+        for (int key : current.candidates(current.index.tokens.ids(input), input.size())) {
+            Set<Location> locations = new HashSet<>();
+            for (int p = keys.postingStart(key); p < keys.postingEnd(key); p++) {
+                locations.add(current.index.locations.get(keys.posting(p)));
+            }
+            ret.add(locations);
         }
+        return ret;
     }
 
-    private Location pickOne(List<String> tokenizedQuery, List<Location> finalCandidates) {
-        Location firstCandidate = finalCandidates.get(0);
+    /**
+     * @param tokens Token ids of the query
+     * @param length Number of tokens
+     * @return The keys matched greedily (longest first) from left to right. Package-private for benchmarks
+     */
+    int[] candidates(final int[] tokens, int length) {
+        return resolver.candidates(tokens, length);
+    }
 
-        // Special rules that improve the results
-        // TODO better documentation
-        if (loc5128581 != null && firstCandidate.getGeonameId() == 5128638 && (tokenizedQuery.contains("NY"))) {
-            return loc5128581;
-        } else if (loc5368361 != null && firstCandidate.getGeonameId() == 4331987 && tokenizedQuery.contains("LA")) {
-            return loc5368361;
+    /**
+     * @param candidates Matched keys, in the order they appear in the query
+     * @return Ordinal of the chosen location, or {@link #NONE}. Package-private for benchmarks
+     */
+    int disambiguate(int[] tokenizedQuery, int length, int[] candidates) {
+        return resolver.disambiguate(tokenizedQuery, length, candidates);
+    }
+
+    /**
+     * @return Start time for a timer, if metrics are enabled
+     */
+    private long start() {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+
+    private static boolean contains(int[] tokens, int length, int token) {
+        if (token == TokenDictionary.UNKNOWN) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (tokens[i] == token) {
+                return true;
+            }
         }
-        return finalCandidates.get(0);
+        return false;
     }
 
 
-    private void pickoutLocationsWithConsistency(Set<Location> consistent, Set<Location> inconsistent, List<Set<Location>> candidates) {
-        for (Location finest : candidates.get(0)) {
-            Queue<Set<Location>> queue = new LinkedList<>(candidates.subList(1, candidates.size()));
-            while (true) {
-                Set<Location> coarser = queue.poll();
-                if (coarser == null || coarser.size() <= 0) {
-                    // We exhausted the coarser location candidates
-                    // successfully finding parents. This is a proper match
-                    consistent.add(finest);
-                    break;
+    /**
+     * Resolves queries on one version of the index, with the result cache and the typo table that go with it
+     */
+    private class Resolver {
+        private final GeoIndex index;
+        // Null if caching is disabled
+        private final ResultCache cache;
+        // Null if typo tolerance is disabled
+        private final FuzzyTokenIndex fuzzy;
+
+        // Resolvers of the weighting profiles, by name
+        private final ImmutableMap<String, Resolver> profiles;
+
+        // Ordinals of SPECIAL_RULE_TO and token ids of SPECIAL_RULE_TOKENS
+        private final int[] ruleTargets;
+        private final int[] ruleTokens;
+
+        private Resolver(GeoIndex index, FuzzyTokenIndex fuzzy, ImmutableMap<String, Resolver> profiles) {
+            this.index = index;
+            this.cache = cacheSize == 0 ? null : new ResultCache(cacheSize);
+            this.fuzzy = fuzzy;
+            this.profiles = profiles;
+            ruleTargets = new int[SPECIAL_RULE_TO.length];
+            ruleTokens = new int[SPECIAL_RULE_TO.length];
+            for (int i = 0; i < ruleTargets.length; i++) {
+                ruleTargets[i] = index.locations.ordinalOf(SPECIAL_RULE_TO[i]);
+                ruleTokens[i] = index.tokens.id(SPECIAL_RULE_TOKENS[i]);
+            }
+        }
+
+        private Resolver profile(String name) {
+            Resolver ret = profiles.get(Preconditions.checkNotNull(name));
+            Preconditions.checkArgument(ret != null, "No such profile: %s", name);
+            return ret;
+        }
+
+        private int[] candidates(int[] tokens, int length) {
+            return candidates(tokens, length, null);
+        }
+
+        private int resolveCached(TokenSequence query) {
+            int ret = cache.get(query);
+            if (ret == ResultCache.ABSENT) {
+                ret = resolve(query.tokens, query.tokens.length);
+                cache.put(query, ret);
+            }
+            return ret;
+        }
+
+        /**
+         * @return Ordinal of the location the query resolves to, or {@link #NONE}
+         */
+        private int resolve(int[] tokens, int length) {
+            long start = start();
+            int[] candidates = candidates(tokens, length);
+            if (metrics != null) {
+                GeocoderMetrics.time(metrics.match, start);
+                metrics.candidates.update(candidates.length);
+                for (int key : candidates) {
+                    metrics.candidateSetSize.update(index.keys.postingEnd(key) - index.keys.postingStart(key));
                 }
-                Location parent = Iterables.find(coarser, new Contains(finest), null);
-                if (parent != null) {
-                    // Found a parent, good
+            }
+            return disambiguate(tokens, length, candidates);
+        }
+
+        /**
+         * Retries a query that matched nothing with its unknown tokens replaced by known tokens within a small edit
+         * distance (see {@link FuzzyTokenIndex}). Of the replacements that match something, the one with the fewest
+         * edits wins, then the one that resolves to the heavier location
+         * @param tokens Token ids of the query, not modified
+         * @return Ordinal of the chosen location, or {@link #NONE}
+         */
+        private int resolveFuzzy(TokenBuffer tokenizedQuery, int[] tokens, int length) {
+            int[] positions = new int[length];
+            int[][] ids = new int[length][];
+            int[][] distances = new int[length][];
+            int[] counts = new int[length];
+            int misspelled = 0;
+            for (int i = 0; i < length; i++) {
+                if (tokens[i] != TokenDictionary.UNKNOWN) {
                     continue;
-                } else {
-                    // Did not find a parent.
-                    // Not a consistent match
-                    inconsistent.add(finest);
+                }
+                ids[misspelled] = new int[FuzzyTokenIndex.MAX_CORRECTIONS];
+                distances[misspelled] = new int[FuzzyTokenIndex.MAX_CORRECTIONS];
+                counts[misspelled] = fuzzy.corrections(tokenizedQuery.chars(), tokenizedQuery.start(i),
+                        tokenizedQuery.length(i), ids[misspelled], distances[misspelled]);
+                if (counts[misspelled] > 0) {
+                    positions[misspelled++] = i;
+                }
+            }
+            if (misspelled == 0) {
+                return NONE;
+            }
+
+            int[] corrected = Arrays.copyOf(tokens, length);
+            // Index of the correction used per misspelled token, advanced like an odometer (closest corrections first)
+            int[] used = new int[misspelled];
+            int best = NONE;
+            int bestEdits = Integer.MAX_VALUE;
+            for (int combination = 0; combination < MAX_FUZZY_COMBINATIONS; combination++) {
+                int edits = 0;
+                for (int k = 0; k < misspelled; k++) {
+                    corrected[positions[k]] = ids[k][used[k]];
+                    edits += distances[k][used[k]];
+                }
+                if (edits <= bestEdits) {
+                    int[] candidates = candidates(corrected, length);
+                    int ordinal = candidates.length == 0 ? NONE : choose(corrected, length, candidates);
+                    if (ordinal != NONE && (edits < bestEdits || heavier(ordinal, best))) {
+                        best = ordinal;
+                        bestEdits = edits;
+                    }
+                }
+                int k = 0;
+                while (k < misspelled && ++used[k] == counts[k]) {
+                    used[k++] = 0;
+                }
+                if (k == misspelled) {
                     break;
                 }
             }
+            if (metrics != null && best != NONE) {
+                metrics.fuzzyMatch.inc();
+            }
+            return best;
         }
-    }
 
+        private boolean heavier(int ordinal, int than) {
+            return TokenTrie.ranksBefore(index.locations, ordinal, than);
+        }
 
-    public List<Set<Location>> match(final ImmutableList<String> input) {
-        List<Set<Location>> candidates = new ArrayList<>();
-        ImmutableList<String> probe = input;
-        while(true){
-            ConsumedMatch consumed_match = searchGreedily(probe);
-            Integer consumedUpTo = consumed_match.consumedUpto;
-            Set<Location> match = consumed_match.match;
-            if(!match.isEmpty()){
-                probe = probe.subList(consumedUpTo, probe.size());
-                candidates.add(match);
-            }else if(probe.size() > 1){
-                // Drop the left most token
-                probe = probe.subList(1,probe.size());
-            }else{
-                // Can't match anymore
-                break;
+        /**
+         * Same as {@link #disambiguate}, without recording metrics
+         */
+        private int choose(int[] tokens, int length, int[] candidates) {
+            Choice choice = new Choice(index.locations);
+            index.pickoutLocationsWithConsistency(choice, candidates, 0);
+            if (candidates.length > 1) {
+                index.pickoutLocationsWithConsistency(choice, candidates, candidates.length - 1);
+            }
+            int first = choice.consistent != NONE ? choice.consistent : choice.inconsistent;
+            return first == NONE ? NONE : pickOne(tokens, length, first);
+        }
+
+        /**
+         * @return The token ids of the tokenized query
+         */
+        private int[] ids(TokenBuffer tokenizedQuery, long tokenizeStart) {
+            int[] tokens = index.tokens.ids(tokenizedQuery);
+            if (metrics != null) {
+                GeocoderMetrics.time(metrics.tokenize, tokenizeStart);
+                metrics.tokens.update(tokenizedQuery.size());
+            }
+            return tokens;
+        }
+
+        /**
+         * @param candidates Matched keys, in the order they appear in the query
+         * @return Ordinal of the chosen location, or {@link #NONE}
+         */
+        private int disambiguate(int[] tokenizedQuery, int length, int[] candidates) {
+            if (candidates.length <= 0) {
+                if (metrics != null) {
+                    metrics.noMatch.inc();
+                }
+                return NONE;
+            }
+
+            long start = start();
+            Choice choice = new Choice(index.locations);
+
+            // Western order (finest first)
+            index.pickoutLocationsWithConsistency(choice, candidates, 0);
+
+            if (candidates.length > 1) {
+                // Inverted order
+                index.pickoutLocationsWithConsistency(choice, candidates, candidates.length - 1);
+            }
+            if (metrics != null) {
+                GeocoderMetrics.time(metrics.consistency, start);
+            }
+
+            int first;
+            if (choice.consistent != NONE) {
+                first = choice.consistent;
+            } else if (choice.inconsistent != NONE) {
+                // Fallback to inconsistent matches
+                first = choice.inconsistent;
+            } else {
+                // No candidates
+                if (metrics != null) {
+                    metrics.noMatch.inc();
+                }
+                return NONE;
+            }
+
+            if (metrics == null) {
+                return pickOne(tokenizedQuery, length, first);
+            }
+            start = System.nanoTime();
+            int ret = pickOne(tokenizedQuery, length, first);
+            GeocoderMetrics.time(metrics.pickOne, start);
+            Counter outcome = first == choice.consistent ? metrics.consistent : metrics.inconsistentFallback;
+            outcome.inc();
+            if (ret != first) {
+                metrics.specialRule.inc();
+            }
+            return ret;
+        }
+
+        private int pickOne(int[] tokenizedQuery, int length, int firstCandidate) {
+            int firstCandidateId = index.locations.geonameId(firstCandidate);
+
+            for (int i = 0; i < SPECIAL_RULE_FROM.length; i++) {
+                if (ruleTargets[i] != NONE && firstCandidateId == SPECIAL_RULE_FROM[i]
+                        && contains(tokenizedQuery, length, ruleTokens[i])) {
+                    return ruleTargets[i];
+                }
             }
+            return firstCandidate;
+        }
+
+        private List<Candidate> extractAll(int[] tokens, int length) {
+            int[] spans = new int[length * 2];
+            int[] mentions = index.automaton().matches(tokens, length, spans);
+            LocationStore locations = index.locations;
+            List<Candidate> ret = new ArrayList<>(mentions.length);
+            for (int i = 0; i < mentions.length; i++) {
+                // The mentions around this one, [first, last]
+                int first = i;
+                while (first > 0 && spans[i * 2] - spans[first * 2 - 1] <= EXTRACT_CONTEXT) {
+                    first--;
+                }
+                int last = i;
+                while (last + 1 < mentions.length && spans[last * 2 + 2] - spans[i * 2 + 1] <= EXTRACT_CONTEXT) {
+                    last++;
+                }
+
+                TokenTrie keys = index.keys;
+                int best = NONE;
+                int bestContained = -1;
+                for (int p = keys.postingStart(mentions[i]); p < keys.postingEnd(mentions[i]); p++) {
+                    int ordinal = keys.posting(p);
+                    int contained = 0;
+                    for (int j = first; j <= last; j++) {
+                        if (j != i && index.parents.hasParent(mentions[j], ordinal)) {
+                            contained++;
+                        }
+                    }
+                    if (contained > bestContained || (contained == bestContained && heavier(ordinal, best))) {
+                        best = ordinal;
+                        bestContained = contained;
+                        if (contained == last - first) {
+                            // Contained by every mention around it; the rest of the postings are lighter
+                            break;
+                        }
+                    }
+                }
+                // Same special rules as resolve, applied to the words around the mention
+                int[] context = Arrays.copyOfRange(tokens, spans[first * 2], spans[last * 2 + 1]);
+                best = pickOne(context, context.length, best);
+                ret.add(new Candidate(locations.get(best), locations.weight(best), bestContained == last - first,
+                        spans[i * 2], spans[i * 2 + 1]));
+            }
+            return ret;
+        }
+
+        /**
+         * @param spans If not null, receives the token range [start, end) of the i-th match at [2i, 2i + 1]
+         */
+        private int[] candidates(final int[] tokens, int length, int[] spans) {
+            int[] candidates = new int[length];
+            int count = 0;
+            int from = 0;
+            while (from < length) {
+                ConsumedMatch consumedMatch = index.keys.longestMatch(tokens, from, length);
+                if (consumedMatch != null) {
+                    if (spans != null) {
+                        spans[count * 2] = from;
+                        spans[count * 2 + 1] = from + consumedMatch.consumedUpto;
+                    }
+                    candidates[count++] = consumedMatch.match;
+                    from += consumedMatch.consumedUpto;
+                } else {
+                    // Drop the left most token
+                    from++;
+                }
+            }
+            return Arrays.copyOf(candidates, count);
         }
-        return candidates;
     }
 
-    private ConsumedMatch searchGreedily(final ImmutableList<String> input) {
-        for (int i = input.size(); i >= 1; i--) {
-            ImmutableList<String> probe_key = input.subList(0, i);
-            Set<Location> candidates = index.get(probe_key);
-            if (candidates != null) {
-                return new ConsumedMatch(i, candidates);
+
+    /**
+     * Options for creating a {@link Geocoder}. By default the index is built from the bundled gazetteer and results
+     * aren't cached
+     */
+    public static class Builder {
+        private ImmutableMap<ImmutableList<String>, Set<Location>> index;
+        private File snapshot;
+        private int cacheSize;
+        private MetricRegistry metrics;
+        private int maxEdits;
+        private Set<String> countries;
+        private Set<FeatureCodeCategory> categories;
+        private boolean keepNames = true;
+        private boolean verifySnapshots = true;
+        private final Map<String, ImmutableMap<String, Double>> profiles = new LinkedHashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Use the given index (as built by {@link GeoDbIndexer}) instead of the bundled one
+         */
+        public Builder index(ImmutableMap<ImmutableList<String>, Set<Location>> index) {
+            this.index = Preconditions.checkNotNull(index);
+            this.snapshot = null;
+            return this;
+        }
+
+        /**
+         * Open the given snapshot (see {@link #writeSnapshot(File)}) instead of building the bundled index
+         */
+        public Builder snapshot(File snapshot) {
+            this.snapshot = Preconditions.checkNotNull(snapshot);
+            this.index = null;
+            return this;
+        }
+
+        /**
+         * Only index the locations in these countries, e.g. "GB", "US". Rows of other countries are skipped while
+         * the bundled gazetteer is parsed, which makes building the geocoder faster and the geocoder much smaller.
+         * Weights stay the same as in the full index. Can't be combined with {@link #index} or {@link #snapshot}
+         * @param pclCodes ISO 3166 country codes, as used by Geonames
+         */
+        public Builder countries(String... pclCodes) {
+            Preconditions.checkArgument(pclCodes.length > 0, "No countries");
+            this.countries = ImmutableSet.copyOf(pclCodes);
+            return this;
+        }
+
+        /**
+         * Only index the locations of these categories, e.g. {@link FeatureCodeCategory#PCL} and
+         * {@link FeatureCodeCategory#ADM1} to resolve countries and states only. Like {@link #countries}, rows of
+         * other categories are skipped while parsing
+         */
+        public Builder categories(FeatureCodeCategory first, FeatureCodeCategory... rest) {
+            this.categories = Sets.immutableEnumSet(first, rest);
+            return this;
+        }
+
+        /**
+         * Add a weighting profile: another set of weights of the same locations, calibrated with the given online
+         * activity shares instead of the bundled ones. E.g. a profile with a large share for BR prefers Brazilian
+         * places over their namesakes elsewhere. Select it per call with {@link Geocoder#resolve(String, String)}. Each
+         * profile costs a double per location (and a result cache of its own if caching is enabled).
+         * <p/>
+         * Weights are calibrated with the populations of all countries, which the bundled index and its snapshots
+         * keep even if they are restricted by {@link #countries} or {@link #categories}. An index passed to
+         * {@link #index} only has the populations of the countries it has a PCL location of, so the profile weights of
+         * an index built that way with a filter differ from those of the full index
+         * @param pclToActivityShare Country code -> share of the online activity, as in online.activity.share.txt
+         * @throws IllegalArgumentException from {@link #build()} if a country of the shares has locations in the index
+         * but no population
+         */
+        public Builder profile(String name, Map<String, Double> pclToActivityShare) {
+            profiles.put(Preconditions.checkNotNull(name), ImmutableMap.copyOf(pclToActivityShare));
+            return this;
+        }
+
+        /**
+         * Drop the names of the locations once they are indexed, so that {@link Location#getNames()} of the results
+         * is empty. Names aren't needed to resolve queries and are a large part of the index that is kept in
+         * memory, so this is worth it if the names aren't used
+         */
+        public Builder dropNames() {
+            this.keepNames = false;
+            return this;
+        }
+
+        /**
+         * Don't verify the checksum of snapshots opened by {@link #build()} and {@link Geocoder#reload(File)}, which
+         * takes a pass over the whole file. Snapshots are still checked for their version and for sections out of
+         * bounds, but corrupt contents may go unnoticed, so only use this for files that are known to be intact
+         */
+        public Builder skipSnapshotChecksum() {
+            this.verifySnapshots = false;
+            return this;
+        }
+
+        /**
+         * Cache the results of up to this many distinct queries (after tokenization), including queries that don't
+         * resolve to anything. 0 disables caching, which is the default
+         */
+        public Builder cacheSize(int cacheSize) {
+            Preconditions.checkArgument(cacheSize >= 0, "Negative cache size: %s", cacheSize);
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        /**
+         * Retry queries that don't match anything with misspelled tokens corrected, e.g. "Londn" or "San Fransisco".
+         * Tokens of 4 to 7 characters are corrected by at most one edit (insertion, deletion, substitution or
+         * transposition), longer ones by up to maxEdits. Queries that match exactly are not affected, nor are
+         * results of {@link #resolveTopK}. Needs an extra table of around 8 bytes per deletion variant of every
+         * token, built when the geocoder is built. 0 disables it, which is the default
+         * @param maxEdits 0, 1 or 2
+         */
+        public Builder typoTolerance(int maxEdits) {
+            Preconditions.checkArgument(maxEdits >= 0 && maxEdits <= 2, "Edit distance must be 0, 1 or 2: %s", maxEdits);
+            this.maxEdits = maxEdits;
+            return this;
+        }
+
+        /**
+         * Record timings of the stages of {@link #resolve} and counts of their outcomes in the given registry, named
+         * {@code net.peerindex.geocoder.Geocoder.*}: timers {@code tokenize}, {@code match},
+         * {@code pickoutLocationsWithConsistency} and {@code pickOne}, histograms {@code tokens}, {@code candidates}
+         * and {@code candidateSetSize}, counters {@code consistent}, {@code inconsistentFallback},
+         * {@code specialRule}, {@code noMatch} and {@code fuzzyMatch}. Disabled by default
+         */
+        public Builder metrics(MetricRegistry metrics) {
+            this.metrics = Preconditions.checkNotNull(metrics);
+            return this;
+        }
+
+        /**
+         * @throws IOException if the snapshot can't be read
+         */
+        public Geocoder build() throws IOException {
+            LocationFilter filter = countries == null && categories == null
+                    ? LocationFilter.ALL : LocationFilter.of(countries, categories);
+            Preconditions.checkState(filter.isAll() || (snapshot == null && index == null),
+                    "Countries and categories only apply to the bundled gazetteer");
+            GeoIndex geoIndex;
+            if (snapshot != null) {
+                geoIndex = IndexSnapshot.read(snapshot, keepNames, verifySnapshots);
+            } else if (index != null) {
+                geoIndex = GeoIndex.of(index, keepNames);
+            } else {
+                geoIndex = buildDefaultIndex(filter, keepNames);
             }
+            return new Geocoder(geoIndex, cacheSize, metrics == null ? null : new GeocoderMetrics(metrics), maxEdits,
+                    keepNames, verifySnapshots, ImmutableMap.copyOf(profiles));
         }
-        return new ConsumedMatch(-1, new HashSet<Location>());
     }
 
+    /**
+     * Keeps track of the best consistent and inconsistent candidates seen so far. Candidates are ranked by weight,
+     * ties are broken by geonameId so that the outcome doesn't depend on iteration order. Inconsistent candidates
+     * only matter until a consistent one is found
+     */
+    static class Choice implements Offers {
+        private final LocationStore locations;
+        // Ordinals, or NONE
+        int consistent = NONE;
+        int inconsistent = NONE;
+
+        Choice(LocationStore locations) {
+            this.locations = locations;
+        }
+
+        @Override
+        public void offer(int ordinal, boolean isConsistent, int key) {
+            if (isConsistent) {
+                consistent = better(consistent, ordinal);
+            } else {
+                inconsistent = better(inconsistent, ordinal);
+            }
+        }
+
+        @Override
+        public boolean settled(int ordinal) {
+            return consistent != NONE && !TokenTrie.ranksBefore(locations, ordinal, consistent);
+        }
 
+        private int better(int current, int candidate) {
+            // Ordinals are in geonameId order
+            return current == NONE || TokenTrie.ranksBefore(locations, candidate, current) ? candidate : current;
+        }
+    }
 
     /**
-     * Does the parent contain the child?
+     * The best k consistent and the best k inconsistent candidates seen so far, each kept sorted by the order of
+     * {@link Choice}. A location can be offered more than once (under the finest and the coarsest key); it is ranked
+     * once, as consistent if it was consistent under either
      */
-    private class Contains implements Predicate<Location> {
-        private final Location child;
+    private static class TopK implements Offers {
+        private final LocationStore locations;
+        private final int k;
+        // Consistent candidates in [0, k), inconsistent ones in [k, 2k). rank() merges them into the front
+        private final int[] ordinals;
+        private final int[] keys;
+        private final boolean[] consistent;
+        private int consistentSize;
+        private int inconsistentSize;
+        private int size;
 
-        public Contains(Location child) {
-            this.child = child;
+        private TopK(LocationStore locations, int k) {
+            this.locations = locations;
+            this.k = k;
+            ordinals = new int[k * 2];
+            keys = new int[k * 2];
+            consistent = new boolean[k * 2];
         }
 
         @Override
-        public boolean apply(Location parent) {
-            if (child.getFeatureCodeCategory().compareTo(parent.getFeatureCodeCategory()) <= 0) {
-                return false;
-            }
-            for (FeatureCodeCategory featureCodeCategory : EnumSet.range(FeatureCodeCategory.PCL, parent.getFeatureCodeCategory())) {
-                String childCode = child.getCodes().get(featureCodeCategory);
-                String parentCode = parent.getCodes().get(featureCodeCategory);
-                if (childCode == null || parentCode == null) {
-                    continue;
-                } else if (!childCode.equals(parentCode)) {
-                    return false;
+        public void offer(int ordinal, boolean isConsistent, int key) {
+            if (isConsistent) {
+                consistentSize = insert(0, consistentSize, ordinal, key);
+            } else {
+                inconsistentSize = insert(k, inconsistentSize, ordinal, key);
+            }
+        }
+
+        /**
+         * Inserts into the sorted range [from, from + size), dropping the worst if it is full
+         * @return New size of the range
+         */
+        private int insert(int from, int size, int ordinal, int key) {
+            int end = from + size;
+            for (int i = from; i < end; i++) {
+                if (ordinals[i] == ordinal) {
+                    return size;
+                }
+            }
+            if (size == k && !better(ordinal, ordinals[end - 1])) {
+                return size;
+            }
+            int i = size == k ? end - 1 : end;
+            for (; i > from && better(ordinal, ordinals[i - 1]); i--) {
+                ordinals[i] = ordinals[i - 1];
+                keys[i] = keys[i - 1];
+            }
+            ordinals[i] = ordinal;
+            keys[i] = key;
+            return Math.min(size + 1, k);
+        }
+
+        @Override
+        public boolean settled(int ordinal) {
+            // Only consistent candidates are ranked once k of them are found
+            return consistentSize == k && !better(ordinal, ordinals[k - 1]);
+        }
+
+        private boolean better(int candidate, int current) {
+            return TokenTrie.ranksBefore(locations, candidate, current);
+        }
+
+        /**
+         * Puts the consistent candidates first, followed by the inconsistent ones that weren't also consistent
+         * @return Number of ranked candidates
+         */
+        private int rank() {
+            size = consistentSize;
+            Arrays.fill(consistent, 0, size, true);
+            for (int i = k; i < k + inconsistentSize && size < k; i++) {
+                if (indexOf(ordinals[i], consistentSize) < 0) {
+                    ordinals[size] = ordinals[i];
+                    keys[size] = keys[i];
+                    consistent[size] = false;
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Replaces the best candidate with another location. If the location is further down the ranking, it is moved
+         * up with its key and consistency; otherwise it stands for the key of the replaced candidate
+         * @param isConsistent Consistency of the location under that key
+         */
+        private void replaceFirst(int ordinal, boolean isConsistent) {
+            int existing = indexOf(ordinal, size);
+            if (existing > 0) {
+                keys[0] = keys[existing];
+                consistent[0] = consistent[existing];
+                System.arraycopy(ordinals, existing + 1, ordinals, existing, size - existing - 1);
+                System.arraycopy(keys, existing + 1, keys, existing, size - existing - 1);
+                System.arraycopy(consistent, existing + 1, consistent, existing, size - existing - 1);
+                size--;
+            } else {
+                consistent[0] = isConsistent;
+            }
+            ordinals[0] = ordinal;
+        }
+
+        private int indexOf(int ordinal, int size) {
+            for (int i = 0; i < size; i++) {
+                if (ordinals[i] == ordinal) {
+                    return i;
                 }
             }
-            return true;
+            return -1;
         }
     }
 }
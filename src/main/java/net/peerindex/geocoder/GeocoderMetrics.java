@@ -0,0 +1,75 @@
+package net.peerindex.geocoder;
+
+import com.codahale.metrics.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of {@link Geocoder#resolve}, registered under {@code net.peerindex.geocoder.Geocoder.*}:
+ * <ul>
+ * <li>Timers of the stages: {@code tokenize}, {@code match}, {@code pickoutLocationsWithConsistency} and
+ * {@code pickOne}</li>
+ * <li>Histograms of the number of {@code tokens} per query, the number of matched {@code candidates} per query and
+ * the number of locations per matched key ({@code candidateSetSize})</li>
+ * <li>Counters of the outcomes: {@code consistent}, {@code inconsistentFallback}, {@code specialRule} (the result was
+ * changed by a special rule), {@code noMatch} (nothing matched exactly) and {@code fuzzyMatch} (resolved after
+ * correcting misspelled tokens, see {@link Geocoder.Builder#typoTolerance})</li>
+ * </ul>
+ * Counters are striped (metrics-core counters are LongAdders) and timers and histograms use a
+ * {@link StripedReservoir}, so recording doesn't become a point of contention.
+ */
+class GeocoderMetrics {
+    final Timer tokenize;
+    final Timer match;
+    final Timer consistency;
+    final Timer pickOne;
+    final Histogram tokens;
+    final Histogram candidates;
+    final Histogram candidateSetSize;
+    final Counter consistent;
+    final Counter inconsistentFallback;
+    final Counter specialRule;
+    final Counter noMatch;
+    final Counter fuzzyMatch;
+
+    GeocoderMetrics(MetricRegistry registry) {
+        tokenize = timer(registry, "tokenize");
+        match = timer(registry, "match");
+        consistency = timer(registry, "pickoutLocationsWithConsistency");
+        pickOne = timer(registry, "pickOne");
+        tokens = histogram(registry, "tokens");
+        candidates = histogram(registry, "candidates");
+        candidateSetSize = histogram(registry, "candidateSetSize");
+        consistent = registry.counter(name("consistent"));
+        inconsistentFallback = registry.counter(name("inconsistentFallback"));
+        specialRule = registry.counter(name("specialRule"));
+        noMatch = registry.counter(name("noMatch"));
+        fuzzyMatch = registry.counter(name("fuzzyMatch"));
+    }
+
+    static void time(Timer timer, long startNanos) {
+        timer.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static String name(String metric) {
+        return MetricRegistry.name(Geocoder.class, metric);
+    }
+
+    // Geocoders sharing a registry share their metrics
+
+    private static Timer timer(MetricRegistry registry, String metric) {
+        Metric existing = registry.getMetrics().get(name(metric));
+        if (existing instanceof Timer) {
+            return (Timer) existing;
+        }
+        return registry.register(name(metric), new Timer(new StripedReservoir()));
+    }
+
+    private static Histogram histogram(MetricRegistry registry, String metric) {
+        Metric existing = registry.getMetrics().get(name(metric));
+        if (existing instanceof Histogram) {
+            return (Histogram) existing;
+        }
+        return registry.register(name(metric), new Histogram(new StripedReservoir()));
+    }
+}
@@ -0,0 +1,327 @@
+package net.peerindex.geocoder;
+
+import com.codahale.metrics.*;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+
+/**
+ * Serves a {@link Geocoder} over HTTP, so that services on other platforms can share one instance per host. Built on
+ * the HTTP server of the JDK ({@code com.sun.net.httpserver}), which keeps connections alive between requests.
+ * <ul>
+ * <li>{@code GET /resolve?q=London} returns {@code {"query":"London","location":{...}}} (location is null if the
+ * query couldn't be resolved)</li>
+ * <li>{@code POST /resolve} takes one JSON object per line with the query as "q", and streams one result per line
+ * back in the same order, as the GET response. Lines without a query get a null query and location. Results are
+ * written while the request is read, so clients that only read the response once they have sent the whole request
+ * should keep batches to a few thousand lines</li>
+ * <li>{@code GET /metrics} returns the metrics of the registry as one JSON object (see {@link #metrics})</li>
+ * </ul>
+ * Requests are served by a fixed pool of workers. Up to a bounded number of requests wait for a worker; beyond that
+ * requests are answered with 503 right away, so that a burst doesn't pile up latency (or memory) and clients can back
+ * off or go to another host. /metrics is answered even then.
+ */
+public class GeocoderServer {
+    private static final String JSON = "application/json; charset=utf-8";
+    private static final String NDJSON = "application/x-ndjson; charset=utf-8";
+
+    private final Geocoder geocoder;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int queueSize = 100;
+    private MetricRegistry metrics = new MetricRegistry();
+
+    private HttpServer server;
+    private ExecutorService workers;
+    // Requests being served or waiting for a worker
+    private Semaphore admitted;
+    private Timer requests;
+    private Counter rejected;
+
+    public GeocoderServer(Geocoder geocoder) {
+        this.geocoder = Preconditions.checkNotNull(geocoder);
+    }
+
+    public GeocoderServer threads(int threads) {
+        Preconditions.checkArgument(threads > 0, "Not a positive number of threads: %s", threads);
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param queueSize Number of requests that may wait for a worker before requests are rejected with 503
+     */
+    public GeocoderServer queueSize(int queueSize) {
+        Preconditions.checkArgument(queueSize >= 0, "Negative queue size: %s", queueSize);
+        this.queueSize = queueSize;
+        return this;
+    }
+
+    /**
+     * The registry served at /metrics. The server registers a timer of the requests it served
+     * ({@code net.peerindex.geocoder.GeocoderServer.requests}) and a counter of the ones it rejected
+     * ({@code ...rejected}). Pass the registry the geocoder was built with (see {@link Geocoder.Builder#metrics}) to
+     * serve its metrics too. By default a registry of the server's own metrics
+     */
+    public GeocoderServer metrics(MetricRegistry metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics);
+        return this;
+    }
+
+    /**
+     * Starts serving in the background
+     * @param address Port 0 for any free port (see {@link #port()})
+     */
+    public synchronized GeocoderServer start(InetSocketAddress address) throws IOException {
+        Preconditions.checkState(server == null, "Already started");
+        requests = metrics.timer(MetricRegistry.name(GeocoderServer.class, "requests"));
+        rejected = metrics.counter(MetricRegistry.name(GeocoderServer.class, "rejected"));
+        admitted = new Semaphore(threads + queueSize);
+        // Admission is bounded by the semaphore, so the queue never grows beyond queueSize
+        workers = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("geocoder-server-%d").build());
+
+        server = HttpServer.create(address, 0);
+        server.createContext("/resolve", new Admitted(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                resolve(exchange);
+            }
+        }));
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serveMetrics(exchange);
+            }
+        });
+        // Handlers run on the dispatcher thread and only hand requests over to the workers
+        server.setExecutor(null);
+        server.start();
+        return this;
+    }
+
+    /**
+     * @return The port the server listens on
+     */
+    public synchronized int port() {
+        Preconditions.checkState(server != null, "Not started");
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests, waits up to the given number of seconds for the ones being served and stops
+     */
+    public synchronized void stop(int delaySeconds) {
+        if (server != null) {
+            server.stop(delaySeconds);
+            workers.shutdownNow();
+            server = null;
+        }
+    }
+
+    private void resolve(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestURI().getPath().equals("/resolve")) {
+            respond(exchange, 404, "Not found\n");
+            return;
+        }
+        switch (exchange.getRequestMethod()) {
+            case "GET":
+                String query = parameter(exchange.getRequestURI().getRawQuery(), "q");
+                if (query == null) {
+                    respond(exchange, 400, "Missing parameter: q\n");
+                    return;
+                }
+                StringBuilder out = LocationJson.appendResult(query, geocoder.resolve(query), new StringBuilder());
+                exchange.getResponseHeaders().set("Content-Type", JSON);
+                respond(exchange, 200, out.append('\n').toString());
+                return;
+            case "POST":
+                resolveAll(exchange);
+                return;
+            default:
+                exchange.getResponseHeaders().set("Allow", "GET, POST");
+                respond(exchange, 405, "Method not allowed\n");
+        }
+    }
+
+    /**
+     * Streams the results as the lines of the request are read, so neither is held in memory as a whole
+     */
+    private void resolveAll(HttpExchange exchange) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), Charsets.UTF_8));
+        exchange.getResponseHeaders().set("Content-Type", NDJSON);
+        // Chunked
+        exchange.sendResponseHeaders(200, 0);
+        Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), Charsets.UTF_8), 1 << 13);
+        StringBuilder line = new StringBuilder();
+        String request;
+        while ((request = in.readLine()) != null) {
+            if (request.isEmpty()) {
+                continue;
+            }
+            String query = LocationJson.stringField(request, "q");
+            line.setLength(0);
+            LocationJson.appendResult(query, query == null ? null : geocoder.resolve(query), line).append('\n');
+            out.write(line.toString());
+        }
+        out.flush();
+    }
+
+    /**
+     * @return The decoded value of the parameter of the query string, or null
+     */
+    private static String parameter(String rawQuery, String name) throws UnsupportedEncodingException {
+        if (rawQuery == null) {
+            return null;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            if (URLDecoder.decode(key, "UTF-8").equals(name)) {
+                return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the metrics as {"name": value, ...}. Counters and gauges are values, meters {"count", "m1Rate"} and
+     * histograms and timers {"count", "mean", "p50", "p99", "max"} (timers in nanoseconds)
+     */
+    private void serveMetrics(HttpExchange exchange) throws IOException {
+        StringBuilder out = new StringBuilder("{");
+        for (Map.Entry<String, Metric> entry : new TreeMap<>(metrics.getMetrics()).entrySet()) {
+            if (out.length() > 1) {
+                out.append(',');
+            }
+            LocationJson.appendString(entry.getKey(), out).append(':');
+            Metric metric = entry.getValue();
+            if (metric instanceof Counter) {
+                out.append(((Counter) metric).getCount());
+            } else if (metric instanceof Gauge) {
+                Object value = ((Gauge) metric).getValue();
+                if (value instanceof Number) {
+                    out.append(value);
+                } else {
+                    LocationJson.appendString(value == null ? null : value.toString(), out);
+                }
+            } else if (metric instanceof Sampling) {
+                Snapshot snapshot = ((Sampling) metric).getSnapshot();
+                out.append("{\"count\":").append(((Counting) metric).getCount());
+                out.append(",\"mean\":").append(snapshot.getMean());
+                out.append(",\"p50\":").append(snapshot.getMedian());
+                out.append(",\"p99\":").append(snapshot.get99thPercentile());
+                out.append(",\"max\":").append(snapshot.getMax()).append('}');
+            } else if (metric instanceof Metered) {
+                out.append("{\"count\":").append(((Metered) metric).getCount());
+                out.append(",\"m1Rate\":").append(((Metered) metric).getOneMinuteRate()).append('}');
+            } else {
+                out.append("null");
+            }
+        }
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        respond(exchange, 200, out.append("}\n").toString());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(Charsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    /**
+     * Hands requests over to the workers if there is room, and rejects them otherwise
+     */
+    private class Admitted implements HttpHandler {
+        private final HttpHandler handler;
+
+        Admitted(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            if (!admitted.tryAcquire()) {
+                rejected.inc();
+                try {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    respond(exchange, 503, "Overloaded\n");
+                } finally {
+                    exchange.close();
+                }
+                return;
+            }
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Timer.Context time = requests.time();
+                        try {
+                            handler.handle(exchange);
+                        } catch (IOException e) {
+                            // The client went away
+                        } catch (RuntimeException e) {
+                            try {
+                                respond(exchange, 500, "Internal error\n");
+                            } catch (IOException | RuntimeException ignored) {
+                                // The response had been started
+                            }
+                        } finally {
+                            exchange.close();
+                            time.stop();
+                            admitted.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Stopped
+                admitted.release();
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Usage: {@code GeocoderServer [--snapshot FILE] [--cache SIZE] [--threads N] [--queue N] [--port PORT]}. Serves
+     * until the process is killed. The metrics of the geocoder are served at /metrics
+     */
+    public static void main(String[] args) throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        Geocoder.Builder geocoder = Geocoder.builder().metrics(metrics);
+        int port = 8080;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queueSize = 100;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--snapshot":
+                    geocoder.snapshot(new File(args[++i]));
+                    break;
+                case "--cache":
+                    geocoder.cacheSize(Integer.parseInt(args[++i]));
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--queue":
+                    queueSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        new GeocoderServer(geocoder.build()).threads(threads).queueSize(queueSize).metrics(metrics)
+                .start(new InetSocketAddress(port));
+    }
+}
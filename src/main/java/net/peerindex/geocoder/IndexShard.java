@@ -0,0 +1,98 @@
+package net.peerindex.geocoder;
+
+import java.util.Arrays;
+
+/**
+ * A {@link Shard} answered from an index in this process
+ */
+class IndexShard implements Shard {
+    private final GeoIndex index;
+
+    IndexShard(GeoIndex index) {
+        this.index = index;
+    }
+
+    @Override
+    public int[] longestKeys(String[] tokens) {
+        int[] ids = index.tokens.ids(Arrays.asList(tokens));
+        int[] ends = index.automaton().longestEnds(ids, ids.length, new int[ids.length]);
+        for (int i = 0; i < ends.length; i++) {
+            ends[i] = ends[i] == 0 ? 0 : ends[i] - i;
+        }
+        return ends;
+    }
+
+    @Override
+    public Choice choose(String[] tokens, int[] spans) {
+        int[] ids = index.tokens.ids(Arrays.asList(tokens));
+        int[] keys = new int[spans.length / 2];
+        for (int i = 0; i < keys.length; i++) {
+            int node = TokenTrie.ROOT;
+            for (int t = spans[i * 2]; t < spans[i * 2 + 1] && node != TokenTrie.NONE; t++) {
+                node = index.keys.child(node, ids[t]);
+            }
+            keys[i] = node != TokenTrie.NONE && index.keys.isKey(node) ? node : TokenTrie.NONE;
+        }
+
+        Choice ret = new Choice();
+        Router router = new Router(keys, ret);
+        // Western order (finest first), then inverted
+        index.pickoutLocationsWithConsistency(router, keys, 0);
+        if (keys.length > 1) {
+            index.pickoutLocationsWithConsistency(router, keys, keys.length - 1);
+        }
+        ret.consistent = get(router.choice.consistent);
+        ret.inconsistent = get(router.choice.inconsistent);
+        return ret;
+    }
+
+    @Override
+    public boolean hasToken(String token) {
+        return index.tokens.id(token) != TokenDictionary.UNKNOWN;
+    }
+
+    @Override
+    public Location location(int geonameId) {
+        return get(index.locations.ordinalOf(geonameId));
+    }
+
+    /**
+     * @return The location, or null for {@link Geocoder#NONE}
+     */
+    private Location get(int ordinal) {
+        return ordinal == Geocoder.NONE ? null : index.locations.get(ordinal);
+    }
+
+    /**
+     * Passes the locations with a country code on to the choice the {@link Geocoder} would make, and reports those
+     * without one as {@link Shared}, as their consistency depends on the other shards
+     */
+    private class Router implements Offers {
+        private final int[] keys;
+        private final Choice ret;
+        private final Geocoder.Choice choice = new Geocoder.Choice(index.locations);
+
+        private Router(int[] keys, Choice ret) {
+            this.keys = keys;
+            this.ret = ret;
+        }
+
+        @Override
+        public void offer(int ordinal, boolean consistent, int key) {
+            if (index.locations.code(ordinal, 0) != LocationStore.NO_CODE) {
+                choice.offer(ordinal, consistent, key);
+                return;
+            }
+            boolean[] parents = new boolean[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                parents[i] = i != key && keys[i] != TokenTrie.NONE && index.parents.hasParent(keys[i], ordinal);
+            }
+            ret.shared.add(new Shared(index.locations.get(ordinal), key, parents));
+        }
+
+        @Override
+        public boolean settled(int ordinal) {
+            return choice.settled(ordinal);
+        }
+    }
+}
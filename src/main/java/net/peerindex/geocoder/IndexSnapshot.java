@@ -0,0 +1,421 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.*;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Versioned, checksummed binary image of a fully built index (keys, posting lists, locations and weights, and the
+ * parent and spatial indexes derived from them). It is written once by a build step (see {@link #main(String[])}), so
+ * that starting a {@link Geocoder} doesn't require parsing the gazetteer, tokenizing names, calibrating weights or
+ * building the derived indexes. Opening it copies each array into the heap in one bulk read; the index takes as much
+ * heap as one built from the gazetteer.
+ * <p/>
+ * Layout (big endian): an 8 byte magic, the format version, the body length and the CRC32 of the body, followed by
+ * the body which is a sequence of sections. The location section holds the columns of the {@link LocationStore}
+ * as they are, the key section the token dictionary and the tables of the {@link TokenTrie} (postings ranked by
+ * weight), the country section the populations weights are calibrated with (see {@link GeoIndex#countryPopulations}),
+ * the derived section the tables of the {@link ParentIndex} and the trees of the {@link SpatialIndex}. Names are
+ * stored as their {@link NameBlob}, all other strings once in a UTF-8 string table and referenced by their position
+ * in it.
+ */
+class IndexSnapshot {
+    static final int VERSION = 7;
+
+    private static final byte[] MAGIC = "GEOINDEX".getBytes(Charsets.US_ASCII);
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 8 + 8;
+    // String id standing for null
+    private static final int NULL = -1;
+
+    private IndexSnapshot() {
+    }
+
+    /**
+     * Writes the given index to the file, replacing it if it exists
+     */
+    static void write(GeoIndex index, File file) throws IOException {
+        StringTable strings = new StringTable();
+
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(new byte[HEADER_SIZE]);
+
+            CRC32 crc = new CRC32();
+            CountingOutputStream counting = new CountingOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc), 1 << 16));
+            DataOutputStream out = new DataOutputStream(counting);
+
+            // The string table has to be complete before it's written, so encode the other sections first
+            ByteArrayOutputStream locationSection = new ByteArrayOutputStream();
+            writeLocations(index.locations, strings, new DataOutputStream(locationSection));
+            ByteArrayOutputStream keySection = new ByteArrayOutputStream();
+            writeKeys(index.tokens, index.keys, strings, new DataOutputStream(keySection));
+            ByteArrayOutputStream countrySection = new ByteArrayOutputStream();
+            writeCountries(index.countryPopulations, strings, new DataOutputStream(countrySection));
+
+            strings.writeTo(out);
+            locationSection.writeTo(out);
+            keySection.writeTo(out);
+            countrySection.writeTo(out);
+            writeDerived(index.parents, index.spatial, out);
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC).putInt(VERSION).putLong(counting.count).putLong(crc.getValue());
+            ((Buffer) header).flip();
+            fos.getChannel().write(header, 0);
+        }
+    }
+
+    private static void writeLocations(LocationStore locations, StringTable strings, DataOutputStream out) throws IOException {
+        out.writeInt(locations.size());
+        writeInts(locations.geonameIds(), out);
+        out.write(locations.categories());
+        writeDoubles(locations.lats(), out);
+        writeDoubles(locations.lngs(), out);
+        for (long population : locations.populations()) {
+            out.writeLong(population);
+        }
+        writeDoubles(locations.weights(), out);
+        writeStrings(locations.defaultNames(), strings, out);
+        writeDictionary(locations.featureCodeDictionary(), strings, out);
+        writeInts(locations.featureCodes(), out);
+        writeDictionary(locations.codeDictionary(), strings, out);
+        writeInts(locations.codes(), out);
+        writeInts(locations.paths(), out);
+
+        writeInts(locations.names().offsets(), out);
+        out.write(locations.names().bytes());
+    }
+
+    private static void writeKeys(TokenDictionary tokens, TokenTrie keys, StringTable strings, DataOutputStream out) throws IOException {
+        writeDictionary(tokens.tokens(), strings, out);
+        writeMap(keys.edges(), out);
+        out.writeInt(keys.nodeCount());
+        writeInts(keys.postingOffsets(), out);
+        writeInts(keys.postings(), out);
+    }
+
+    private static void writeCountries(Map<String, Double> populations, StringTable strings, DataOutputStream out) throws IOException {
+        out.writeInt(populations.size());
+        for (Map.Entry<String, Double> country : populations.entrySet()) {
+            out.writeInt(strings.id(country.getKey()));
+            out.writeDouble(country.getValue());
+        }
+    }
+
+    private static void writeDerived(ParentIndex parents, SpatialIndex spatial, DataOutputStream out) throws IOException {
+        writeMap(parents.offsets(), out);
+        out.writeInt(parents.tables().length);
+        writeInts(parents.tables(), out);
+        for (FeatureCodeCategory category : FeatureCodeCategory.values()) {
+            out.writeInt(spatial.ordinals(category).length);
+            writeInts(spatial.ordinals(category), out);
+            writeDoubles(spatial.xyz(category), out);
+            out.write(spatial.dimensions(category));
+        }
+        writeMap(spatial.areas(), out);
+    }
+
+    private static void writeMap(LongIntHashMap map, DataOutputStream out) throws IOException {
+        out.writeInt(map.size());
+        out.writeInt(map.keys().length);
+        for (long key : map.keys()) {
+            out.writeLong(key);
+        }
+        writeInts(map.values(), out);
+    }
+
+    private static void writeInts(int[] values, DataOutputStream out) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void writeDoubles(double[] values, DataOutputStream out) throws IOException {
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static void writeStrings(String[] values, StringTable strings, DataOutputStream out) throws IOException {
+        for (String value : values) {
+            out.writeInt(strings.id(value));
+        }
+    }
+
+    private static void writeDictionary(String[] dictionary, StringTable strings, DataOutputStream out) throws IOException {
+        out.writeInt(dictionary.length);
+        for (String value : dictionary) {
+            out.writeInt(value == null ? NULL : strings.id(value));
+        }
+    }
+
+    /**
+     * Reads the index from the snapshot file, verifying its checksum
+     * @throws IOException if the file can't be read, or it isn't a valid snapshot of the supported version
+     */
+    static GeoIndex read(File file) throws IOException {
+        return read(file, true, true);
+    }
+
+    /**
+     * @param keepNames false to skip the names, in which case locations of the index have none
+     * @param verify false to skip the checksum, which is a pass over the whole file. Sections are bounds checked
+     * either way, so a truncated file is still rejected, but corrupt contents may not be
+     */
+    static GeoIndex read(File file, boolean keepNames, boolean verify) throws IOException {
+        Reader in = new Reader(map(file, verify));
+        String[] strings = in.readStrings();
+        LocationStore locations = readLocations(in, strings, keepNames);
+
+        TokenDictionary tokens = new TokenDictionary(resolve(in.readInts(in.readInt()), strings));
+        LongIntHashMap edges = in.readMap();
+        int nodeCount = in.readInt();
+        int[] postingOffsets = in.readInts(nodeCount + 1);
+        int[] postings = in.readInts(postingOffsets[nodeCount]);
+        TokenTrie keys = new TokenTrie(edges, postingOffsets, postings);
+
+        ImmutableMap.Builder<String, Double> countryPopulations = ImmutableMap.builder();
+        for (int i = in.readInt(); i > 0; i--) {
+            countryPopulations.put(strings[in.readInt()], in.readDouble());
+        }
+
+        ParentIndex parents = new ParentIndex(locations, keys, in.readMap(), in.readInts(in.readInt()));
+        int categories = FeatureCodeCategory.values().length;
+        int[][] treeOrdinals = new int[categories][];
+        double[][] treeXyz = new double[categories][];
+        byte[][] treeDimensions = new byte[categories][];
+        for (int c = 0; c < categories; c++) {
+            int n = in.readInt();
+            treeOrdinals[c] = in.readInts(n);
+            treeXyz[c] = in.readDoubles(n * 3);
+            treeDimensions[c] = in.readBytes(n);
+        }
+        SpatialIndex spatial = new SpatialIndex(locations, treeOrdinals, treeXyz, treeDimensions, in.readMap());
+        return new GeoIndex(locations, tokens, keys, parents, spatial, countryPopulations.build());
+    }
+
+    private static LocationStore readLocations(Reader in, String[] strings, boolean keepNames) throws IOException {
+        int n = in.readInt();
+        int[] ids = in.readInts(n);
+        byte[] categories = in.readBytes(n);
+        double[] lats = in.readDoubles(n);
+        double[] lngs = in.readDoubles(n);
+        long[] populations = in.readLongs(n);
+        double[] weights = in.readDoubles(n);
+        String[] defaultNames = resolve(in.readInts(n), strings);
+        String[] featureCodeDictionary = resolve(in.readInts(in.readInt()), strings);
+        int[] featureCodes = in.readInts(n);
+        String[] codeDictionary = resolve(in.readInts(in.readInt()), strings);
+        int[] codes = in.readInts(n * LocationStore.LEVELS.length);
+        int[] paths = in.readInts(n * LocationStore.LEVELS.length);
+        int[] nameOffsets = in.readInts(n + 1);
+        NameBlob names;
+        if (keepNames) {
+            names = new NameBlob(in.readBytes(nameOffsets[n]), nameOffsets);
+        } else {
+            in.skip(nameOffsets[n]);
+            names = NameBlob.empty(n);
+        }
+        return new LocationStore(ids, categories, lats, lngs, populations, weights, defaultNames,
+                featureCodes, featureCodeDictionary, codes, codeDictionary, paths, names);
+    }
+
+    private static String[] resolve(int[] ids, String[] strings) {
+        String[] ret = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            ret[i] = ids[i] == NULL ? null : strings[ids[i]];
+        }
+        return ret;
+    }
+
+    private static ByteBuffer map(File file, boolean verify) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Not an index snapshot (unexpected size " + size + "): " + file);
+            }
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            byte[] magic = new byte[MAGIC.length];
+            mapped.get(magic);
+            if (!Arrays.equals(MAGIC, magic)) {
+                throw new IOException("Not an index snapshot: " + file);
+            }
+            int version = mapped.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported index snapshot version " + version + " (expected " + VERSION + "): " + file);
+            }
+            long length = mapped.getLong();
+            long checksum = mapped.getLong();
+            if (length != size - HEADER_SIZE) {
+                throw new IOException("Truncated index snapshot: " + file);
+            }
+            ByteBuffer body = mapped.slice();
+            if (verify && checksum(body) != checksum) {
+                throw new IOException("Corrupt index snapshot (checksum mismatch): " + file);
+            }
+            return body;
+        }
+    }
+
+    private static long checksum(ByteBuffer body) {
+        ByteBuffer b = body.duplicate();
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[1 << 16];
+        while (b.hasRemaining()) {
+            int len = Math.min(chunk.length, b.remaining());
+            b.get(chunk, 0, len);
+            crc.update(chunk, 0, len);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Usage: {@code IndexSnapshot FILE [SHARDS]}. Writes a snapshot of the bundled gazetteer, or that many country
+     * shards of it (FILE.0, FILE.1, ...)
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1) {
+            new Geocoder().writeSnapshotShards(new File(args[0]), Integer.parseInt(args[1]));
+        } else {
+            new Geocoder().writeSnapshot(new File(args[0]));
+        }
+    }
+
+
+    /**
+     * Assigns consecutive ids to distinct strings
+     */
+    private static class StringTable {
+        private final Map<String, Integer> ids = new LinkedHashMap<>();
+
+        int id(String s) {
+            Integer id = ids.get(s);
+            if (id == null) {
+                id = ids.size();
+                ids.put(s, id);
+            }
+            return id;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            List<byte[]> encoded = new ArrayList<>(ids.size());
+            for (String s : ids.keySet()) {
+                encoded.add(s.getBytes(Charsets.UTF_8));
+            }
+            out.writeInt(encoded.size());
+            int offset = 0;
+            out.writeInt(offset);
+            for (byte[] bytes : encoded) {
+                offset += bytes.length;
+                out.writeInt(offset);
+            }
+            for (byte[] bytes : encoded) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Sequential reader over the mapped body. Each column is copied into its array with one bulk get
+     */
+    private static class Reader {
+        private final ByteBuffer body;
+        private int position;
+
+        Reader(ByteBuffer body) {
+            this.body = body;
+        }
+
+        private ByteBuffer at(int length) throws IOException {
+            if (length < 0 || position + length > body.limit()) {
+                throw new IOException("Corrupt index snapshot (section out of bounds)");
+            }
+            ByteBuffer view = body.duplicate();
+            ((Buffer) view).position(position);
+            position += length;
+            return view;
+        }
+
+        int readInt() throws IOException {
+            return at(4).getInt();
+        }
+
+        double readDouble() throws IOException {
+            return at(8).getDouble();
+        }
+
+        LongIntHashMap readMap() throws IOException {
+            int size = readInt();
+            int capacity = readInt();
+            return new LongIntHashMap(readLongs(capacity), readInts(capacity), size);
+        }
+
+        void skip(int n) throws IOException {
+            at(n);
+        }
+
+        int[] readInts(int n) throws IOException {
+            int[] ret = new int[n];
+            at(n * 4).asIntBuffer().get(ret);
+            return ret;
+        }
+
+        long[] readLongs(int n) throws IOException {
+            long[] ret = new long[n];
+            at(n * 8).asLongBuffer().get(ret);
+            return ret;
+        }
+
+        double[] readDoubles(int n) throws IOException {
+            double[] ret = new double[n];
+            at(n * 8).asDoubleBuffer().get(ret);
+            return ret;
+        }
+
+        byte[] readBytes(int n) throws IOException {
+            byte[] ret = new byte[n];
+            at(n).get(ret);
+            return ret;
+        }
+
+        String[] readStrings() throws IOException {
+            int n = readInt();
+            int[] offsets = readInts(n + 1);
+            byte[] utf8 = readBytes(offsets[n]);
+            String[] ret = new String[n];
+            for (int i = 0; i < n; i++) {
+                ret[i] = new String(utf8, offsets[i], offsets[i + 1] - offsets[i], Charsets.UTF_8);
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.peerindex.geocoder;
+
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick automaton over the {@link TokenTrie}: every node gets a failure link to the node of its longest proper
+ * suffix that is also a path of the trie, and an output link to the longest such suffix that is a key. This finds
+ * all keys in a text with one pass over its tokens, instead of a trie walk from every token (which costs up to the
+ * length of the longest key per token, and more for texts that repeat prefixes of keys).
+ * <p/>
+ * Shares the nodes and edges of the trie; only the links and the depths are kept per node. The root is never a key,
+ * even if the trie has an empty key, as it would match between every two tokens.
+ */
+class KeyAutomaton {
+    private final TokenTrie keys;
+    private final int[] failure;
+    // Node of the longest key that is a proper suffix of the node, or NONE
+    private final int[] output;
+    // Number of tokens from the root
+    private final int[] depth;
+
+    KeyAutomaton(TokenTrie keys) {
+        this.keys = keys;
+        int nodes = keys.nodeCount();
+
+        // Children of node n are childNodes[childOffsets[n]] .. childNodes[childOffsets[n + 1] - 1]
+        long[] edges = keys.edges().keys();
+        int[] targets = keys.edges().values();
+        int[] childOffsets = new int[nodes + 1];
+        for (long edge : edges) {
+            if (LongIntHashMap.isUsed(edge)) {
+                childOffsets[(int) (edge >>> 32) + 1]++;
+            }
+        }
+        for (int n = 0; n < nodes; n++) {
+            childOffsets[n + 1] += childOffsets[n];
+        }
+        int[] childTokens = new int[childOffsets[nodes]];
+        int[] childNodes = new int[childOffsets[nodes]];
+        int[] filled = Arrays.copyOf(childOffsets, nodes);
+        for (int slot = 0; slot < edges.length; slot++) {
+            if (LongIntHashMap.isUsed(edges[slot])) {
+                int i = filled[(int) (edges[slot] >>> 32)]++;
+                childTokens[i] = (int) edges[slot];
+                childNodes[i] = targets[slot];
+            }
+        }
+
+        // Breadth first, so that the links of shallower nodes are known when they are needed
+        failure = new int[nodes];
+        output = new int[nodes];
+        depth = new int[nodes];
+        output[TokenTrie.ROOT] = TokenTrie.NONE;
+        int[] queue = new int[nodes];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = TokenTrie.ROOT;
+        while (head < tail) {
+            int node = queue[head++];
+            for (int i = childOffsets[node]; i < childOffsets[node + 1]; i++) {
+                int child = childNodes[i];
+                depth[child] = depth[node] + 1;
+                failure[child] = node == TokenTrie.ROOT ? TokenTrie.ROOT : next(failure[node], childTokens[i]);
+                int suffix = failure[child];
+                output[child] = isKey(suffix) ? suffix : output[suffix];
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    private boolean isKey(int node) {
+        return node != TokenTrie.ROOT && keys.isKey(node);
+    }
+
+    /**
+     * @return The node reached from the given node with the token, following failure links where the trie has no
+     * edge
+     */
+    private int next(int node, int token) {
+        while (true) {
+            int child = keys.child(node, token);
+            if (child != TokenTrie.NONE) {
+                return child;
+            }
+            if (node == TokenTrie.ROOT) {
+                return TokenTrie.ROOT;
+            }
+            node = failure[node];
+        }
+    }
+
+    /**
+     * Finds the same keys as matching greedily from left to right with {@link TokenTrie#longestMatch} would (the
+     * longest key at the leftmost position, then the longest one after it and so on), in time linear in the number
+     * of tokens
+     * @param spans Receives the token range [start, end) of the i-th match at [2i, 2i + 1]. At least twice as long as
+     * the number of tokens
+     * @return The matched keys, in the order they appear in the tokens
+     */
+    int[] matches(int[] tokens, int length, int[] spans) {
+        int[] longestKey = new int[length];
+        int[] longestEnd = longestEnds(tokens, length, longestKey);
+
+        int[] ret = new int[length];
+        int count = 0;
+        int from = 0;
+        while (from < length) {
+            if (longestEnd[from] > 0) {
+                spans[count * 2] = from;
+                spans[count * 2 + 1] = longestEnd[from];
+                ret[count++] = longestKey[from];
+                from = longestEnd[from];
+            } else {
+                from++;
+            }
+        }
+        return Arrays.copyOf(ret, count);
+    }
+
+    /**
+     * @param longestKey Receives the longest key starting at each token, where there is one
+     * @return The end (exclusive) of the longest key starting at each token, or 0 if no key starts there
+     */
+    int[] longestEnds(int[] tokens, int length, int[] longestKey) {
+        int[] longestEnd = new int[length];
+        int node = TokenTrie.ROOT;
+        for (int i = 0; i < length; i++) {
+            int token = tokens[i];
+            if (token < 0 || (node == TokenTrie.ROOT && !keys.startsKey(token))) {
+                // Unknown tokens can't continue any key, and most tokens don't start one
+                node = TokenTrie.ROOT;
+            } else {
+                node = next(node, token);
+            }
+            int key = isKey(node) ? node : output[node];
+            for (; key != TokenTrie.NONE; key = output[key]) {
+                int start = i + 1 - depth[key];
+                if (longestEnd[start] < i + 1) {
+                    longestEnd[start] = i + 1;
+                    longestKey[start] = key;
+                }
+            }
+        }
+        return longestEnd;
+    }
+}
@@ -2,6 +2,8 @@ package net.peerindex.geocoder;
 
 
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
@@ -19,6 +21,10 @@ public class Location implements Serializable {
     private  String featureCode;
     private  Map<FeatureCodeCategory,String> codes = new HashMap<>();
     private Set<String> names;
+    // Where to decode the names from, until they are asked for. Volatile, so that a thread that sees it cleared also
+    // sees the names decoded before it was cleared
+    private transient volatile NameBlob nameBlob;
+    private transient int nameOrdinal;
 
     private  Long population;
     private  Double weight;
@@ -106,10 +112,28 @@ public class Location implements Serializable {
 
     public void setNames(Set<String> names) {
         this.names = names;
+        this.nameBlob = null;
+    }
+
+    /**
+     * The names are decoded from the blob when they are first asked for
+     */
+    void setNames(NameBlob blob, int ordinal) {
+        this.names = null;
+        this.nameOrdinal = ordinal;
+        this.nameBlob = blob;
     }
 
     public Set<String> getNames() {
-        return names;
+        NameBlob blob = nameBlob;
+        if (blob == null) {
+            return names;
+        }
+        // Threads racing here decode equal sets, and each returns its own
+        Set<String> decoded = blob.names(nameOrdinal);
+        names = decoded;
+        nameBlob = null;
+        return decoded;
     }
 
     public void addCode(FeatureCodeCategory category, String code) {
@@ -133,6 +157,11 @@ public class Location implements Serializable {
         return geonameId;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getNames();
+        out.defaultWriteObject();
+    }
+
     @Override
     public String toString() {
         return "Location{" +
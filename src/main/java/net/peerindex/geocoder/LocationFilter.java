@@ -0,0 +1,59 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Restricts an index to locations in some countries (PCL codes) and / or of some {@link FeatureCodeCategory}s.
+ * Applied to {@link GazetteerRow}s, so that rows that aren't wanted are never decoded
+ */
+final class LocationFilter {
+    static final LocationFilter ALL = new LocationFilter(null, EnumSet.allOf(FeatureCodeCategory.class));
+
+    // Country codes packed like in GazetteerRow, sorted. null for all countries
+    private final long[] countries;
+    private final Set<FeatureCodeCategory> categories;
+
+    private LocationFilter(long[] countries, Set<FeatureCodeCategory> categories) {
+        this.countries = countries;
+        this.categories = categories;
+    }
+
+    /**
+     * @param countries PCL codes (e.g. "GB"), or null for all countries
+     * @param categories Feature code categories, or null for all of them
+     */
+    static LocationFilter of(Set<String> countries, Set<FeatureCodeCategory> categories) {
+        long[] packed = null;
+        if (countries != null) {
+            Preconditions.checkArgument(!countries.isEmpty(), "No countries");
+            packed = new long[countries.size()];
+            int i = 0;
+            for (String country : countries) {
+                byte[] bytes = country.getBytes(Charsets.UTF_8);
+                Preconditions.checkArgument(bytes.length > 0 && bytes.length <= 8, "Not a country code: %s", country);
+                packed[i++] = GazetteerRow.pack(bytes, 0, bytes.length);
+            }
+            Arrays.sort(packed);
+        }
+        if (categories != null) {
+            Preconditions.checkArgument(!categories.isEmpty(), "No feature code categories");
+        }
+        return new LocationFilter(packed, categories == null
+                ? EnumSet.allOf(FeatureCodeCategory.class) : Sets.immutableEnumSet(categories));
+    }
+
+    boolean isAll() {
+        return countries == null && categories.size() == FeatureCodeCategory.values().length;
+    }
+
+    boolean accepts(GazetteerRow row) {
+        return categories.contains(row.category())
+                && (countries == null || Arrays.binarySearch(countries, row.packedCountry()) >= 0);
+    }
+}
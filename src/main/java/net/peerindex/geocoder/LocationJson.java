@@ -0,0 +1,254 @@
+package net.peerindex.geocoder;
+
+/**
+ * Minimal JSON support for the command line tools, so that they don't need a JSON library at runtime. Locations are
+ * written with the same field names a bean serializer would use.
+ */
+enum LocationJson {
+    ;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Appends the location as a JSON object, or null
+     */
+    static StringBuilder append(Location location, StringBuilder out) {
+        if (location == null) {
+            return out.append("null");
+        }
+        out.append("{\"geonameId\":").append(location.getGeonameId());
+        out.append(",\"featureCodeCategory\":");
+        appendString(location.getFeatureCodeCategory() == null ? null : location.getFeatureCodeCategory().name(), out);
+        out.append(",\"defaultName\":");
+        appendString(location.getDefaultName(), out);
+        out.append(",\"featureCode\":");
+        appendString(location.getFeatureCode(), out);
+        out.append(",\"codes\":{");
+        boolean first = true;
+        for (FeatureCodeCategory level : LocationStore.LEVELS) {
+            String code = location.getCodes().get(level);
+            if (code != null) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendString(level.name(), out).append(':');
+                appendString(code, out);
+            }
+        }
+        out.append("},\"names\":");
+        if (location.getNames() == null) {
+            out.append("null");
+        } else {
+            out.append('[');
+            first = true;
+            for (String name : location.getNames()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendString(name, out);
+            }
+            out.append(']');
+        }
+        out.append(",\"population\":").append(location.getPopulation());
+        out.append(",\"weight\":").append(location.getWeight());
+        out.append(",\"lat\":").append(location.getLat());
+        out.append(",\"lng\":").append(location.getLng());
+        return out.append('}');
+    }
+
+    /**
+     * Appends the result of a query as a JSON object with the query as "query" and the location (or null) as
+     * "location"
+     */
+    static StringBuilder appendResult(String query, Location location, StringBuilder out) {
+        out.append("{\"query\":");
+        appendString(query, out);
+        out.append(",\"location\":");
+        return append(location, out).append('}');
+    }
+
+    /**
+     * Appends the string as a quoted, escaped JSON string, or null
+     */
+    static StringBuilder appendString(String s, StringBuilder out) {
+        if (s == null) {
+            return out.append("null");
+        }
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        out.append("\\u").append(HEX[c >> 12 & 0xF]).append(HEX[c >> 8 & 0xF]).append(HEX[c >> 4 & 0xF]).append(HEX[c & 0xF]);
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"');
+    }
+
+    /**
+     * @return The value of the string field of the JSON object, or null if the object has no such field, it isn't a
+     * string or the input is malformed. Only top level fields are looked at
+     */
+    static String stringField(String json, String field) {
+        Scanner in = new Scanner(json);
+        if (!in.consume('{')) {
+            return null;
+        }
+        if (in.consume('}')) {
+            return null;
+        }
+        do {
+            String key = in.string();
+            if (key == null || !in.consume(':')) {
+                return null;
+            }
+            if (key.equals(field)) {
+                return in.string();
+            }
+            if (!in.skipValue()) {
+                return null;
+            }
+        } while (in.consume(','));
+        return null;
+    }
+
+    private static class Scanner {
+        private final String s;
+        private int i;
+
+        Scanner(String s) {
+            this.s = s;
+        }
+
+        private void skipWhitespace() {
+            while (i < s.length() && (s.charAt(i) == ' ' || s.charAt(i) == '\t' || s.charAt(i) == '\n' || s.charAt(i) == '\r')) {
+                i++;
+            }
+        }
+
+        boolean consume(char c) {
+            skipWhitespace();
+            if (i < s.length() && s.charAt(i) == c) {
+                i++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return The decoded string, or null if there is no well-formed string here
+         */
+        String string() {
+            if (!consume('"')) {
+                return null;
+            }
+            StringBuilder b = new StringBuilder();
+            while (i < s.length()) {
+                char c = s.charAt(i++);
+                if (c == '"') {
+                    return b.toString();
+                }
+                if (c != '\\') {
+                    b.append(c);
+                    continue;
+                }
+                if (i >= s.length()) {
+                    return null;
+                }
+                char escaped = s.charAt(i++);
+                switch (escaped) {
+                    case 'b':
+                        b.append('\b');
+                        break;
+                    case 'f':
+                        b.append('\f');
+                        break;
+                    case 'n':
+                        b.append('\n');
+                        break;
+                    case 'r':
+                        b.append('\r');
+                        break;
+                    case 't':
+                        b.append('\t');
+                        break;
+                    case 'u':
+                        if (i + 4 > s.length()) {
+                            return null;
+                        }
+                        try {
+                            b.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        i += 4;
+                        break;
+                    default:
+                        // \" \\ \/
+                        b.append(escaped);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Skips a value of any type
+         * @return false if the input ended prematurely
+         */
+        boolean skipValue() {
+            skipWhitespace();
+            if (i >= s.length()) {
+                return false;
+            }
+            char c = s.charAt(i);
+            if (c == '"') {
+                return string() != null;
+            }
+            if (c != '{' && c != '[') {
+                // Number or literal
+                while (i < s.length() && ",}] \t\r\n".indexOf(s.charAt(i)) < 0) {
+                    i++;
+                }
+                return true;
+            }
+            int depth = 0;
+            while (i < s.length()) {
+                c = s.charAt(i);
+                if (c == '"') {
+                    if (string() == null) {
+                        return false;
+                    }
+                    continue;
+                }
+                i++;
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if ((c == '}' || c == ']') && --depth == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
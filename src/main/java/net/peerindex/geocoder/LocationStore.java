@@ -0,0 +1,315 @@
+package net.peerindex.geocoder;
+
+import java.util.*;
+
+/**
+ * Columnar store of the indexed locations, addressed by ordinal. Ordinals are assigned in geonameId order.
+ * <p/>
+ * Each attribute lives in its own primitive array and feature / administrative codes are dictionary encoded, so
+ * that the per-location cost is a few bytes per column rather than a {@link Location} object with boxed fields and
+ * its own code map. Names are kept as UTF-8 in a {@link NameBlob}. {@link Location} objects are only created at the
+ * API boundary by {@link #get(int)}.
+ */
+class LocationStore {
+    /**
+     * Administrative levels for which codes are stored, in this order
+     */
+    static final FeatureCodeCategory[] LEVELS = {
+            FeatureCodeCategory.PCL, FeatureCodeCategory.ADM1, FeatureCodeCategory.ADM2, FeatureCodeCategory.ADM3, FeatureCodeCategory.ADM4
+    };
+    /**
+     * Code id for "no code on this level". Entry 0 of the code dictionary is always null
+     */
+    static final int NO_CODE = 0;
+    /**
+     * Path id for "some level up to this one has no code"
+     */
+    static final int GAP = -1;
+
+    private static final FeatureCodeCategory[] CATEGORIES = FeatureCodeCategory.values();
+
+    private final int[] geonameIds;
+    private final byte[] categories;
+    private final double[] lats;
+    private final double[] lngs;
+    private final long[] populations;
+    private final double[] weights;
+    private final String[] defaultNames;
+    private final int[] featureCodes;
+    private final String[] featureCodeDictionary;
+    // LEVELS.length entries per location
+    private final int[] codes;
+    private final String[] codeDictionary;
+    // LEVELS.length entries per location: id of the code sequence from PCL down to the level, or GAP
+    private final int[] paths;
+    private final NameBlob names;
+
+    LocationStore(int[] geonameIds, byte[] categories, double[] lats, double[] lngs, long[] populations, double[] weights,
+                  String[] defaultNames, int[] featureCodes, String[] featureCodeDictionary,
+                  int[] codes, String[] codeDictionary, int[] paths, NameBlob names) {
+        this.geonameIds = geonameIds;
+        this.categories = categories;
+        this.lats = lats;
+        this.lngs = lngs;
+        this.populations = populations;
+        this.weights = weights;
+        this.defaultNames = defaultNames;
+        this.featureCodes = featureCodes;
+        this.featureCodeDictionary = featureCodeDictionary;
+        this.codes = codes;
+        this.codeDictionary = codeDictionary;
+        this.paths = paths;
+        this.names = names;
+    }
+
+    /**
+     * Copies the given locations into a new store
+     */
+    static LocationStore of(Collection<Location> locations) {
+        return of(locations, true);
+    }
+
+    /**
+     * @param keepNames false to drop the names, in which case locations of the store have none
+     */
+    static LocationStore of(Collection<Location> locations, boolean keepNames) {
+        SortedMap<Integer, Location> byId = new TreeMap<>();
+        for (Location location : locations) {
+            byId.put(location.getGeonameId(), location);
+        }
+        int n = byId.size();
+        int[] geonameIds = new int[n];
+        byte[] categories = new byte[n];
+        double[] lats = new double[n];
+        double[] lngs = new double[n];
+        long[] populations = new long[n];
+        double[] weights = new double[n];
+        String[] defaultNames = new String[n];
+        int[] featureCodes = new int[n];
+        int[] codes = new int[n * LEVELS.length];
+        NameBlob.Builder names = new NameBlob.Builder(n);
+        Dictionary featureCodeDictionary = new Dictionary();
+        Dictionary codeDictionary = new Dictionary();
+        // Reserve NO_CODE
+        codeDictionary.id(null);
+
+        int i = 0;
+        for (Location location : byId.values()) {
+            geonameIds[i] = location.getGeonameId();
+            categories[i] = (byte) location.getFeatureCodeCategory().ordinal();
+            lats[i] = location.getLat();
+            lngs[i] = location.getLng();
+            populations[i] = location.getPopulation();
+            weights[i] = location.getWeight() == null ? 0.0 : location.getWeight();
+            defaultNames[i] = location.getDefaultName();
+            featureCodes[i] = featureCodeDictionary.id(location.getFeatureCode());
+            for (int level = 0; level < LEVELS.length; level++) {
+                codes[i * LEVELS.length + level] = codeDictionary.id(location.getCodes().get(LEVELS[level]));
+            }
+            names.add(keepNames ? location.getNames() : Collections.<String>emptySet());
+            i++;
+        }
+        return new LocationStore(geonameIds, categories, lats, lngs, populations, weights, defaultNames,
+                featureCodes, featureCodeDictionary.values(), codes, codeDictionary.values(), paths(codes), names.build());
+    }
+
+    /**
+     * @return A store with the same locations and the given weights. Shares all other columns with this one
+     */
+    LocationStore withWeights(double[] weights) {
+        if (weights.length != size()) {
+            throw new IllegalArgumentException("Expected " + size() + " weights: " + weights.length);
+        }
+        return new LocationStore(geonameIds, categories, lats, lngs, populations, weights, defaultNames,
+                featureCodes, featureCodeDictionary, codes, codeDictionary, paths, names);
+    }
+
+    /**
+     * Assigns an id to every distinct code sequence (PCL, ADM1, .. down to some level) that has no missing codes.
+     * Two locations share the path id of a level iff they have the same codes on all levels up to that one
+     */
+    static int[] paths(int[] codes) {
+        int[] paths = new int[codes.length];
+        // (id of the parent path, code) -> path id. Path ids start at 1, the (virtual) root path is 0
+        LongIntHashMap ids = new LongIntHashMap(codes.length / 2);
+        for (int i = 0; i < codes.length; i += LEVELS.length) {
+            int parentPath = 0;
+            for (int level = 0; level < LEVELS.length; level++) {
+                int code = codes[i + level];
+                if (parentPath == GAP || code == NO_CODE) {
+                    paths[i + level] = parentPath = GAP;
+                    continue;
+                }
+                long key = ((long) parentPath << 32) | code;
+                int path = ids.get(key);
+                if (path == LongIntHashMap.NO_VALUE) {
+                    path = ids.size() + 1;
+                    ids.put(key, path);
+                }
+                paths[i + level] = parentPath = path;
+            }
+        }
+        return paths;
+    }
+
+    int size() {
+        return geonameIds.length;
+    }
+
+    /**
+     * @return The ordinal of the location with the given geonameId, or -1 if there is no such location
+     */
+    int ordinalOf(int geonameId) {
+        int i = Arrays.binarySearch(geonameIds, geonameId);
+        return i < 0 ? -1 : i;
+    }
+
+    int geonameId(int ordinal) {
+        return geonameIds[ordinal];
+    }
+
+    FeatureCodeCategory category(int ordinal) {
+        return CATEGORIES[categories[ordinal]];
+    }
+
+    double weight(int ordinal) {
+        return weights[ordinal];
+    }
+
+    /**
+     * @return Dictionary id of the code of the given level (index into {@link #LEVELS}), or {@link #NO_CODE}
+     */
+    int code(int ordinal, int level) {
+        return codes[ordinal * LEVELS.length + level];
+    }
+
+    /**
+     * @return Id of the code sequence from PCL down to the given level (index into {@link #LEVELS}), or {@link #GAP}
+     * if any of these codes is missing
+     */
+    int path(int ordinal, int level) {
+        return paths[ordinal * LEVELS.length + level];
+    }
+
+    /**
+     * Does the parent contain the child?
+     */
+    boolean contains(int parent, int child) {
+        int parentCategory = categories[parent];
+        if (categories[child] <= parentCategory) {
+            return false;
+        }
+        // Usually both have all codes down to the parent's level, and a single compare does
+        int childPath = paths[child * LEVELS.length + parentCategory];
+        int parentPath = paths[parent * LEVELS.length + parentCategory];
+        if (childPath != GAP && parentPath != GAP) {
+            return childPath == parentPath;
+        }
+        // Missing codes match anything
+        for (int level = 0; level <= parentCategory; level++) {
+            int childCode = codes[child * LEVELS.length + level];
+            int parentCode = codes[parent * LEVELS.length + level];
+            if (childCode != NO_CODE && parentCode != NO_CODE && childCode != parentCode) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a new {@link Location} object for the given ordinal
+     */
+    Location get(int ordinal) {
+        Location location = new Location();
+        location.setGeonameId(geonameIds[ordinal]);
+        location.setFeatureCodeCategory(category(ordinal));
+        location.setDefaultName(defaultNames[ordinal]);
+        location.setFeatureCode(featureCodeDictionary[featureCodes[ordinal]]);
+        for (int level = 0; level < LEVELS.length; level++) {
+            int code = code(ordinal, level);
+            if (code != NO_CODE) {
+                location.addCode(LEVELS[level], codeDictionary[code]);
+            }
+        }
+        location.setNames(names, ordinal);
+        location.setPopulation(populations[ordinal]);
+        location.setWeight(weights[ordinal]);
+        location.setLat(lats[ordinal]);
+        location.setLng(lngs[ordinal]);
+        return location;
+    }
+
+    // Raw columns, for serialization
+
+    int[] geonameIds() {
+        return geonameIds;
+    }
+
+    byte[] categories() {
+        return categories;
+    }
+
+    double[] lats() {
+        return lats;
+    }
+
+    double[] lngs() {
+        return lngs;
+    }
+
+    long[] populations() {
+        return populations;
+    }
+
+    double[] weights() {
+        return weights;
+    }
+
+    String[] defaultNames() {
+        return defaultNames;
+    }
+
+    int[] featureCodes() {
+        return featureCodes;
+    }
+
+    String[] featureCodeDictionary() {
+        return featureCodeDictionary;
+    }
+
+    int[] codes() {
+        return codes;
+    }
+
+    String[] codeDictionary() {
+        return codeDictionary;
+    }
+
+    int[] paths() {
+        return paths;
+    }
+
+    NameBlob names() {
+        return names;
+    }
+
+
+    private static class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int id(String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                ids.put(value, id);
+                values.add(value);
+            }
+            return id;
+        }
+
+        String[] values() {
+            return values.toArray(new String[values.size()]);
+        }
+    }
+}
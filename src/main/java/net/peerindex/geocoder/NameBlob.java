@@ -0,0 +1,105 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The names of all locations of a {@link LocationStore} as UTF-8 in one byte array, each prefixed with its length
+ * in bytes (a varint). The names of a location are a contiguous range of the array, in the order they were added.
+ * Names aren't needed to resolve queries, so they are only decoded when a {@link Location} is asked for them.
+ * <p/>
+ * Compared to a set of strings per location, this saves the objects, the hash tables and half of the bytes of
+ * mostly ASCII names
+ */
+final class NameBlob {
+    private final byte[] bytes;
+    // Location i's names are bytes[offsets[i], offsets[i + 1])
+    private final int[] offsets;
+
+    NameBlob(byte[] bytes, int[] offsets) {
+        this.bytes = bytes;
+        this.offsets = offsets;
+    }
+
+    /**
+     * @return A blob of the given number of locations, none of which have names
+     */
+    static NameBlob empty(int size) {
+        return new NameBlob(new byte[0], new int[size + 1]);
+    }
+
+    ImmutableSet<String> names(int ordinal) {
+        int end = offsets[ordinal + 1];
+        if (offsets[ordinal] == end) {
+            return ImmutableSet.of();
+        }
+        ImmutableSet.Builder<String> ret = ImmutableSet.builder();
+        int i = offsets[ordinal];
+        while (i < end) {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[i++];
+                length |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            ret.add(new String(bytes, i, length, Charsets.UTF_8));
+            i += length;
+        }
+        return ret.build();
+    }
+
+    // Raw columns, for serialization
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int[] offsets() {
+        return offsets;
+    }
+
+    /**
+     * Appends the names of one location after another
+     */
+    static class Builder {
+        private byte[] bytes = new byte[1024];
+        private final int[] offsets;
+        private int size;
+        private int count;
+
+        Builder(int locations) {
+            offsets = new int[locations + 1];
+        }
+
+        void add(Set<String> names) {
+            for (String name : names) {
+                byte[] utf8 = name.getBytes(Charsets.UTF_8);
+                ensure(5 + utf8.length);
+                int length = utf8.length;
+                while ((length & ~0x7f) != 0) {
+                    bytes[size++] = (byte) ((length & 0x7f) | 0x80);
+                    length >>>= 7;
+                }
+                bytes[size++] = (byte) length;
+                System.arraycopy(utf8, 0, bytes, size, utf8.length);
+                size += utf8.length;
+            }
+            offsets[++count] = size;
+        }
+
+        NameBlob build() {
+            return new NameBlob(Arrays.copyOf(bytes, size), offsets);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + extra, bytes.length * 2));
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package net.peerindex.geocoder;
+
+/**
+ * Receives the locations {@link GeoIndex#pickoutLocationsWithConsistency} walks, best ranked first
+ */
+interface Offers {
+    /**
+     * @param key Index of the matched key the location was found under
+     */
+    void offer(int ordinal, boolean consistent, int key);
+
+    /**
+     * @return Whether neither this location nor any one ranked after it (see {@link TokenTrie#rankedBy}) can
+     * change the outcome any more
+     */
+    boolean settled(int ordinal);
+}
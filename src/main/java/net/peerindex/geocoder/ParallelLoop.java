@@ -0,0 +1,73 @@
+package net.peerindex.geocoder;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a loop body for every index of a range on a {@link ForkJoinPool}, splitting the range in halves until the
+ * pieces are small enough. The body can keep per-worker scratch state in thread locals, as each piece runs on a
+ * single worker.
+ */
+class ParallelLoop {
+    private static final int MAX_GRAIN = 256;
+
+    interface Body {
+        void run(int i);
+    }
+
+    private ParallelLoop() {
+    }
+
+    /**
+     * @return A pool shared by everything that doesn't get one passed in, with one worker per processor. Created when
+     * first used
+     */
+    static ForkJoinPool defaultPool() {
+        return DefaultPool.POOL;
+    }
+
+    /**
+     * Calls the body for 0 .. n - 1 and waits for all of them. An exception thrown by the body is rethrown
+     */
+    static void run(ForkJoinPool pool, int n, Body body) {
+        if (n == 0) {
+            return;
+        }
+        // Around 8 pieces per worker, so that uneven pieces are balanced by stealing
+        int grain = Math.max(1, Math.min(MAX_GRAIN, n / (pool.getParallelism() * 8)));
+        pool.invoke(new Range(body, 0, n, grain));
+    }
+
+    private static class DefaultPool {
+        private static final ForkJoinPool POOL = new ForkJoinPool();
+    }
+
+    private static class Range extends RecursiveAction {
+        // Serializable only because every ForkJoinTask is; ranges are never serialized
+        private static final long serialVersionUID = 1L;
+
+        private final Body body;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        Range(Body body, int from, int to, int grain) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                for (int i = from; i < to; i++) {
+                    body.run(i);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Range(body, from, middle, grain), new Range(body, middle, to, grain));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package net.peerindex.geocoder;
+
+import java.util.Arrays;
+
+/**
+ * Answers "does any location of this key contain that location?" during disambiguation.
+ * <p/>
+ * Small posting lists are scanned, which is a single int compare per location (see {@link LocationStore#contains}).
+ * For keys with many locations (e.g. popular names shared by hundreds of places) the path ids of the locations that
+ * can be a parent are hashed up front, so that the question becomes one probe per administrative level of the child.
+ * The tables are stored in snapshots as they are (see {@link IndexSnapshot}).
+ */
+class ParentIndex {
+    /**
+     * Posting lists shorter than this are scanned
+     */
+    static final int MIN_POSTINGS = 8;
+
+    private static final int EMPTY = 0;
+
+    private final LocationStore locations;
+    private final TokenTrie keys;
+    // Key node -> offset of its table
+    private final LongIntHashMap offsets;
+    // Per table: capacity, capacity slots of path ids (EMPTY if unused), count of the locations that have missing
+    // codes and can't be hashed, their ordinals
+    private final int[] tables;
+
+    ParentIndex(LocationStore locations, TokenTrie keys) {
+        this.locations = locations;
+        this.keys = keys;
+
+        LongIntHashMap offsets = new LongIntHashMap(16);
+        int[] tables = new int[1024];
+        int size = 0;
+        int[] unhashed = new int[16];
+        for (int key = 0; key < keys.nodeCount(); key++) {
+            int start = keys.postingStart(key);
+            int end = keys.postingEnd(key);
+            if (end - start < MIN_POSTINGS) {
+                continue;
+            }
+            int capacity = Integer.highestOneBit((end - start) * 2 - 1) << 1;
+            int required = size + 2 + capacity + (end - start);
+            if (required > tables.length) {
+                tables = Arrays.copyOf(tables, Math.max(required, tables.length * 2));
+            }
+            int offset = size;
+            tables[offset] = capacity;
+            int unhashedCount = 0;
+            for (int p = start; p < end; p++) {
+                int ordinal = keys.posting(p);
+                int level = locations.category(ordinal).ordinal();
+                if (level >= LocationStore.LEVELS.length) {
+                    // Nothing is finer than SUBADM, so it is never a parent
+                    continue;
+                }
+                int path = locations.path(ordinal, level);
+                if (path == LocationStore.GAP) {
+                    if (unhashedCount == unhashed.length) {
+                        unhashed = Arrays.copyOf(unhashed, unhashedCount * 2);
+                    }
+                    unhashed[unhashedCount++] = ordinal;
+                } else {
+                    insert(tables, offset, path);
+                }
+            }
+            tables[offset + 1 + capacity] = unhashedCount;
+            System.arraycopy(unhashed, 0, tables, offset + 2 + capacity, unhashedCount);
+            size = offset + 2 + capacity + unhashedCount;
+            offsets.put(key, offset);
+        }
+        this.offsets = offsets;
+        this.tables = Arrays.copyOf(tables, size);
+    }
+
+    /**
+     * Wraps tables previously obtained from {@link #offsets()} and {@link #tables()} of an index of the same store and
+     * keys
+     */
+    ParentIndex(LocationStore locations, TokenTrie keys, LongIntHashMap offsets, int[] tables) {
+        this.locations = locations;
+        this.keys = keys;
+        this.offsets = offsets;
+        this.tables = tables;
+    }
+
+    LongIntHashMap offsets() {
+        return offsets;
+    }
+
+    int[] tables() {
+        return tables;
+    }
+
+    /**
+     * @return true if one of the locations of the key contains the child
+     */
+    boolean hasParent(int key, int child) {
+        int offset = offsets.get(key);
+        if (offset == LongIntHashMap.NO_VALUE) {
+            return scan(key, child);
+        }
+        int capacity = tables[offset];
+        int levels = Math.min(locations.category(child).ordinal(), LocationStore.LEVELS.length);
+        for (int level = 0; level < levels; level++) {
+            int path = locations.path(child, level);
+            if (path == LocationStore.GAP) {
+                // A missing code matches anything, so parents on this level and below can't be looked up by path
+                return scan(key, child);
+            }
+            // Path ids are distinct across levels, so a hit is a parent on exactly this level
+            if (contains(tables, offset, path)) {
+                return true;
+            }
+        }
+        int unhashed = offset + 1 + capacity;
+        for (int i = unhashed + 1; i <= unhashed + tables[unhashed]; i++) {
+            if (locations.contains(tables[i], child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean scan(int key, int child) {
+        for (int p = keys.postingStart(key); p < keys.postingEnd(key); p++) {
+            if (locations.contains(keys.posting(p), child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int slot(int path, int capacity) {
+        // Fibonacci hashing; capacity is a power of two
+        return (path * 0x9E3779B9) >>> (Integer.numberOfLeadingZeros(capacity) + 1);
+    }
+
+    private static void insert(int[] tables, int offset, int path) {
+        int capacity = tables[offset];
+        int slot = slot(path, capacity);
+        while (tables[offset + 1 + slot] != EMPTY) {
+            if (tables[offset + 1 + slot] == path) {
+                return;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        tables[offset + 1 + slot] = path;
+    }
+
+    private static boolean contains(int[] tables, int offset, int path) {
+        int capacity = tables[offset];
+        int slot = slot(path, capacity);
+        int value;
+        while ((value = tables[offset + 1 + slot]) != EMPTY) {
+            if (value == path) {
+                return true;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return false;
+    }
+}
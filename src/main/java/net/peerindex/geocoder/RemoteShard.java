@@ -0,0 +1,187 @@
+package net.peerindex.geocoder;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A {@link Shard} served by a {@link ShardServer}, over the protocol of {@link ShardProtocol}. Connections are opened
+ * as needed and kept for reuse, so concurrent calls don't wait for each other. A connection whose call failed in any
+ * way is closed rather than reused, as it may be halfway through a response. Thread-safe.
+ */
+class RemoteShard implements Shard, Closeable {
+    private final InetSocketAddress address;
+    // For connecting and for each response
+    private final int timeoutMillis;
+    private final Queue<Connection> idle = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    RemoteShard(InetSocketAddress address, int timeoutMillis) {
+        this.address = address;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public int[] longestKeys(final String[] tokens) throws IOException {
+        return call(new Exchange<int[]>() {
+            @Override
+            void write(DataOutputStream out) throws IOException {
+                out.writeByte(ShardProtocol.LONGEST_KEYS);
+                ShardProtocol.writeStrings(tokens, out);
+            }
+
+            @Override
+            int[] read(DataInputStream in) throws IOException {
+                return ShardProtocol.readInts(in);
+            }
+        });
+    }
+
+    @Override
+    public Choice choose(final String[] tokens, final int[] spans) throws IOException {
+        return call(new Exchange<Choice>() {
+            @Override
+            void write(DataOutputStream out) throws IOException {
+                out.writeByte(ShardProtocol.CHOOSE);
+                ShardProtocol.writeStrings(tokens, out);
+                ShardProtocol.writeInts(spans, out);
+            }
+
+            @Override
+            Choice read(DataInputStream in) throws IOException {
+                return ShardProtocol.readChoice(in);
+            }
+        });
+    }
+
+    @Override
+    public boolean hasToken(final String token) throws IOException {
+        return call(new Exchange<Boolean>() {
+            @Override
+            void write(DataOutputStream out) throws IOException {
+                out.writeByte(ShardProtocol.HAS_TOKEN);
+                out.writeUTF(token);
+            }
+
+            @Override
+            Boolean read(DataInputStream in) throws IOException {
+                return in.readBoolean();
+            }
+        });
+    }
+
+    @Override
+    public Location location(final int geonameId) throws IOException {
+        return call(new Exchange<Location>() {
+            @Override
+            void write(DataOutputStream out) throws IOException {
+                out.writeByte(ShardProtocol.LOCATION);
+                out.writeInt(geonameId);
+            }
+
+            @Override
+            Location read(DataInputStream in) throws IOException {
+                return ShardProtocol.readLocation(in);
+            }
+        });
+    }
+
+    /**
+     * Sends the request and reads the response on a pooled connection. The connection goes back to the pool if the
+     * response was read completely, and is closed otherwise
+     * @throws IOException if the shard couldn't be reached, didn't answer in time or failed to answer
+     */
+    private <T> T call(Exchange<T> exchange) throws IOException {
+        if (closed) {
+            throw new IOException("Closed");
+        }
+        Connection connection = idle.poll();
+        if (connection == null) {
+            connection = new Connection(address, timeoutMillis);
+        }
+        T ret = null;
+        // Message of a call that failed on the shard, which leaves the connection usable
+        String failure = null;
+        try {
+            exchange.write(connection.out);
+            connection.out.flush();
+            byte status = connection.in.readByte();
+            if (status == ShardProtocol.OK) {
+                ret = exchange.read(connection.in);
+            } else if (status == ShardProtocol.FAILED) {
+                failure = connection.in.readUTF();
+            } else {
+                throw new IOException("Malformed response of shard " + address + ": status " + status);
+            }
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+        release(connection);
+        if (failure != null) {
+            throw new IOException("Shard " + address + " failed: " + failure);
+        }
+        return ret;
+    }
+
+    private void release(Connection connection) {
+        idle.add(connection);
+        if (closed) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteShard{" + address + '}';
+    }
+
+
+    /**
+     * One request and its response
+     */
+    private abstract static class Exchange<T> {
+        abstract void write(DataOutputStream out) throws IOException;
+
+        abstract T read(DataInputStream in) throws IOException;
+    }
+
+    private static class Connection {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+
+        Connection(InetSocketAddress address, int timeoutMillis) throws IOException {
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(timeoutMillis);
+                socket.connect(address, timeoutMillis);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package net.peerindex.geocoder;
+
+import com.google.common.cache.CacheStats;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Size bounded, thread-safe cache of resolved queries: token sequence -> location ordinal, or {@link #NONE} for
+ * queries that don't resolve to anything.
+ * <p/>
+ * Entries are split over independently locked segments. Each segment evicts its least recently used entry, but only
+ * admits a new entry in its place if the new query has been asked more often recently than the one it would evict
+ * (TinyLFU). This keeps the head of the query distribution in the cache even when a burst of one-off junk queries
+ * passes through.
+ */
+class ResultCache {
+    /**
+     * Returned by {@link #get} for queries that aren't cached
+     */
+    static final int ABSENT = -2;
+    /**
+     * Cached result of queries that don't resolve to a location
+     */
+    static final int NONE = -1;
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    ResultCache(int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maximumSize);
+        }
+        // At least 32 entries per segment, so that the segments aren't too unevenly filled
+        int segmentCount = Math.min(MAX_SEGMENTS, Integer.highestOneBit(Math.max(1, maximumSize / 32)));
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // Spread the remainder so that the total is exactly the maximum size
+            segments[i] = new Segment(maximumSize / segmentCount + (i < maximumSize % segmentCount ? 1 : 0));
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+    }
+
+    /**
+     * @return The cached ordinal, {@link #NONE} or {@link #ABSENT}
+     */
+    int get(TokenSequence query) {
+        int hash = spread(query.hashCode());
+        return segment(hash).get(query, hash);
+    }
+
+    void put(TokenSequence query, int ordinal) {
+        int hash = spread(query.hashCode());
+        segment(hash).put(query, hash, ordinal);
+    }
+
+    long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return Hit, miss and eviction counts. Queries that were not admitted count as evictions
+     */
+    CacheStats stats() {
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+                misses += segment.misses;
+                evictions += segment.evictions;
+            }
+        }
+        return new CacheStats(hits, misses, 0, 0, 0, evictions);
+    }
+
+    private Segment segment(int hash) {
+        return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private static int spread(int h) {
+        // Murmur3 finalizer; Arrays.hashCode of small ints is poorly distributed
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+
+    private static class Segment {
+        private final int capacity;
+        // In access order
+        private final LinkedHashMap<TokenSequence, Integer> entries;
+        private final FrequencySketch sketch;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.entries = new LinkedHashMap<>(Math.min(capacity, 1 << 16), 0.75f, true);
+            this.sketch = new FrequencySketch(capacity);
+        }
+
+        synchronized int get(TokenSequence query, int hash) {
+            sketch.increment(hash);
+            Integer ordinal = entries.get(query);
+            if (ordinal == null) {
+                misses++;
+                return ABSENT;
+            }
+            hits++;
+            return ordinal;
+        }
+
+        synchronized void put(TokenSequence query, int hash, int ordinal) {
+            if (entries.size() < capacity || entries.containsKey(query)) {
+                entries.put(query, ordinal);
+                return;
+            }
+            Iterator<TokenSequence> eldest = entries.keySet().iterator();
+            TokenSequence victim = eldest.next();
+            evictions++;
+            if (sketch.frequency(hash) > sketch.frequency(spread(victim.hashCode()))) {
+                eldest.remove();
+                entries.put(query, ordinal);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package net.peerindex.geocoder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The part of a query a shard of a country partitioned index (see {@link GeoDbIndexer#shards}) can answer on its own.
+ * {@link ShardedGeocoder} combines the answers of all shards into what a {@link Geocoder} of the whole index would
+ * answer. Queries are passed as tokens (rather than token ids), since every shard has a dictionary of its own.
+ */
+interface Shard {
+    /**
+     * @return The length of the longest key of this shard starting at each token, or 0
+     */
+    int[] longestKeys(String[] tokens) throws IOException;
+
+    /**
+     * Offers the locations of the finest and the coarsest of the given keys, like {@link Geocoder#resolve(String)}
+     * does, and checks them for consistency with the keys
+     * @param spans The token range [start, end) of the i-th key of the query at [2i, 2i + 1], as matched over all
+     * shards. This shard may not have all of them
+     */
+    Choice choose(String[] tokens, int[] spans) throws IOException;
+
+    /**
+     * @return Whether the token occurs in a key of this shard
+     */
+    boolean hasToken(String token) throws IOException;
+
+    /**
+     * @return The location, or null if it isn't in this shard
+     */
+    Location location(int geonameId) throws IOException;
+
+
+    /**
+     * The best consistent and the best inconsistent location a shard found. A location is consistent if every other
+     * key has a location that contains it. The locations that contain one with a country code are in the same shard,
+     * so these are final. Locations without a country code are in every shard, and their parents can be spread over
+     * shards, so they are reported with the keys this shard has a parent in instead
+     */
+    class Choice {
+        // Null if there are none
+        Location consistent;
+        Location inconsistent;
+        final List<Shared> shared = new ArrayList<>();
+    }
+
+    /**
+     * A location without a country code, offered for a key
+     */
+    class Shared {
+        final Location location;
+        // Index of the key it was offered for
+        final int key;
+        // Whether the i-th key has a location in this shard that contains it
+        final boolean[] parents;
+
+        Shared(Location location, int key, boolean[] parents) {
+            this.location = location;
+            this.key = key;
+            this.parents = parents;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package net.peerindex.geocoder;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The wire format between {@link RemoteShard} and {@link ShardServer}. A request is an op code followed by its
+ * arguments, a response a status followed by the result (or an error message). Everything is written with
+ * {@link DataOutput} as fixed fields and length prefixed arrays, so reading a request never creates anything but
+ * strings and primitive arrays, and lengths are checked before anything is allocated.
+ */
+final class ShardProtocol {
+    static final byte LONGEST_KEYS = 1;
+    static final byte CHOOSE = 2;
+    static final byte HAS_TOKEN = 3;
+    static final byte LOCATION = 4;
+
+    static final byte OK = 0;
+    static final byte FAILED = 1;
+
+    // Longest array (tokens of a query, names of a location, ...) a peer may send
+    private static final int MAX_LENGTH = 1 << 16;
+
+    private static final FeatureCodeCategory[] CATEGORIES = FeatureCodeCategory.values();
+
+    private ShardProtocol() {
+    }
+
+    static void writeStrings(String[] values, DataOutput out) throws IOException {
+        out.writeInt(values.length);
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    static String[] readStrings(DataInput in) throws IOException {
+        String[] ret = new String[readLength(in)];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = in.readUTF();
+        }
+        return ret;
+    }
+
+    static void writeInts(int[] values, DataOutput out) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    static int[] readInts(DataInput in) throws IOException {
+        int[] ret = new int[readLength(in)];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = in.readInt();
+        }
+        return ret;
+    }
+
+    static void writeChoice(Shard.Choice choice, DataOutput out) throws IOException {
+        writeLocation(choice.consistent, out);
+        writeLocation(choice.inconsistent, out);
+        out.writeInt(choice.shared.size());
+        for (Shard.Shared shared : choice.shared) {
+            writeLocation(shared.location, out);
+            out.writeInt(shared.key);
+            out.writeInt(shared.parents.length);
+            for (boolean parent : shared.parents) {
+                out.writeBoolean(parent);
+            }
+        }
+    }
+
+    static Shard.Choice readChoice(DataInput in) throws IOException {
+        Shard.Choice ret = new Shard.Choice();
+        ret.consistent = readLocation(in);
+        ret.inconsistent = readLocation(in);
+        for (int i = readLength(in); i > 0; i--) {
+            Location location = readLocation(in);
+            int key = in.readInt();
+            boolean[] parents = new boolean[readLength(in)];
+            for (int p = 0; p < parents.length; p++) {
+                parents[p] = in.readBoolean();
+            }
+            if (location == null || key < 0 || key >= parents.length) {
+                throw new IOException("Malformed shard response");
+            }
+            ret.shared.add(new Shard.Shared(location, key, parents));
+        }
+        return ret;
+    }
+
+    /**
+     * @param location Null for none
+     */
+    static void writeLocation(Location location, DataOutput out) throws IOException {
+        out.writeBoolean(location != null);
+        if (location == null) {
+            return;
+        }
+        out.writeInt(location.getGeonameId());
+        out.writeByte(location.getFeatureCodeCategory().ordinal());
+        writeNullable(location.getDefaultName(), out);
+        writeNullable(location.getFeatureCode(), out);
+        out.writeInt(location.getCodes().size());
+        for (Map.Entry<FeatureCodeCategory, String> code : location.getCodes().entrySet()) {
+            out.writeByte(code.getKey().ordinal());
+            out.writeUTF(code.getValue());
+        }
+        Set<String> names = location.getNames();
+        out.writeInt(names == null ? -1 : names.size());
+        if (names != null) {
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+        }
+        out.writeLong(location.getPopulation() == null ? 0 : location.getPopulation());
+        out.writeDouble(location.getWeight() == null ? 0.0 : location.getWeight());
+        out.writeDouble(location.getLat());
+        out.writeDouble(location.getLng());
+    }
+
+    /**
+     * @return The location, or null for none
+     */
+    static Location readLocation(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        Location ret = new Location();
+        ret.setGeonameId(in.readInt());
+        ret.setFeatureCodeCategory(readCategory(in));
+        ret.setDefaultName(readNullable(in));
+        ret.setFeatureCode(readNullable(in));
+        Map<FeatureCodeCategory, String> codes = new HashMap<>();
+        for (int i = readLength(in); i > 0; i--) {
+            codes.put(readCategory(in), in.readUTF());
+        }
+        ret.setCodes(codes);
+        int nameCount = in.readInt();
+        if (nameCount >= 0) {
+            if (nameCount > MAX_LENGTH) {
+                throw new IOException("Too many names: " + nameCount);
+            }
+            Set<String> names = new HashSet<>();
+            for (int i = 0; i < nameCount; i++) {
+                names.add(in.readUTF());
+            }
+            ret.setNames(names);
+        }
+        ret.setPopulation(in.readLong());
+        ret.setWeight(in.readDouble());
+        ret.setLat(in.readDouble());
+        ret.setLng(in.readDouble());
+        return ret;
+    }
+
+    private static void writeNullable(String value, DataOutput out) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static FeatureCodeCategory readCategory(DataInput in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= CATEGORIES.length) {
+            throw new IOException("Unknown feature code category: " + ordinal);
+        }
+        return CATEGORIES[ordinal];
+    }
+
+    private static int readLength(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Length out of range: " + length);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,176 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves one shard of a country partitioned index (see {@link Geocoder#writeSnapshotShards(File, int)}) to
+ * {@link ShardedGeocoder#remote}, so that the shards of an index can live in separate processes. Each connection is
+ * served by a thread of its own; requests and responses are plain data (see {@link ShardProtocol}), so a request
+ * can't make the server create anything but strings and arrays of bounded length. There is no authentication or
+ * encryption though, so only listen on addresses of a network that untrusted parties can't reach (the loopback
+ * address by default).
+ */
+public class ShardServer implements Closeable {
+    private final Shard shard;
+    private final ServerSocket socket;
+    private final ExecutorService connections = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("shard-server-%d").build());
+
+    /**
+     * Starts serving the snapshot of a shard in the background
+     * @param address Port 0 for any free port (see {@link #port()})
+     */
+    public ShardServer(File snapshot, InetSocketAddress address) throws IOException {
+        this(new IndexShard(IndexSnapshot.read(snapshot)), address);
+    }
+
+    ShardServer(Shard shard, InetSocketAddress address) throws IOException {
+        this.shard = shard;
+        this.socket = new ServerSocket();
+        socket.bind(address);
+        connections.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        connections.shutdownNow();
+    }
+
+    private void accept() {
+        while (!socket.isClosed()) {
+            try {
+                final Socket connection = socket.accept();
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(connection);
+                    }
+                });
+            } catch (IOException e) {
+                // Closed, or a connection failed before it was accepted
+            }
+        }
+    }
+
+    private void serve(Socket connection) {
+        try {
+            connection.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            while (true) {
+                byte op = in.readByte();
+                // Buffered, so that a failure halfway through doesn't leave a partial response
+                response.reset();
+                try {
+                    DataOutputStream result = new DataOutputStream(response);
+                    result.writeByte(ShardProtocol.OK);
+                    call(op, in, result);
+                } catch (RuntimeException e) {
+                    response.reset();
+                    DataOutputStream failure = new DataOutputStream(response);
+                    failure.writeByte(ShardProtocol.FAILED);
+                    failure.writeUTF(String.valueOf(e));
+                }
+                response.writeTo(out);
+                out.flush();
+            }
+        } catch (EOFException | SocketException e) {
+            // Closed by the client, or by close()
+        } catch (IOException e) {
+            // Broken connection or a client that doesn't speak the protocol
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+
+    /**
+     * Reads the arguments of the request and writes its result
+     * @throws IOException if the request is malformed, in which case the connection is dropped
+     */
+    private void call(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (op) {
+            case ShardProtocol.LONGEST_KEYS:
+                ShardProtocol.writeInts(shard.longestKeys(ShardProtocol.readStrings(in)), out);
+                break;
+            case ShardProtocol.CHOOSE:
+                String[] tokens = ShardProtocol.readStrings(in);
+                int[] spans = ShardProtocol.readInts(in);
+                checkSpans(tokens, spans);
+                ShardProtocol.writeChoice(shard.choose(tokens, spans), out);
+                break;
+            case ShardProtocol.HAS_TOKEN:
+                out.writeBoolean(shard.hasToken(in.readUTF()));
+                break;
+            case ShardProtocol.LOCATION:
+                ShardProtocol.writeLocation(shard.location(in.readInt()), out);
+                break;
+            default:
+                throw new IOException("Unknown request: " + op);
+        }
+    }
+
+    private static void checkSpans(String[] tokens, int[] spans) throws IOException {
+        if (spans.length % 2 != 0) {
+            throw new IOException("Malformed spans");
+        }
+        for (int i = 0; i < spans.length; i += 2) {
+            if (spans[i] < 0 || spans[i] > spans[i + 1] || spans[i + 1] > tokens.length) {
+                throw new IOException("Malformed spans");
+            }
+        }
+    }
+
+    /**
+     * Usage: {@code ShardServer --snapshot FILE [--port PORT] [--address ADDRESS]}. Serves until the process is
+     * killed. Listens on the loopback address unless an address is given
+     */
+    public static void main(String[] args) throws Exception {
+        File snapshot = null;
+        int port = 7070;
+        InetAddress address = InetAddress.getLoopbackAddress();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--snapshot":
+                    snapshot = new File(args[++i]);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--address":
+                    address = InetAddress.getByName(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        Preconditions.checkArgument(snapshot != null, "--snapshot is required");
+        new ShardServer(snapshot, new InetSocketAddress(address, port));
+        // The accepting thread is a daemon
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,242 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Resolves queries over an index that is split by country into shards (see {@link Geocoder#writeSnapshotShards}),
+ * which can be served by separate processes (see {@link ShardServer}), so that no process has to hold the whole
+ * index. Answers are the same as those of {@link Geocoder#resolve(String)} over the whole index (without caching or
+ * typo tolerance).
+ * <p/>
+ * A query takes two round trips to every shard, made in parallel: first each shard reports the longest key it has at
+ * every token, so that the keys are matched as over the whole index; then each shard picks its best consistent and
+ * best inconsistent location for those keys. Parents are always in the same shard as their children, so the shards
+ * can check consistency on their own, and the best of their choices is what the whole index would choose.
+ * Thread-safe.
+ */
+public class ShardedGeocoder implements Closeable {
+    public static final int DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private final List<Shard> shards;
+    // Calls all but the first shard, which is called by the calling thread
+    private final ExecutorService fanOut;
+    private final Tokenizer tokenizer = new Tokenizer();
+
+    ShardedGeocoder(List<? extends Shard> shards) {
+        Preconditions.checkArgument(!shards.isEmpty(), "No shards");
+        this.shards = ImmutableList.copyOf(shards);
+        this.fanOut = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("sharded-geocoder-%d").build());
+    }
+
+    /**
+     * Splits the index into shards held by this process. Mostly useful for testing, as it doesn't save memory
+     */
+    public static ShardedGeocoder local(ImmutableMap<ImmutableList<String>, Set<Location>> index, int shards) {
+        List<Shard> ret = new ArrayList<>();
+        for (ImmutableMap<ImmutableList<String>, Set<Location>> shard : GeoDbIndexer.shards(index, shards)) {
+            ret.add(new IndexShard(GeoIndex.of(shard)));
+        }
+        return new ShardedGeocoder(ret);
+    }
+
+    /**
+     * Same as {@link #remote(List, int)} with a timeout of {@value #DEFAULT_TIMEOUT_MILLIS} ms
+     */
+    public static ShardedGeocoder remote(List<InetSocketAddress> shards) {
+        return remote(shards, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param shards Addresses of the {@link ShardServer}s of all shards of the index
+     * @param timeoutMillis How long to wait for a shard to accept a connection, and for each of its answers, before
+     * the query fails with an IOException
+     */
+    public static ShardedGeocoder remote(List<InetSocketAddress> shards, int timeoutMillis) {
+        Preconditions.checkArgument(timeoutMillis > 0, "Not a positive timeout: %s", timeoutMillis);
+        List<Shard> ret = new ArrayList<>();
+        for (InetSocketAddress shard : shards) {
+            ret.add(new RemoteShard(shard, timeoutMillis));
+        }
+        return new ShardedGeocoder(ret);
+    }
+
+    /**
+     * @return The location, or null if the query couldn't be resolved
+     * @throws IOException if a shard couldn't be reached or didn't answer in time
+     */
+    public Location resolve(String freeTextLocation) throws IOException {
+        final String[] tokens = tokenizer.tokenize(freeTextLocation).toArray(new String[0]);
+
+        // The keys, matched greedily (longest first) from left to right as over the whole index
+        int[] longest = new int[tokens.length];
+        for (int[] shardLongest : fanOut(new ShardCall<int[]>() {
+            @Override
+            public int[] call(Shard shard) throws IOException {
+                return shard.longestKeys(tokens);
+            }
+        })) {
+            for (int i = 0; i < longest.length; i++) {
+                longest[i] = Math.max(longest[i], shardLongest[i]);
+            }
+        }
+        int[] matched = new int[tokens.length * 2];
+        int count = 0;
+        int from = 0;
+        while (from < tokens.length) {
+            if (longest[from] > 0) {
+                matched[count * 2] = from;
+                matched[count * 2 + 1] = from + longest[from];
+                count++;
+                from += longest[from];
+            } else {
+                from++;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        final int[] spans = Arrays.copyOf(matched, count * 2);
+
+        List<Shard.Choice> choices = fanOut(new ShardCall<Shard.Choice>() {
+            @Override
+            public Shard.Choice call(Shard shard) throws IOException {
+                return shard.choose(tokens, spans);
+            }
+        });
+        Location consistent = null;
+        Location inconsistent = null;
+        // Locations without a country code by the key they were offered for, with the keys they have a parent in
+        Map<List<Integer>, Shard.Shared> shared = new LinkedHashMap<>();
+        for (Shard.Choice choice : choices) {
+            consistent = better(consistent, choice.consistent);
+            inconsistent = better(inconsistent, choice.inconsistent);
+            for (Shard.Shared offer : choice.shared) {
+                List<Integer> id = Arrays.asList(offer.location.getGeonameId(), offer.key);
+                Shard.Shared merged = shared.get(id);
+                if (merged == null) {
+                    shared.put(id, offer);
+                } else {
+                    for (int i = 0; i < merged.parents.length; i++) {
+                        merged.parents[i] |= offer.parents[i];
+                    }
+                }
+            }
+        }
+        for (Shard.Shared offer : shared.values()) {
+            boolean isConsistent = true;
+            for (int i = 0; i < offer.parents.length && isConsistent; i++) {
+                isConsistent = i == offer.key || offer.parents[i];
+            }
+            if (isConsistent) {
+                consistent = better(consistent, offer.location);
+            } else {
+                inconsistent = better(inconsistent, offer.location);
+            }
+        }
+
+        Location first = consistent != null ? consistent : inconsistent;
+        return first == null ? null : pickOne(tokens, first);
+    }
+
+    /**
+     * Same special rules as {@link Geocoder}
+     */
+    private Location pickOne(String[] tokens, Location first) throws IOException {
+        for (int i = 0; i < Geocoder.SPECIAL_RULE_FROM.length; i++) {
+            if (first.getGeonameId() == Geocoder.SPECIAL_RULE_FROM[i]
+                    && Arrays.asList(tokens).contains(Geocoder.SPECIAL_RULE_TOKENS[i])
+                    && hasToken(Geocoder.SPECIAL_RULE_TOKENS[i])) {
+                for (Shard shard : shards) {
+                    Location target = shard.location(Geocoder.SPECIAL_RULE_TO[i]);
+                    if (target != null) {
+                        return target;
+                    }
+                }
+            }
+        }
+        return first;
+    }
+
+    private boolean hasToken(String token) throws IOException {
+        for (Shard shard : shards) {
+            if (shard.hasToken(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same order as the choice of {@link Geocoder}: the heavier location, then the one with the lower geonameId
+     */
+    private static Location better(Location current, Location candidate) {
+        if (current == null) {
+            return candidate;
+        }
+        if (candidate == null) {
+            return current;
+        }
+        int byWeight = Double.compare(candidate.getWeight(), current.getWeight());
+        return byWeight > 0 || (byWeight == 0 && candidate.getGeonameId() < current.getGeonameId())
+                ? candidate : current;
+    }
+
+    /**
+     * @return The results of calling every shard, in shard order
+     */
+    private <T> List<T> fanOut(final ShardCall<T> call) throws IOException {
+        List<Future<T>> pending = new ArrayList<>(shards.size() - 1);
+        for (final Shard shard : shards.subList(1, shards.size())) {
+            pending.add(fanOut.submit(new Callable<T>() {
+                @Override
+                public T call() throws IOException {
+                    return call.call(shard);
+                }
+            }));
+        }
+        List<T> ret = new ArrayList<>(shards.size());
+        try {
+            ret.add(call.call(shards.get(0)));
+            for (Future<T> result : pending) {
+                ret.add(result.get());
+            }
+            return ret;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<T> result : pending) {
+                result.cancel(true);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        fanOut.shutdownNow();
+        for (Shard shard : shards) {
+            if (shard instanceof Closeable) {
+                ((Closeable) shard).close();
+            }
+        }
+    }
+
+
+    private interface ShardCall<T> {
+        T call(Shard shard) throws IOException;
+    }
+}
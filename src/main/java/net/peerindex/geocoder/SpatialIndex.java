@@ -0,0 +1,394 @@
+package net.peerindex.geocoder;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Finds locations by coordinate: the nearest location of a category, the locations within a radius and the
+ * locations within a latitude / longitude box.
+ * <p/>
+ * Locations are points on the unit sphere, so that straight-line (chord) distance grows with great-circle distance
+ * and nothing special happens at the antimeridian or the poles. There is one k-d tree per {@link FeatureCodeCategory}.
+ * Trees are implicit: the node of a range of the arrays is its middle element, so a tree is just the ordinals and
+ * their coordinates in tree order plus the split dimension of every node. These arrays are stored in snapshots as they
+ * are (see {@link IndexSnapshot}), as building the trees is most of the cost of deriving the index from the store.
+ */
+class SpatialIndex {
+    static final double EARTH_RADIUS_KM = 6371.0088;
+
+    private final LocationStore locations;
+    private final Tree[] trees;
+    // Path id of an administrative area -> ordinal of the area
+    private final LongIntHashMap areas;
+
+    SpatialIndex(LocationStore locations) {
+        this.locations = locations;
+        FeatureCodeCategory[] categories = FeatureCodeCategory.values();
+        int[] counts = new int[categories.length];
+        for (int i = 0; i < locations.size(); i++) {
+            counts[locations.category(i).ordinal()]++;
+        }
+        int[][] members = new int[categories.length][];
+        for (int c = 0; c < categories.length; c++) {
+            members[c] = new int[counts[c]];
+            counts[c] = 0;
+        }
+        LongIntHashMap areas = new LongIntHashMap(16);
+        for (int i = 0; i < locations.size(); i++) {
+            int category = locations.category(i).ordinal();
+            members[category][counts[category]++] = i;
+            if (category < LocationStore.LEVELS.length) {
+                int path = locations.path(i, category);
+                if (path != LocationStore.GAP) {
+                    int existing = areas.get(path);
+                    // Duplicates are rare; the most important one wins
+                    if (existing == LongIntHashMap.NO_VALUE || locations.weight(i) > locations.weight(existing)) {
+                        areas.put(path, i);
+                    }
+                }
+            }
+        }
+        trees = new Tree[categories.length];
+        for (int c = 0; c < categories.length; c++) {
+            trees[c] = new Tree(locations, members[c]);
+        }
+        this.areas = areas;
+    }
+
+    /**
+     * Wraps the arrays of the trees, per category, and the table of areas previously obtained from an index of the
+     * same store
+     */
+    SpatialIndex(LocationStore locations, int[][] ordinals, double[][] xyz, byte[][] dimensions, LongIntHashMap areas) {
+        this.locations = locations;
+        trees = new Tree[ordinals.length];
+        for (int c = 0; c < trees.length; c++) {
+            trees[c] = new Tree(locations, ordinals[c], xyz[c], dimensions[c]);
+        }
+        this.areas = areas;
+    }
+
+    /**
+     * @return Ordinals of the tree of the category, in tree order
+     */
+    int[] ordinals(FeatureCodeCategory category) {
+        return trees[category.ordinal()].ordinals;
+    }
+
+    /**
+     * @return Unit sphere coordinates of the tree of the category, 3 per node
+     */
+    double[] xyz(FeatureCodeCategory category) {
+        return trees[category.ordinal()].xyz;
+    }
+
+    /**
+     * @return Split dimensions of the tree of the category, one per node
+     */
+    byte[] dimensions(FeatureCodeCategory category) {
+        return trees[category.ordinal()].dimensions;
+    }
+
+    LongIntHashMap areas() {
+        return areas;
+    }
+
+    /**
+     * @return Ordinal of the location of the category nearest to the coordinate, or {@link Geocoder#NONE}
+     */
+    int nearest(double lat, double lng, FeatureCodeCategory category) {
+        Nearest search = new Nearest(xyz(lat, lng));
+        trees[category.ordinal()].nearest(search, 0, trees[category.ordinal()].size());
+        return search.best;
+    }
+
+    /**
+     * @return Ordinals of the locations within the radius, nearest first
+     */
+    int[] within(double lat, double lng, double radiusKm) {
+        double[] center = xyz(lat, lng);
+        double angle = radiusKm / EARTH_RADIUS_KM;
+        // Beyond half the circumference, everything is within
+        double chord = angle >= Math.PI ? 2 : 2 * Math.sin(angle / 2);
+        Collector found = new Collector(center, chord * chord, null);
+        for (Tree tree : trees) {
+            tree.within(found, 0, tree.size());
+        }
+        return found.sortedByDistance();
+    }
+
+    /**
+     * @param west May be greater than east, for boxes that cross the antimeridian
+     * @return Ordinals of the locations in the box, in geonameId order
+     */
+    int[] within(double south, double west, double north, double east) {
+        double width = east >= west ? east - west : east + 360 - west;
+        double centerLng = west + width / 2;
+        double centerLat = (south + north) / 2;
+        double[] center = xyz(centerLat, centerLng);
+        double chord = 2;
+        if (width <= 180) {
+            // Then the corners are the points of the box farthest from its center. Wider boxes are searched whole
+            double radius = 0;
+            for (double[] corner : new double[][]{
+                    xyz(south, west), xyz(south, east), xyz(north, west), xyz(north, east)}) {
+                radius = Math.max(radius, distanceSquared(center, corner, 0));
+            }
+            // Some slack for rounding; the box itself is checked exactly
+            chord = Math.min(2, Math.sqrt(radius) * (1 + 1e-9) + 1e-12);
+        }
+        Collector found = new Collector(center, chord * chord, new double[]{south, west, north, east});
+        for (Tree tree : trees) {
+            tree.within(found, 0, tree.size());
+        }
+        int[] ret = Arrays.copyOf(found.ordinals, found.size);
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    /**
+     * @return Ordinal of the administrative area on the level (see {@link LocationStore#LEVELS}) that contains the
+     * location, or {@link Geocoder#NONE} if it isn't indexed
+     */
+    int area(int ordinal, int level) {
+        int path = locations.path(ordinal, level);
+        if (path == LocationStore.GAP) {
+            return Geocoder.NONE;
+        }
+        int area = areas.get(path);
+        return area == LongIntHashMap.NO_VALUE ? Geocoder.NONE : area;
+    }
+
+    static double[] xyz(double lat, double lng) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lng);
+        double cosPhi = Math.cos(phi);
+        return new double[]{cosPhi * Math.cos(lambda), cosPhi * Math.sin(lambda), Math.sin(phi)};
+    }
+
+    private static double distanceSquared(double[] point, double[] xyz, int offset) {
+        double dx = point[0] - xyz[offset];
+        double dy = point[1] - xyz[offset + 1];
+        double dz = point[2] - xyz[offset + 2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static boolean inBox(double[] box, double lat, double lng) {
+        if (lat < box[0] || lat > box[2]) {
+            return false;
+        }
+        return box[1] <= box[3] ? lng >= box[1] && lng <= box[3] : lng >= box[1] || lng <= box[3];
+    }
+
+    private static class Tree {
+        private final LocationStore locations;
+        private final int[] ordinals;
+        // 3 per node
+        private final double[] xyz;
+        private final byte[] dimensions;
+
+        private Tree(LocationStore locations, int[] ordinals) {
+            this.locations = locations;
+            this.ordinals = ordinals;
+            xyz = new double[ordinals.length * 3];
+            dimensions = new byte[ordinals.length];
+            for (int i = 0; i < ordinals.length; i++) {
+                double[] point = xyz(locations.lats()[ordinals[i]], locations.lngs()[ordinals[i]]);
+                System.arraycopy(point, 0, xyz, i * 3, 3);
+            }
+            build(0, ordinals.length);
+        }
+
+        private Tree(LocationStore locations, int[] ordinals, double[] xyz, byte[] dimensions) {
+            this.locations = locations;
+            this.ordinals = ordinals;
+            this.xyz = xyz;
+            this.dimensions = dimensions;
+        }
+
+        private int size() {
+            return ordinals.length;
+        }
+
+        private void build(int from, int to) {
+            if (to - from <= 1) {
+                return;
+            }
+            // Split on the dimension with the largest extent
+            double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+            double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+            for (int i = from; i < to; i++) {
+                for (int d = 0; d < 3; d++) {
+                    min[d] = Math.min(min[d], xyz[i * 3 + d]);
+                    max[d] = Math.max(max[d], xyz[i * 3 + d]);
+                }
+            }
+            int dimension = 0;
+            for (int d = 1; d < 3; d++) {
+                if (max[d] - min[d] > max[dimension] - min[dimension]) {
+                    dimension = d;
+                }
+            }
+            int middle = (from + to) >>> 1;
+            select(from, to - 1, middle, dimension);
+            dimensions[middle] = (byte) dimension;
+            build(from, middle);
+            build(middle + 1, to);
+        }
+
+        /**
+         * Quickselect: puts the k-th smallest of [left, right] by the dimension at k, smaller ones before it and
+         * larger ones after it
+         */
+        private void select(int left, int right, int k, int dimension) {
+            while (right > left) {
+                int pivot = partition(left, right, (left + right) >>> 1, dimension);
+                if (pivot == k) {
+                    return;
+                } else if (k < pivot) {
+                    right = pivot - 1;
+                } else {
+                    left = pivot + 1;
+                }
+            }
+        }
+
+        private int partition(int left, int right, int pivot, int dimension) {
+            double value = xyz[pivot * 3 + dimension];
+            swap(pivot, right);
+            int store = left;
+            for (int i = left; i < right; i++) {
+                if (xyz[i * 3 + dimension] < value) {
+                    swap(i, store++);
+                }
+            }
+            swap(store, right);
+            return store;
+        }
+
+        private void swap(int i, int j) {
+            int ordinal = ordinals[i];
+            ordinals[i] = ordinals[j];
+            ordinals[j] = ordinal;
+            for (int d = 0; d < 3; d++) {
+                double value = xyz[i * 3 + d];
+                xyz[i * 3 + d] = xyz[j * 3 + d];
+                xyz[j * 3 + d] = value;
+            }
+        }
+
+        private void nearest(Nearest search, int from, int to) {
+            if (from >= to) {
+                return;
+            }
+            int node = (from + to) >>> 1;
+            search.offer(ordinals[node], distanceSquared(search.point, xyz, node * 3));
+            if (to - from == 1) {
+                return;
+            }
+            double diff = search.point[dimensions[node]] - xyz[node * 3 + dimensions[node]];
+            if (diff < 0) {
+                nearest(search, from, node);
+                if (diff * diff <= search.bestDistance) {
+                    nearest(search, node + 1, to);
+                }
+            } else {
+                nearest(search, node + 1, to);
+                if (diff * diff <= search.bestDistance) {
+                    nearest(search, from, node);
+                }
+            }
+        }
+
+        private void within(Collector found, int from, int to) {
+            if (from >= to) {
+                return;
+            }
+            int node = (from + to) >>> 1;
+            double distance = distanceSquared(found.center, xyz, node * 3);
+            if (distance <= found.radius) {
+                int ordinal = ordinals[node];
+                if (found.box == null || inBox(found.box, locations.lats()[ordinal], locations.lngs()[ordinal])) {
+                    found.add(ordinal, distance);
+                }
+            }
+            if (to - from == 1) {
+                return;
+            }
+            double diff = found.center[dimensions[node]] - xyz[node * 3 + dimensions[node]];
+            if (diff < 0 || diff * diff <= found.radius) {
+                within(found, from, node);
+            }
+            if (diff >= 0 || diff * diff <= found.radius) {
+                within(found, node + 1, to);
+            }
+        }
+    }
+
+    private static class Nearest {
+        private final double[] point;
+        private int best = Geocoder.NONE;
+        private double bestDistance = Double.MAX_VALUE;
+
+        private Nearest(double[] point) {
+            this.point = point;
+        }
+
+        private void offer(int ordinal, double distance) {
+            // Ties go to the smaller ordinal, so that the result doesn't depend on the shape of the tree
+            if (distance < bestDistance || (distance == bestDistance && ordinal < best)) {
+                best = ordinal;
+                bestDistance = distance;
+            }
+        }
+    }
+
+    private static class Collector {
+        private final double[] center;
+        // Squared chord
+        private final double radius;
+        // south, west, north, east, or null
+        private final double[] box;
+        private int[] ordinals = new int[16];
+        private double[] distances = new double[16];
+        private int size;
+
+        private Collector(double[] center, double radius, double[] box) {
+            this.center = center;
+            this.radius = radius;
+            this.box = box;
+        }
+
+        private void add(int ordinal, double distance) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            ordinals[size] = ordinal;
+            distances[size] = distance;
+            size++;
+        }
+
+        /**
+         * @return The ordinals by distance, then by ordinal
+         */
+        private int[] sortedByDistance() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int byDistance = Double.compare(distances[a], distances[b]);
+                    return byDistance != 0 ? byDistance : Integer.compare(ordinals[a], ordinals[b]);
+                }
+            });
+            int[] ret = new int[size];
+            for (int i = 0; i < size; i++) {
+                ret[i] = ordinals[order[i]];
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package net.peerindex.geocoder;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sample of values spread over several independent reservoirs picked by thread, so that threads recording at a high
+ * rate don't contend on one lock. Each stripe is an {@link ExponentiallyDecayingReservoir}, biased towards the last
+ * five minutes like the default reservoir of metrics-core. Stripes see different numbers of updates but keep samples
+ * of the same size, so snapshots draw from each stripe in proportion to the updates it has seen.
+ */
+class StripedReservoir implements Reservoir {
+    private static final int SAMPLE_SIZE = 1028;
+    // Same as the default of metrics-core
+    private static final double ALPHA = 0.015;
+
+    private final ExponentiallyDecayingReservoir[] stripes;
+    private final AtomicLong[] counts;
+
+    StripedReservoir() {
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        stripes = new ExponentiallyDecayingReservoir[n];
+        counts = new AtomicLong[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new ExponentiallyDecayingReservoir(Math.max(64, SAMPLE_SIZE / n), ALPHA);
+            counts[i] = new AtomicLong();
+        }
+    }
+
+    @Override
+    public int size() {
+        return getSnapshot().size();
+    }
+
+    @Override
+    public void update(long value) {
+        int stripe = (int) Thread.currentThread().getId() & (stripes.length - 1);
+        stripes[stripe].update(value);
+        counts[stripe].incrementAndGet();
+    }
+
+    /**
+     * Takes evenly spaced quantiles of each stripe's sample, as many as its share of the updates. The merged sample
+     * is as large as it can be without taking more values from a stripe than its sample has
+     */
+    @Override
+    public Snapshot getSnapshot() {
+        long[][] samples = new long[stripes.length][];
+        long[] stripeCounts = new long[stripes.length];
+        long total = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            stripeCounts[i] = counts[i].get();
+            samples[i] = stripes[i].getSnapshot().getValues();
+            total += stripeCounts[i];
+        }
+        // Largest merged size at which no stripe's share exceeds its sample
+        double size = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            size += samples[i].length;
+        }
+        for (int i = 0; i < stripes.length; i++) {
+            if (stripeCounts[i] > 0) {
+                size = Math.min(size, (double) samples[i].length * total / stripeCounts[i]);
+            }
+        }
+
+        long[] values = new long[(int) size + stripes.length];
+        int n = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            long[] sample = samples[i];
+            int share = stripeCounts[i] == 0 ? 0
+                    : (int) Math.min(sample.length, Math.round(size * stripeCounts[i] / total));
+            for (int j = 0; j < share; j++) {
+                // Values of a snapshot are sorted
+                values[n++] = sample[(int) ((j + 0.5) * sample.length / share)];
+            }
+        }
+        return new Snapshot(Arrays.copyOf(values, n));
+    }
+}
@@ -0,0 +1,90 @@
+package net.peerindex.geocoder;
+
+import java.util.Arrays;
+
+/**
+ * Reusable output of {@link Tokenizer}: the case folded characters of all tokens back to back, plus the boundaries
+ * of every token. Reusing one buffer per thread makes tokenizing (and translating tokens to ids) allocation free.
+ * Not thread-safe.
+ */
+class TokenBuffer {
+    // Scratch space for input that has to be decoded or copied first
+    private char[] input = new char[128];
+    private byte[] bytes = new byte[0];
+    private char[] chars = new char[128];
+    private int end;
+    // Token i is chars[starts[i]] .. chars[starts[i + 1] - 1]
+    private int[] starts = new int[17];
+    private int[] ids = new int[16];
+    private int size;
+
+    void clear() {
+        size = 0;
+        end = 0;
+        starts[0] = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    char[] chars() {
+        return chars;
+    }
+
+    int start(int token) {
+        return starts[token];
+    }
+
+    int length(int token) {
+        return starts[token + 1] - starts[token];
+    }
+
+    /**
+     * @return A new String of the given token
+     */
+    String token(int token) {
+        return new String(chars, start(token), length(token));
+    }
+
+    /**
+     * Scratch array for the token ids of this buffer, with room for at least {@link #size()} ids
+     */
+    int[] ids() {
+        if (ids.length < size) {
+            ids = new int[Math.max(size, ids.length * 2)];
+        }
+        return ids;
+    }
+
+    char[] input(int capacity) {
+        if (input.length < capacity) {
+            input = new char[Math.max(capacity, input.length * 2)];
+        }
+        return input;
+    }
+
+    byte[] bytes(int capacity) {
+        if (bytes.length < capacity) {
+            bytes = new byte[Math.max(capacity, bytes.length * 2)];
+        }
+        return bytes;
+    }
+
+    void append(char c) {
+        if (end == chars.length) {
+            chars = Arrays.copyOf(chars, chars.length * 2);
+        }
+        chars[end++] = c;
+    }
+
+    /**
+     * Ends the token whose characters have been appended since the last call
+     */
+    void endToken() {
+        if (size + 2 > starts.length) {
+            starts = Arrays.copyOf(starts, starts.length * 2);
+        }
+        starts[++size] = end;
+    }
+}
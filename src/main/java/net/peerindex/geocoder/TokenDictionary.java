@@ -0,0 +1,158 @@
+package net.peerindex.geocoder;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Maps every distinct token of the index keys to a dense int id. Queries are translated into token ids once, after
+ * which matching only compares ints. Tokens that don't occur in any key map to {@link #UNKNOWN}, which can't continue
+ * any key.
+ */
+class TokenDictionary {
+    static final int UNKNOWN = -1;
+
+    private final String[] tokens;
+    // Open addressing (linear probing) table of id + 1, 0 means empty
+    private final int[] table;
+    private final int mask;
+
+    /**
+     * @param tokens Distinct tokens; the id of a token is its position in this array
+     */
+    TokenDictionary(String[] tokens) {
+        this.tokens = tokens;
+        int capacity = Integer.highestOneBit(Math.max(4, tokens.length * 2 - 1)) << 1;
+        this.table = new int[capacity];
+        this.mask = capacity - 1;
+        for (int id = 0; id < tokens.length; id++) {
+            int slot = spread(tokens[id].hashCode()) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    /**
+     * Creates a dictionary of the given tokens, with ids assigned in lexicographic order
+     */
+    static TokenDictionary of(Collection<String> distinctTokens) {
+        String[] tokens = distinctTokens.toArray(new String[distinctTokens.size()]);
+        Arrays.sort(tokens);
+        return new TokenDictionary(tokens);
+    }
+
+    /**
+     * @return The id of the token, or {@link #UNKNOWN}
+     */
+    int id(CharSequence token) {
+        // Same as String#hashCode, which String caches
+        int hash = token instanceof String ? token.hashCode() : hash(token);
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (id < 0) {
+                return UNKNOWN;
+            }
+            if (contentEquals(tokens[id], token)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * @return The id of the token {@code chars[offset] .. chars[offset + length - 1]}, or {@link #UNKNOWN}
+     */
+    int id(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (id < 0) {
+                return UNKNOWN;
+            }
+            if (contentEquals(tokens[id], chars, offset, length)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Translates all tokens of the buffer, into {@link TokenBuffer#ids()}
+     * @return The ids array of the buffer
+     */
+    int[] ids(TokenBuffer buffer) {
+        int[] ids = buffer.ids();
+        for (int i = 0; i < buffer.size(); i++) {
+            ids[i] = id(buffer.chars(), buffer.start(i), buffer.length(i));
+        }
+        return ids;
+    }
+
+    /**
+     * @return The ids of the tokens, {@link #UNKNOWN} for tokens not in this dictionary
+     */
+    int[] ids(List<String> tokens) {
+        int[] ids = new int[tokens.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = id(tokens.get(i));
+        }
+        return ids;
+    }
+
+    String token(int id) {
+        return tokens[id];
+    }
+
+    int size() {
+        return tokens.length;
+    }
+
+    String[] tokens() {
+        return tokens;
+    }
+
+    private static int hash(CharSequence s) {
+        int h = 0;
+        for (int i = 0; i < s.length(); i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
+    }
+
+    private static boolean contentEquals(String a, CharSequence b) {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        for (int i = 0; i < a.length(); i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contentEquals(String a, char[] b, int offset, int length) {
+        if (a.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (a.charAt(i) != b[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(int h) {
+        // Murmur3 finalizer; String hashes of short tokens are poorly distributed in the low bits
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,38 @@
+package net.peerindex.geocoder;
+
+import java.util.Arrays;
+
+/**
+ * Token ids of a normalized query, usable as a map key. Queries with the same token sequence resolve to the same
+ * location. Unknown tokens all share the id {@link TokenDictionary#UNKNOWN}, which is fine as they can't match
+ * anything and only act as separators.
+ */
+final class TokenSequence {
+    final int[] tokens;
+    private final int hash;
+
+    TokenSequence(int[] tokens) {
+        this.tokens = tokens;
+        this.hash = Arrays.hashCode(tokens);
+    }
+
+    /**
+     * Copies the first {@code length} token ids
+     */
+    static TokenSequence copyOf(int[] tokens, int length) {
+        return new TokenSequence(Arrays.copyOf(tokens, length));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TokenSequence)) return false;
+        TokenSequence that = (TokenSequence) o;
+        return hash == that.hash && Arrays.equals(tokens, that.tokens);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
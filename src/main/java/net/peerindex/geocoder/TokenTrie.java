@@ -0,0 +1,281 @@
+package net.peerindex.geocoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Trie over the token ids of the index keys. The longest key starting at a given token is found with a single walk
+ * that stops as soon as no key can continue, instead of probing a map with every possible sub-list.
+ * <p/>
+ * Nodes are dense ints ({@link #ROOT} is 0). The edges of all nodes live in one primitive open addressing table
+ * keyed by (node, token id), and the posting lists (location ordinals) of all keys are concatenated in one array.
+ * A key is identified by the node it ends on. Each posting list is sorted by descending weight, then by ordinal (see
+ * {@link #rankedBy}), so disambiguation can stop at the first location that settles the choice.
+ * <p/>
+ * Most tokens of real queries ("I", "LOVE", numbers) don't start any key. A bitset of the tokens that do answers that
+ * with one bit test instead of a probe of the edge table.
+ */
+class TokenTrie {
+    static final int ROOT = 0;
+    static final int NONE = -1;
+
+    private final LongIntHashMap edges;
+    // Postings of node n are postings[postingOffsets[n]] .. postings[postingOffsets[n + 1] - 1]
+    private final int[] postingOffsets;
+    private final int[] postings;
+    // Bit t is set if token t starts a key
+    private final long[] starters;
+
+    TokenTrie(LongIntHashMap edges, int[] postingOffsets, int[] postings) {
+        this.edges = edges;
+        this.postingOffsets = postingOffsets;
+        this.postings = postings;
+
+        long[] keys = edges.keys();
+        int maxToken = -1;
+        for (long key : keys) {
+            if (LongIntHashMap.isUsed(key) && (int) (key >>> 32) == ROOT) {
+                maxToken = Math.max(maxToken, (int) key);
+            }
+        }
+        starters = new long[(maxToken >> 6) + 1];
+        for (long key : keys) {
+            if (LongIntHashMap.isUsed(key) && (int) (key >>> 32) == ROOT) {
+                starters[(int) key >>> 6] |= 1L << (int) key;
+            }
+        }
+    }
+
+    private TokenTrie(TokenTrie keys, int[] postings) {
+        this.edges = keys.edges;
+        this.postingOffsets = keys.postingOffsets;
+        this.postings = postings;
+        this.starters = keys.starters;
+    }
+
+    /**
+     * @return A trie of the same keys with every posting list sorted by descending weight, then by ordinal (which is
+     * geonameId order). This one if its posting lists already are, otherwise only the postings are copied
+     */
+    TokenTrie rankedBy(LocationStore locations) {
+        int[] ranked = null;
+        for (int key = 0; key < nodeCount(); key++) {
+            int start = postingStart(key);
+            int end = postingEnd(key);
+            for (int p = start + 1; p < end; p++) {
+                if (!ranksBefore(locations, postings[p - 1], postings[p])) {
+                    if (ranked == null) {
+                        ranked = postings.clone();
+                    }
+                    rank(locations, ranked, start, end);
+                    break;
+                }
+            }
+        }
+        return ranked == null ? this : new TokenTrie(this, ranked);
+    }
+
+    /**
+     * @return Whether the location comes first in a posting list ranked by {@link #rankedBy}
+     */
+    static boolean ranksBefore(LocationStore locations, int ordinal, int than) {
+        int byWeight = Double.compare(locations.weight(ordinal), locations.weight(than));
+        return byWeight > 0 || (byWeight == 0 && ordinal < than);
+    }
+
+    private static void rank(final LocationStore locations, int[] postings, int from, int to) {
+        Integer[] order = new Integer[to - from];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = postings[from + i];
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byWeight = Double.compare(locations.weight(b), locations.weight(a));
+                return byWeight != 0 ? byWeight : Integer.compare(a, b);
+            }
+        });
+        for (int i = 0; i < order.length; i++) {
+            postings[from + i] = order[i];
+        }
+    }
+
+    private static long edge(int node, int token) {
+        return ((long) node << 32) | token;
+    }
+
+    /**
+     * @return Whether some key starts with the token. False for unknown tokens
+     */
+    boolean startsKey(int token) {
+        return token >= 0 && (token >>> 6) < starters.length && (starters[token >>> 6] & (1L << token)) != 0;
+    }
+
+    /**
+     * @return The node reached from the given node with the token, or {@link #NONE}
+     */
+    int child(int node, int token) {
+        if (token < 0) {
+            // Unknown tokens can't continue any key
+            return NONE;
+        }
+        return edges.get(edge(node, token));
+    }
+
+    /**
+     * @return The longest key that is a prefix of {@code tokens[from..]}, or null if there is none
+     */
+    ConsumedMatch longestMatch(int[] tokens, int from) {
+        return longestMatch(tokens, from, tokens.length);
+    }
+
+    /**
+     * @return The longest key that is a prefix of {@code tokens[from..to - 1]}, or null if there is none
+     */
+    ConsumedMatch longestMatch(int[] tokens, int from, int to) {
+        if (from >= to || !startsKey(tokens[from])) {
+            // Nothing to walk
+            return null;
+        }
+        int node = ROOT;
+        int consumed = 0;
+        int match = NONE;
+        for (int i = from; i < to; i++) {
+            node = child(node, tokens[i]);
+            if (node == NONE) {
+                // No key continues with this token
+                break;
+            }
+            if (isKey(node)) {
+                consumed = i - from + 1;
+                match = node;
+            }
+        }
+        return match == NONE ? null : new ConsumedMatch(consumed, match);
+    }
+
+    boolean isKey(int node) {
+        return postingOffsets[node + 1] > postingOffsets[node];
+    }
+
+    int postingStart(int key) {
+        return postingOffsets[key];
+    }
+
+    int postingEnd(int key) {
+        return postingOffsets[key + 1];
+    }
+
+    int posting(int i) {
+        return postings[i];
+    }
+
+    int nodeCount() {
+        return postingOffsets.length - 1;
+    }
+
+    /**
+     * Calls the visitor for every key, with the token ids of the key
+     */
+    void forEachKey(KeyVisitor visitor) {
+        int nodes = nodeCount();
+        int[] parent = new int[nodes];
+        int[] token = new int[nodes];
+        long[] keys = edges.keys();
+        int[] values = edges.values();
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (LongIntHashMap.isUsed(keys[slot])) {
+                parent[values[slot]] = (int) (keys[slot] >>> 32);
+                token[values[slot]] = (int) keys[slot];
+            }
+        }
+        int[] path = new int[16];
+        for (int node = 0; node < nodes; node++) {
+            if (!isKey(node)) {
+                continue;
+            }
+            int length = 0;
+            for (int n = node; n != ROOT; n = parent[n]) {
+                if (length == path.length) {
+                    path = Arrays.copyOf(path, length * 2);
+                }
+                path[length++] = token[n];
+            }
+            int[] key = new int[length];
+            for (int i = 0; i < length; i++) {
+                key[i] = path[length - 1 - i];
+            }
+            visitor.visit(key, Arrays.copyOfRange(postings, postingStart(node), postingEnd(node)));
+        }
+    }
+
+    // Raw tables, for serialization
+
+    LongIntHashMap edges() {
+        return edges;
+    }
+
+    int[] postingOffsets() {
+        return postingOffsets;
+    }
+
+    int[] postings() {
+        return postings;
+    }
+
+
+    interface KeyVisitor {
+        void visit(int[] tokens, int[] postings);
+    }
+
+    /**
+     * Adds keys one by one. Node ids are assigned in insertion order, so inserting the same keys in the same order
+     * always produces the same trie
+     */
+    static class Builder {
+        private final LongIntHashMap edges;
+        private final List<int[]> postingsByNode = new ArrayList<>();
+        private int postingCount;
+
+        Builder(int expectedKeys) {
+            edges = new LongIntHashMap(expectedKeys * 2);
+            postingsByNode.add(null);
+        }
+
+        void add(int[] key, int[] postings) {
+            int node = ROOT;
+            for (int token : key) {
+                int child = edges.get(edge(node, token));
+                if (child == LongIntHashMap.NO_VALUE) {
+                    child = postingsByNode.size();
+                    postingsByNode.add(null);
+                    edges.put(edge(node, token), child);
+                }
+                node = child;
+            }
+            if (postingsByNode.get(node) != null) {
+                postingCount -= postingsByNode.get(node).length;
+            }
+            postingsByNode.set(node, postings);
+            postingCount += postings.length;
+        }
+
+        TokenTrie build() {
+            int[] offsets = new int[postingsByNode.size() + 1];
+            int[] postings = new int[postingCount];
+            int offset = 0;
+            for (int node = 0; node < postingsByNode.size(); node++) {
+                offsets[node] = offset;
+                int[] p = postingsByNode.get(node);
+                if (p != null) {
+                    System.arraycopy(p, 0, postings, offset, p.length);
+                    offset += p.length;
+                }
+            }
+            offsets[postingsByNode.size()] = offset;
+            return new TokenTrie(edges, offsets, postings);
+        }
+    }
+}
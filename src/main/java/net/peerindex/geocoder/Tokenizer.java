@@ -1,47 +1,199 @@
 package net.peerindex.geocoder;
 
-import com.google.common.base.CharMatcher;
-import com.google.common.base.Function;
-import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
 
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Tokenizer for free text location field. Very rough in order to cope with the wild world of social media
+ * <p/>
+ * Tokens are maximal runs of letters and digits (judged per char, so surrogate pairs act as delimiters). Tokens of 3
+ * or more characters are upper-cased like {@code String.toUpperCase(Locale.ENGLISH)} would, shorter ones keep their
+ * case. The {@link TokenBuffer} variants produce the same tokens without allocating, and can read UTF-8 directly.
  * @author Enno Shioji (eshioji@gmail.com)
  */
 class Tokenizer {
+    private static final char REPLACEMENT = '\uFFFD';
 
-    private final CharMatcher notLetterNorDigit = new CharMatcher() {
-        @Override
-        public boolean matches(char c) {
-            return !Character.isLetter((int) c) && !Character.isDigit((int) c);
+    // Upper case of every char, or 0 if it doesn't map to a single char
+    private static final char[] UPPER = new char[Character.MAX_VALUE + 1];
+    private static final Map<Character, String> UPPER_EXPANSIONS = new HashMap<>();
+
+    static {
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            if (!Character.isLetter((char) c)) {
+                UPPER[c] = (char) c;
+                continue;
+            }
+            String upper = String.valueOf((char) c).toUpperCase(Locale.ENGLISH);
+            if (upper.length() == 1) {
+                UPPER[c] = upper.charAt(0);
+            } else {
+                // e.g. U+00DF (sharp s) -> "SS"
+                UPPER_EXPANSIONS.put((char) c, upper);
+            }
         }
-    };
-    private final Splitter splitter = Splitter.on(notLetterNorDigit).omitEmptyStrings().trimResults();
-    
+    }
+
     ImmutableList<String> tokenize(String locationString) {
-        // Split into tokens (note that delimiting characters gets removed)
-        Iterable<String> split = splitter.split(locationString);
-
-
-        split = Iterables.transform(split, new Function<String, String>() {
-            @Override
-            public String apply(String input) {
-                if(input.length() < 3){
-                    // Do not normalize case if input is too short
-                    return input;
-                }else{
-                    return input.toUpperCase(Locale.ENGLISH);
+        TokenBuffer buffer = new TokenBuffer();
+        tokenize(locationString, buffer);
+
+        ImmutableList.Builder<String> b = ImmutableList.builder();
+        for (int i = 0; i < buffer.size(); i++) {
+            b.add(buffer.token(i));
+        }
+        return b.build();
+    }
+
+    /**
+     * Tokenizes into the given buffer, replacing its previous contents
+     */
+    void tokenize(CharSequence locationString, TokenBuffer out) {
+        int length = locationString.length();
+        char[] input = out.input(length);
+        if (locationString instanceof String) {
+            ((String) locationString).getChars(0, length, input, 0);
+        } else {
+            for (int i = 0; i < length; i++) {
+                input[i] = locationString.charAt(i);
+            }
+        }
+        tokenize(input, length, out);
+    }
+
+    /**
+     * Tokenizes UTF-8 encoded text into the given buffer, replacing its previous contents. Malformed input is treated
+     * like the replacement character it would be decoded to, i.e. as a delimiter
+     */
+    void tokenize(byte[] utf8, int offset, int length, TokenBuffer out) {
+        char[] input = out.input(length);
+        int n = 0;
+        int i = offset;
+        int end = offset + length;
+        while (i < end) {
+            int b0 = utf8[i] & 0xFF;
+            if (b0 < 0x80) {
+                input[n++] = (char) b0;
+                i++;
+                continue;
+            }
+            int sequence = sequenceLength(b0, i + 1 < end ? utf8[i + 1] & 0xFF : -1);
+            if (sequence == 0 || i + sequence > end || !continuations(utf8, i + 2, i + sequence)) {
+                // Only skip the lead byte, as the decoder would; what follows is looked at on its own
+                input[n++] = REPLACEMENT;
+                i++;
+                continue;
+            }
+            input[n++] = decode(b0, utf8, i, sequence);
+            i += sequence;
+        }
+        tokenize(input, n, out);
+    }
+
+    /**
+     * Tokenizes the remaining UTF-8 encoded bytes of the buffer, without changing its position
+     */
+    void tokenize(ByteBuffer utf8, TokenBuffer out) {
+        if (utf8.hasArray()) {
+            tokenize(utf8.array(), utf8.arrayOffset() + utf8.position(), utf8.remaining(), out);
+        } else {
+            byte[] bytes = out.bytes(utf8.remaining());
+            int length = utf8.remaining();
+            utf8.duplicate().get(bytes, 0, length);
+            tokenize(bytes, 0, length, out);
+        }
+    }
+
+    private void tokenize(char[] input, int length, TokenBuffer out) {
+        out.clear();
+        int i = 0;
+        while (i < length) {
+            // Delimiting characters are removed
+            while (i < length && !isTokenChar(input[i])) {
+                i++;
+            }
+            int start = i;
+            while (i < length && isTokenChar(input[i])) {
+                i++;
+            }
+            if (i == start) {
+                continue;
+            }
+            if (i - start < 3) {
+                // Do not normalize case if input is too short
+                for (int j = start; j < i; j++) {
+                    out.append(input[j]);
+                }
+            } else {
+                for (int j = start; j < i; j++) {
+                    char upper = UPPER[input[j]];
+                    if (upper != 0) {
+                        out.append(upper);
+                    } else {
+                        String expansion = UPPER_EXPANSIONS.get(input[j]);
+                        for (int k = 0; k < expansion.length(); k++) {
+                            out.append(expansion.charAt(k));
+                        }
+                    }
                 }
             }
-        });
+            out.endToken();
+        }
+    }
 
-        return ImmutableList.copyOf(split);
+    private static boolean isTokenChar(char c) {
+        return Character.isLetter((int) c) || Character.isDigit((int) c);
+    }
+
+    /**
+     * @return Length of the well-formed UTF-8 sequence starting with these bytes, or 0 if it can't be one
+     */
+    private static int sequenceLength(int b0, int b1) {
+        if (b0 >= 0xC2 && b0 <= 0xDF) {
+            return isContinuation(b1) ? 2 : 0;
+        } else if (b0 == 0xE0) {
+            // No overlong encodings
+            return b1 >= 0xA0 && b1 <= 0xBF ? 3 : 0;
+        } else if (b0 == 0xED) {
+            // No surrogates
+            return b1 >= 0x80 && b1 <= 0x9F ? 3 : 0;
+        } else if (b0 >= 0xE1 && b0 <= 0xEF) {
+            return isContinuation(b1) ? 3 : 0;
+        } else if (b0 == 0xF0) {
+            return b1 >= 0x90 && b1 <= 0xBF ? 4 : 0;
+        } else if (b0 >= 0xF1 && b0 <= 0xF3) {
+            return isContinuation(b1) ? 4 : 0;
+        } else if (b0 == 0xF4) {
+            return b1 >= 0x80 && b1 <= 0x8F ? 4 : 0;
+        }
+        return 0;
+    }
+
+    private static boolean isContinuation(int b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    private static boolean continuations(byte[] utf8, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!isContinuation(utf8[i] & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char decode(int b0, byte[] utf8, int i, int sequence) {
+        if (sequence == 4) {
+            // Supplementary code point; its surrogates are delimiters anyway
+            return REPLACEMENT;
+        } else if (sequence == 3) {
+            return (char) (((b0 & 0x0F) << 12) | ((utf8[i + 1] & 0x3F) << 6) | (utf8[i + 2] & 0x3F));
+        }
+        return (char) (((b0 & 0x1F) << 6) | (utf8[i + 1] & 0x3F));
     }
 
 }
@@ -0,0 +1,95 @@
+package net.peerindex.geocoder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BulkGeocoderTest {
+    private static final String[] QUERIES = {"London", "New York, UK", "\"Tiny\" town", "nowhere", "", "US"};
+
+    private Geocoder geocoder;
+
+    @Before
+    public void setUp() throws Exception {
+        geocoder = new Geocoder(TestUtils.testIndex("test.gazetteer.txt"));
+    }
+
+    @Test
+    public void ndjsonInInputOrder() throws Exception {
+        List<String> input = randomQueries(10000);
+        StringWriter out = new StringWriter();
+        long count = new BulkGeocoder(geocoder).threads(4).chunkSize(7)
+                .run(new BufferedReader(new StringReader(Joiner.on('\n').join(input))), out);
+        assertEquals(input.size(), count);
+
+        List<String> lines = lines(out);
+        assertEquals(input.size(), lines.size());
+        ObjectMapper mapper = new ObjectMapper();
+        for (int i = 0; i < input.size(); i++) {
+            JsonNode result = mapper.readTree(lines.get(i));
+            assertEquals(input.get(i), result.get("query").asText());
+            Location expected = geocoder.resolve(input.get(i));
+            if (expected == null) {
+                assertTrue(result.get("location").isNull());
+            } else {
+                assertEquals(expected.getGeonameId(), result.get("location").get("geonameId").asInt());
+                assertEquals(expected.getCodes().get(FeatureCodeCategory.PCL), result.get("location").get("codes").get("PCL").asText());
+            }
+        }
+    }
+
+    @Test
+    public void tsvColumnToTsv() throws Exception {
+        String input = "1\tLondon\tx\n2\tnowhere\n3\n";
+        StringWriter out = new StringWriter();
+        new BulkGeocoder(geocoder).tsv(1).output(BulkGeocoder.OutputFormat.TSV).run(new BufferedReader(new StringReader(input)), out);
+
+        List<String> lines = lines(out);
+        assertEquals(3, lines.size());
+        List<String> london = ImmutableList.copyOf(Splitter.on('\t').split(lines.get(0)));
+        assertEquals(ImmutableList.of("London", "2648109", "London", "PPL", "GB"), london.subList(0, 5));
+        assertEquals("nowhere\t\t\t\t\t\t", lines.get(1));
+        assertEquals("\t\t\t\t\t\t", lines.get(2));
+    }
+
+    @Test
+    public void ndjsonField() throws Exception {
+        String input = "{\"id\":1,\"nested\":{\"location\":\"US\"},\"location\":\"Lon\\u0064on\"}\n{\"location\":42}\nnot json\n";
+        StringWriter out = new StringWriter();
+        new BulkGeocoder(geocoder).ndjson("location").run(new BufferedReader(new StringReader(input)), out);
+
+        List<String> lines = lines(out);
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(2648109, mapper.readTree(lines.get(0)).get("location").get("geonameId").asInt());
+        assertTrue(mapper.readTree(lines.get(1)).get("query").isNull());
+        assertTrue(mapper.readTree(lines.get(2)).get("location").isNull());
+    }
+
+    private static List<String> randomQueries(int n) {
+        Random random = new Random(0);
+        List<String> ret = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ret.add(QUERIES[random.nextInt(QUERIES.length)] + (random.nextBoolean() ? "" : " " + i));
+        }
+        return ret;
+    }
+
+    private static List<String> lines(StringWriter out) {
+        String s = out.toString();
+        assertTrue(s.isEmpty() || s.endsWith("\n"));
+        return s.isEmpty() ? ImmutableList.<String>of() : ImmutableList.copyOf(Splitter.on('\n').split(s.substring(0, s.length() - 1)));
+    }
+}
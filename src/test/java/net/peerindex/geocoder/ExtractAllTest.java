@@ -0,0 +1,127 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ExtractAllTest {
+    private Geocoder subject;
+
+    @Before
+    public void setUp() throws Exception {
+        String gazetteer = Joiner.on('\n').join(
+                TestUtils.gazetteerRow(1, "UK", "PCL", "GB", "", 100000000),
+                TestUtils.gazetteerRow(2, "US", "PCL", "US", "", 300000000),
+                TestUtils.gazetteerRow(3, "France", "PCL", "FR", "", 60000000),
+                TestUtils.gazetteerRow(4, "Ohio", "ADM1", "US", "OH", 10000000),
+                TestUtils.gazetteerRow(10, "London", "PPL", "GB", "ENG", 100000),
+                TestUtils.gazetteerRow(20, "London", "PPL", "US", "OH", 100000),
+                TestUtils.gazetteerRow(30, "Paris", "PPL", "FR", "A8", 2000000),
+                TestUtils.gazetteerRow(40, "Paris", "PPL", "US", "OH", 1000),
+                TestUtils.gazetteerRow(50, "New London", "PPL", "US", "OH", 5000));
+        GeoDbIndexer indexer = new GeoDbIndexer(new BufferedReader(new StringReader(gazetteer)),
+                TestUtils.testPopulationThreshold(), ImmutableMap.of("US", 0.2, "GB", 0.1));
+        subject = new Geocoder(indexer.index(indexer.extractLocations()));
+    }
+
+    @Test
+    public void everyMention() {
+        List<Candidate> mentions = subject.extractAll(
+                "We flew from London to Paris last week. The year before it was London, Ohio and then New London, " +
+                        "which is a long drive. No Paris there, that one's in France!");
+        assertEquals(ImmutableList.of(10, 30, 20, 4, 50, 30, 3), ids(mentions));
+
+        // Tokens: We FLEW FROM LONDON ...
+        assertEquals(3, mentions.get(0).getTokenStart());
+        assertEquals(4, mentions.get(0).getTokenEnd());
+        Candidate newLondon = mentions.get(4);
+        assertEquals(2, newLondon.getTokenEnd() - newLondon.getTokenStart());
+        // Paris is named near London, but doesn't contain it
+        assertFalse(mentions.get(0).isConsistent());
+        assertTrue(subject.extractAll("Paris, France").get(0).isConsistent());
+    }
+
+    @Test
+    public void likeResolveForShortInput() {
+        for (String query : ImmutableList.of("London", "London, Ohio", "Paris OH", "Paris France", "Nowhere")) {
+            List<Candidate> mentions = subject.extractAll(query);
+            Location resolved = subject.resolve(query);
+            if (resolved == null) {
+                assertTrue(mentions.isEmpty());
+            } else {
+                assertEquals(query, resolved.getGeonameId(), mentions.get(0).getLocation().getGeonameId());
+            }
+        }
+    }
+
+    @Test
+    public void automatonMatchesLikeGreedySearch() throws Exception {
+        Geocoder geocoder = new Geocoder(TestUtils.testIndex("test.gazetteer.txt"));
+        GeoIndex index = geocoder.index();
+        // Tokens of keys (so that keys and their prefixes occur often) and unknown tokens
+        final List<Integer> vocabulary = new ArrayList<>();
+        index.keys.forEachKey(new TokenTrie.KeyVisitor() {
+            @Override
+            public void visit(int[] tokens, int[] postings) {
+                for (int token : tokens) {
+                    vocabulary.add(token);
+                }
+            }
+        });
+        vocabulary.add(TokenDictionary.UNKNOWN);
+
+        Random random = new Random(42);
+        for (int run = 0; run < 2000; run++) {
+            int[] tokens = new int[random.nextInt(40)];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = vocabulary.get(random.nextInt(vocabulary.size()));
+            }
+            int[] spans = new int[tokens.length * 2];
+            int[] matches = index.automaton().matches(tokens, tokens.length, spans);
+            assertArrayEquals(Arrays.toString(tokens), geocoder.candidates(tokens, tokens.length), matches);
+            for (int i = 0; i < matches.length; i++) {
+                assertEquals(index.keys.longestMatch(tokens, spans[i * 2]).consumedUpto.intValue(),
+                        spans[i * 2 + 1] - spans[i * 2]);
+            }
+        }
+    }
+
+    @Test
+    public void namesWithoutTokens() throws Exception {
+        String gazetteer = Joiner.on('\n').join(
+                TestUtils.gazetteerRow(1, "UK", "PCL", "GB", "", 100000000),
+                TestUtils.gazetteerRow(10, "London", "--,LDN", "PPL", "GB", "ENG", 100000));
+        GeoDbIndexer indexer = new GeoDbIndexer(new BufferedReader(new StringReader(gazetteer)),
+                TestUtils.testPopulationThreshold(), ImmutableMap.of("GB", 0.1));
+        ImmutableMap<ImmutableList<String>, Set<Location>> index = indexer.index(indexer.extractLocations());
+        assertFalse(index.containsKey(ImmutableList.<String>of()));
+        assertEquals(ImmutableList.of(10, 1), ids(new Geocoder(index).extractAll("from -- London, UK --")));
+
+        // Indexes built by hand (or older snapshots) can still have an empty key
+        Map<ImmutableList<String>, Set<Location>> withEmptyKey = new HashMap<>(index);
+        withEmptyKey.put(ImmutableList.<String>of(), index.get(ImmutableList.of("LONDON")));
+        Geocoder geocoder = new Geocoder(ImmutableMap.copyOf(withEmptyKey));
+        assertEquals(ImmutableList.of(10, 1), ids(geocoder.extractAll("from -- London, UK --")));
+        assertTrue(geocoder.extractAll("nothing here").isEmpty());
+        try (ShardedGeocoder sharded = ShardedGeocoder.local(ImmutableMap.copyOf(withEmptyKey), 2)) {
+            assertEquals(10, sharded.resolve("London, UK").getGeonameId());
+            assertNull(sharded.resolve("nothing here"));
+        }
+    }
+
+    private static List<Integer> ids(List<Candidate> candidates) {
+        List<Integer> ret = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            ret.add(candidate.getLocation().getGeonameId());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,120 @@
+package net.peerindex.geocoder;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class FuzzyTokenIndexTest {
+
+    @Test
+    public void distance() {
+        assertEquals(0, FuzzyTokenIndex.distance("LONDON".toCharArray(), "LONDON", 2));
+        assertEquals(1, FuzzyTokenIndex.distance("LONDN".toCharArray(), "LONDON", 2));
+        assertEquals(1, FuzzyTokenIndex.distance("LODNON".toCharArray(), "LONDON", 2));
+        assertEquals(1, FuzzyTokenIndex.distance("FRANSISCO".toCharArray(), "FRANCISCO", 2));
+        assertEquals(2, FuzzyTokenIndex.distance("CHCGO".toCharArray(), "CHICAGO", 2));
+        assertEquals(3, FuzzyTokenIndex.distance("PARIS".toCharArray(), "LONDON", 2));
+    }
+
+    @Test
+    public void likeBruteForce() {
+        Random random = new Random(3);
+        Set<String> tokens = new HashSet<>();
+        while (tokens.size() < 3000) {
+            tokens.add(word(random, 2 + random.nextInt(10)));
+        }
+        TokenDictionary dictionary = TokenDictionary.of(tokens);
+        for (int maxEdits = 1; maxEdits <= 2; maxEdits++) {
+            FuzzyTokenIndex subject = new FuzzyTokenIndex(dictionary, maxEdits);
+            for (int q = 0; q < 2000; q++) {
+                String query = q % 2 == 0 ? typo(random, dictionary.token(random.nextInt(dictionary.size()))) : word(random, 3 + random.nextInt(9));
+                int edits = Math.min(maxEdits, FuzzyTokenIndex.allowedEdits(query.length()));
+
+                List<String> expected = new ArrayList<>();
+                for (int id = 0; id < dictionary.size() && edits > 0; id++) {
+                    String token = dictionary.token(id);
+                    int limit = Math.min(edits, FuzzyTokenIndex.allowedEdits(token.length()));
+                    int distance = FuzzyTokenIndex.distance(query.toCharArray(), token, limit);
+                    if (distance <= limit) {
+                        expected.add(String.format("%d %05d", distance, id));
+                    }
+                }
+                Collections.sort(expected);
+
+                int[] ids = new int[FuzzyTokenIndex.MAX_CORRECTIONS];
+                int[] distances = new int[FuzzyTokenIndex.MAX_CORRECTIONS];
+                int count = subject.corrections(query.toCharArray(), 0, query.length(), ids, distances);
+                List<String> actual = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    actual.add(String.format("%d %05d", distances[i], ids[i]));
+                }
+                assertEquals(query, expected.subList(0, Math.min(expected.size(), FuzzyTokenIndex.MAX_CORRECTIONS)), actual);
+            }
+        }
+    }
+
+    @Test
+    public void resolvesMisspelledQueries() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        Geocoder exact = new Geocoder(TestUtils.testIndex("test.gazetteer.txt"));
+        Geocoder subject = Geocoder.builder().index(TestUtils.testIndex("test.gazetteer.txt")).typoTolerance(2)
+                .metrics(registry).build();
+
+        assertNull(exact.resolve("Londn"));
+        assertEquals(2648109, subject.resolve("Londn").getGeonameId());
+        assertEquals(2648109, subject.resolve("Lodnon").getGeonameId());
+        assertEquals(3648209, subject.resolve("Supr Regon").getGeonameId());
+        // Only queries that match nothing are corrected
+        assertEquals(1648107, subject.resolve("Londn, UK").getGeonameId());
+        // Too short or too far off
+        assertNull(subject.resolve("Lon"));
+        assertNull(subject.resolve("Lxxxxn"));
+        assertEquals(3, registry.counter(MetricRegistry.name(Geocoder.class, "fuzzyMatch")).getCount());
+
+        List<String> queries = Arrays.asList("Londn", "Lodnon", "Londn, UK", "Supr Regon", "Lxxxxn", "London");
+        List<Location> all = subject.resolveAll(queries);
+        for (int i = 0; i < queries.size(); i++) {
+            assertEquals(subject.resolve(queries.get(i)), all.get(i));
+        }
+    }
+
+    private static String word(Random random, int length) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            // A small alphabet, so that words are close to each other
+            b.append((char) ('A' + random.nextInt(6)));
+        }
+        return b.toString();
+    }
+
+    private static String typo(Random random, String word) {
+        StringBuilder b = new StringBuilder(word);
+        for (int edit = random.nextInt(3); edit >= 0; edit--) {
+            int i = random.nextInt(b.length());
+            switch (random.nextInt(4)) {
+                case 0:
+                    b.deleteCharAt(i);
+                    break;
+                case 1:
+                    b.insert(i, (char) ('A' + random.nextInt(6)));
+                    break;
+                case 2:
+                    b.setCharAt(i, (char) ('A' + random.nextInt(6)));
+                    break;
+                default:
+                    if (i + 1 < b.length()) {
+                        char c = b.charAt(i);
+                        b.setCharAt(i, b.charAt(i + 1));
+                        b.setCharAt(i + 1, c);
+                    }
+            }
+            if (b.length() == 0) {
+                b.append('A');
+            }
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,114 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class GazetteerRowTest {
+
+    @Test
+    public void parsesColumns() {
+        GazetteerRow row = parse("7\tSome Town\tSome Town\tTown, Some Town,,X,Stadt\t51.5074\t-0.1278\tP\tPPLA\tGB\t\tENG\tGLA\t\t\t8908081\t\t0\tEurope/London\t2012-02-01");
+        assertNotNull(row);
+        assertEquals(FeatureCodeCategory.SUBADM, row.category());
+        assertEquals(8908081, row.population());
+
+        Location location = row.toLocation();
+        assertEquals(7, location.getGeonameId());
+        assertEquals("Some Town", location.getDefaultName());
+        assertEquals(51.5074, location.getLat(), 0);
+        assertEquals(-0.1278, location.getLng(), 0);
+        assertEquals("PPLA", location.getFeatureCode());
+        assertEquals(ImmutableMap.of(FeatureCodeCategory.PCL, "GB", FeatureCodeCategory.ADM1, "ENG", FeatureCodeCategory.ADM2, "GLA"),
+                location.getCodes());
+        assertEquals(Long.valueOf(8908081), location.getPopulation());
+        assertEquals(new HashSet<>(Arrays.asList("Town", "Some Town", "Stadt")), location.getNames());
+    }
+
+    @Test
+    public void skipsRowsNotForIndexing() {
+        assertNull(parse("1\tA River\tA River\t\t1.0\t2.0\tH\tSTM\tGB\t\t\t\t\t\t0"));
+        assertNull(parse("1\tNowhere\tNowhere\t\t1.0\t2.0\tP\tPPL\t\t\t\t\t\t\t0"));
+        assertNull(parse("1\tNowhere\tNowhere\t\t1.0\t2.0\tP\t\tGB\t\t\t\t\t\t0"));
+        assertNull(parse("1\tToo Short\tToo Short\t\t1.0\t2.0\tP\tPPL\tGB"));
+        assertNull(parse(""));
+        // 15 columns are enough
+        assertNotNull(parse("1\tShort\tShort\t\t1.0\t2.0\tP\tPPL\tGB\t\t\t\t\t\t0"));
+    }
+
+    @Test
+    public void parsesNumbersLikeTheJdk() {
+        for (String number : Arrays.asList("0", "-0", "0.0", "-0.0", "1", "12.5", "-33.86785", "151.20732", "89.999999999999",
+                "0.1", "0.30000000000000004", "123456789012345", "1234567890123456789", "1e3", "-1.5E-3", ".5", "5.",
+                "0.0000000000000000000001", "0.00000000000000000000001", "-179.99999")) {
+            GazetteerRow row = parse("1\tX\tX\t\t" + number + "\t" + number + "\tP\tPPL\tGB\t\t\t\t\t\t0");
+            Location location = row.toLocation();
+            assertEquals(number, Double.doubleToLongBits(Double.parseDouble(number)), Double.doubleToLongBits(location.getLat()));
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            String number = String.format(Locale.ROOT, "%." + random.nextInt(10) + "f", (random.nextDouble() - 0.5) * 360);
+            GazetteerRow row = parse("1\tX\tX\t\t" + number + "\t0\tP\tPPL\tGB\t\t\t\t\t\t" + random.nextInt(Integer.MAX_VALUE));
+            assertEquals(number, Double.parseDouble(number), row.toLocation().getLat(), 0);
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsMalformedPopulation() {
+        parse("1\tX\tX\t\t1.0\t2.0\tP\tPPL\tGB\t\t\t\t\t\tmany");
+    }
+
+    @Test
+    public void bytesAndLinesAgree() throws Exception {
+        List<String> lines = Resources.readLines(Resources.getResource(getClass(), "test.gazetteer.txt"), Charsets.UTF_8);
+        List<String> withCrLf = new ArrayList<>();
+        for (String line : lines) {
+            withCrLf.add(line + "\r");
+        }
+        byte[] bytes = Joiner.on('\n').join(withCrLf).getBytes(Charsets.UTF_8);
+
+        ImmutableMap<FeatureCodeCategory, Long> threshold = TestUtils.testPopulationThreshold();
+        ExtractLocations fromLines = new ExtractLocations(threshold);
+        for (String line : lines) {
+            fromLines.processLine(line);
+        }
+        // Chunks smaller than a line
+        GazetteerReader reader = new GazetteerReader(new ByteArrayInputStream(bytes), 16);
+        ExtractLocations fromBytes = new ExtractLocations(threshold);
+        ByteBuffer chunk;
+        while ((chunk = reader.next()) != null) {
+            fromBytes.processLines(chunk.array(), 0, chunk.limit());
+        }
+
+        assertFalse(fromLines.getResult().isEmpty());
+        assertEquals(describe(fromLines.getResult()), describe(fromBytes.getResult()));
+        assertEquals(describe(fromLines.getResult()),
+                describe(GazetteerReader.read(new ByteArrayInputStream(bytes), new ExtractLocations(threshold))));
+    }
+
+    private static GazetteerRow parse(String line) {
+        GazetteerRow row = new GazetteerRow();
+        byte[] bytes = line.getBytes(Charsets.UTF_8);
+        return row.parse(bytes, 0, bytes.length) ? row : null;
+    }
+
+    private static List<String> describe(Collection<Location> locations) {
+        List<String> ret = new ArrayList<>();
+        for (Location location : locations) {
+            ret.add(location + " " + location.getLat() + " " + location.getLng() + " " + location.getCodes()
+                    + " " + ImmutableList.copyOf(location.getNames()));
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+}
@@ -0,0 +1,107 @@
+package net.peerindex.geocoder;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GeocoderMetricsTest {
+    private MetricRegistry registry;
+    private Geocoder subject;
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new MetricRegistry();
+        subject = Geocoder.builder().index(TestUtils.testIndex("test.gazetteer.txt")).metrics(registry).build();
+    }
+
+    @Test
+    public void recordsStagesAndOutcomes() {
+        assertEquals(2648109, subject.resolve("London").getGeonameId());
+        assertEquals(2648109, subject.resolve("London, UK").getGeonameId());
+        assertNotNull(subject.resolve("London, US"));
+        assertNull(subject.resolve("nowhere to be found"));
+
+        assertEquals(4, registry.timer(name("tokenize")).getCount());
+        assertEquals(4, registry.timer(name("match")).getCount());
+        assertEquals(3, registry.timer(name("pickoutLocationsWithConsistency")).getCount());
+        assertEquals(3, registry.timer(name("pickOne")).getCount());
+
+        assertEquals(2, registry.counter(name("consistent")).getCount());
+        assertEquals(1, registry.counter(name("inconsistentFallback")).getCount());
+        assertEquals(1, registry.counter(name("noMatch")).getCount());
+        assertEquals(0, registry.counter(name("specialRule")).getCount());
+
+        assertEquals(4, registry.histogram(name("tokens")).getSnapshot().getMax());
+        assertEquals(2, registry.histogram(name("candidates")).getSnapshot().getMax());
+        assertEquals(5, registry.histogram(name("candidateSetSize")).getCount());
+    }
+
+    @Test
+    public void geocodersCanShareRegistry() throws Exception {
+        Geocoder other = Geocoder.builder().index(TestUtils.testIndex("test.gazetteer.txt")).metrics(registry).build();
+        subject.resolve("London");
+        other.resolve("London");
+        assertEquals(2, registry.counter(name("consistent")).getCount());
+    }
+
+    @Test
+    public void stripedReservoirMergesStripes() throws Exception {
+        final StripedReservoir reservoir = new StripedReservoir();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t * 100;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10; i++) {
+                        reservoir.update(base + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40, reservoir.size());
+        assertEquals(0, reservoir.getSnapshot().getMin());
+        assertEquals(309, reservoir.getSnapshot().getMax());
+    }
+
+    @Test
+    public void stripedReservoirWeighsStripesByUpdates() throws Exception {
+        final StripedReservoir reservoir = new StripedReservoir();
+        // Many fast calls on one thread, a few slow ones on another
+        Thread busy = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 200000; i++) {
+                    reservoir.update(1);
+                }
+            }
+        });
+        Thread idle = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    reservoir.update(1000);
+                }
+            }
+        });
+        busy.start();
+        idle.start();
+        busy.join();
+        idle.join();
+        Snapshot snapshot = reservoir.getSnapshot();
+        assertEquals(1.0, snapshot.get95thPercentile(), 0.0);
+        assertTrue(String.valueOf(snapshot.getMean()), snapshot.getMean() < 10);
+        assertTrue(snapshot.size() >= 64);
+    }
+
+    private static String name(String metric) {
+        return MetricRegistry.name(Geocoder.class, metric);
+    }
+}
@@ -0,0 +1,125 @@
+package net.peerindex.geocoder;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GeocoderServerTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private Geocoder geocoder;
+    private MetricRegistry metrics;
+    private GeocoderServer subject;
+
+    @Before
+    public void setUp() throws Exception {
+        metrics = new MetricRegistry();
+        geocoder = Geocoder.builder().index(TestUtils.testIndex("test.gazetteer.txt")).metrics(metrics).build();
+        subject = start(new GeocoderServer(geocoder).threads(1));
+    }
+
+    @After
+    public void tearDown() {
+        subject.stop(0);
+    }
+
+    @Test
+    public void resolve() throws Exception {
+        HttpURLConnection connection = open("/resolve?q=London%2C+UK");
+        assertEquals(200, connection.getResponseCode());
+        JsonNode result = mapper.readTree(body(connection));
+        assertEquals("London, UK", result.get("query").asText());
+        assertEquals(geocoder.resolve("London, UK").getGeonameId(), result.get("location").get("geonameId").asInt());
+
+        connection = open("/resolve?q=nowhere");
+        assertTrue(mapper.readTree(body(connection)).get("location").isNull());
+
+        assertEquals(400, open("/resolve").getResponseCode());
+        assertEquals(404, open("/resolve/more?q=London").getResponseCode());
+    }
+
+    @Test
+    public void resolveBatch() throws Exception {
+        HttpURLConnection connection = open("/resolve");
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write("{\"q\":\"London\"}\n{\"id\":1}\n\n{\"q\":\"nowhere\",\"id\":2}\n".getBytes(Charsets.UTF_8));
+        }
+        assertEquals(200, connection.getResponseCode());
+        List<String> lines = Lists.newArrayList(Splitter.on('\n').omitEmptyStrings().split(body(connection)));
+        assertEquals(3, lines.size());
+        JsonNode first = mapper.readTree(lines.get(0));
+        assertEquals(geocoder.resolve("London").getGeonameId(), first.get("location").get("geonameId").asInt());
+        assertTrue(mapper.readTree(lines.get(1)).get("query").isNull());
+        assertEquals("nowhere", mapper.readTree(lines.get(2)).get("query").asText());
+    }
+
+    @Test
+    public void rejectsWhenSaturated() throws Exception {
+        // The permit of a request is only released after its response is complete, so the other tests leave room
+        // for the next request
+        subject.stop(0);
+        subject = start(new GeocoderServer(geocoder).threads(1).queueSize(0));
+
+        // Keeps the only worker busy until the request body is complete
+        HttpURLConnection slow = open("/resolve");
+        slow.setRequestMethod("POST");
+        slow.setDoOutput(true);
+        slow.setChunkedStreamingMode(16);
+        OutputStream slowOut = slow.getOutputStream();
+        slowOut.write("{\"q\":\"London\"}\n".getBytes(Charsets.UTF_8));
+        slowOut.flush();
+
+        int status = 0;
+        for (int i = 0; i < 100 && status != 503; i++) {
+            status = open("/resolve?q=London").getResponseCode();
+        }
+        assertEquals(503, status);
+        // Still observable
+        JsonNode metricsJson = mapper.readTree(body(open("/metrics")));
+        assertTrue(metricsJson.get("net.peerindex.geocoder.GeocoderServer.rejected").asLong() > 0);
+        assertTrue(metricsJson.has("net.peerindex.geocoder.Geocoder.match"));
+
+        slowOut.close();
+        assertEquals(200, slow.getResponseCode());
+        body(slow);
+        // The worker is released right after the response is complete
+        for (int i = 0; i < 100 && status != 200; i++) {
+            Thread.sleep(10);
+            status = open("/resolve?q=London").getResponseCode();
+        }
+        assertEquals(200, status);
+    }
+
+    private GeocoderServer start(GeocoderServer server) throws IOException {
+        return server.metrics(metrics).start(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://127.0.0.1:" + subject.port() + path).openConnection();
+    }
+
+    private static String body(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            return CharStreams.toString(new InputStreamReader(in, Charsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package net.peerindex.geocoder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class IndexSnapshotTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        ImmutableMap<ImmutableList<String>, Set<Location>> index = TestUtils.testIndex("test.gazetteer.txt");
+        File snapshot = tmp.newFile("index.snapshot");
+        IndexSnapshot.write(GeoIndex.of(index), snapshot);
+
+        ImmutableMap<ImmutableList<String>, Set<Location>> read = IndexSnapshot.read(snapshot).toMap();
+
+        ObjectMapper om = new ObjectMapper();
+        JSONAssert.assertEquals(om.writeValueAsString(index), om.writeValueAsString(read), true);
+        for (Location location : read.get(ImmutableList.of("LONDON"))) {
+            assertEquals(index.get(ImmutableList.of("LONDON")).iterator().next().getWeight(), location.getWeight());
+        }
+    }
+
+    @Test
+    public void derivedIndexesRoundTrip() throws Exception {
+        GeoIndex index = GeoIndex.of(TestUtils.testIndex("test.gazetteer.txt"));
+        File snapshot = tmp.newFile("index.snapshot");
+        IndexSnapshot.write(index, snapshot);
+
+        GeoIndex read = IndexSnapshot.read(snapshot);
+        assertArrayEquals(index.keys.postings(), read.keys.postings());
+        assertArrayEquals(index.parents.offsets().keys(), read.parents.offsets().keys());
+        assertArrayEquals(index.parents.offsets().values(), read.parents.offsets().values());
+        assertArrayEquals(index.parents.tables(), read.parents.tables());
+        for (FeatureCodeCategory category : FeatureCodeCategory.values()) {
+            assertArrayEquals(index.spatial.ordinals(category), read.spatial.ordinals(category));
+            assertArrayEquals(index.spatial.xyz(category), read.spatial.xyz(category), 0.0);
+            assertArrayEquals(index.spatial.dimensions(category), read.spatial.dimensions(category));
+        }
+        assertArrayEquals(index.spatial.areas().keys(), read.spatial.areas().keys());
+        assertArrayEquals(index.spatial.areas().values(), read.spatial.areas().values());
+
+        Geocoder geocoder = new Geocoder(read);
+        Location london = new Geocoder(index).resolve("London, UK");
+        assertEquals(london, geocoder.reverse(london.getLat(), london.getLng(), london.getFeatureCodeCategory()));
+    }
+
+    @Test
+    public void geocoderFromSnapshot() throws Exception {
+        File snapshot = tmp.newFile("index.snapshot");
+        new Geocoder(TestUtils.testIndex("test.gazetteer.txt")).writeSnapshot(snapshot);
+
+        Geocoder geocoder = new Geocoder(snapshot);
+        assertEquals(2648109, geocoder.resolve("London, UK").getGeonameId());
+    }
+
+    @Test
+    public void withoutNames() throws Exception {
+        File snapshot = tmp.newFile("index.snapshot");
+        new Geocoder(TestUtils.testIndex("test.gazetteer.txt")).writeSnapshot(snapshot);
+
+        Geocoder geocoder = Geocoder.builder().snapshot(snapshot).dropNames().build();
+        Location london = geocoder.resolve("London, UK");
+        assertEquals(2648109, london.getGeonameId());
+        assertTrue(london.getNames().isEmpty());
+        assertFalse(new Geocoder(snapshot).resolve("London, UK").getNames().isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCorruptSnapshot() throws Exception {
+        File snapshot = tmp.newFile("index.snapshot");
+        IndexSnapshot.write(GeoIndex.of(TestUtils.testIndex("test.gazetteer.txt")), snapshot);
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xFF);
+        }
+        IndexSnapshot.read(snapshot);
+    }
+
+    @Test
+    public void skipsChecksum() throws Exception {
+        File snapshot = tmp.newFile("index.snapshot");
+        GeoIndex index = GeoIndex.of(TestUtils.testIndex("test.gazetteer.txt"));
+        IndexSnapshot.write(index, snapshot);
+        // Flip a bit of the checksum (the last field of the header), leaving the body intact
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "rw")) {
+            raf.seek(27);
+            int b = raf.read();
+            raf.seek(27);
+            raf.write(b ^ 1);
+        }
+        assertEquals(index.toMap(), IndexSnapshot.read(snapshot, true, false).toMap());
+        try {
+            IndexSnapshot.read(snapshot);
+            fail();
+        } catch (IOException e) {
+            // Verified by default
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignFile() throws Exception {
+        File snapshot = tmp.newFile("index.snapshot");
+        Files.write(new byte[64], snapshot);
+        IndexSnapshot.read(snapshot);
+    }
+}
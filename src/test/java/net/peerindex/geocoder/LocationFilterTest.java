@@ -0,0 +1,100 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class LocationFilterTest {
+
+    @Test
+    public void byCountry() throws Exception {
+        Map<Integer, Location> all = byId(TestUtils.testLocations("test.gazetteer.txt"));
+        Map<Integer, Location> gb = byId(extract(LocationFilter.of(ImmutableSet.of("GB"), null)));
+
+        // UK, London, Super Region and New York
+        assertEquals(ImmutableSet.of(1648107, 2648109, 3648209, 5648109), gb.keySet());
+        for (Location location : gb.values()) {
+            // Weights are shares of the world population, including the countries that were skipped
+            assertEquals(all.get(location.getGeonameId()).getWeight(), location.getWeight());
+        }
+    }
+
+    @Test
+    public void byCategory() throws Exception {
+        Map<Integer, Location> all = byId(TestUtils.testLocations("test.gazetteer.txt"));
+        Map<Integer, Location> towns = byId(extract(LocationFilter.of(null, EnumSet.of(FeatureCodeCategory.SUBADM))));
+        Map<Integer, Location> states = byId(extract(
+                LocationFilter.of(ImmutableSet.of("GB", "US"), EnumSet.of(FeatureCodeCategory.ADM1))));
+
+        assertEquals(ImmutableSet.of(2648109, 5648109, 7648110), towns.keySet());
+        assertEquals(ImmutableSet.of(3648209), states.keySet());
+        for (Location location : towns.values()) {
+            assertEquals(all.get(location.getGeonameId()).getWeight(), location.getWeight());
+        }
+    }
+
+    @Test
+    public void parallelSameAsSequential() throws Exception {
+        LocationFilter filter = LocationFilter.of(ImmutableSet.of("GB"), EnumSet.of(FeatureCodeCategory.SUBADM));
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try (BufferedReader gazetteer = gazetteer()) {
+            Map<Integer, Location> sequential = byId(extract(filter));
+            Set<Location> parallel = indexer(gazetteer, filter).extractLocations(pool, 2);
+            assertEquals(sequential.keySet(), byId(parallel).keySet());
+            for (Location location : parallel) {
+                assertEquals(sequential.get(location.getGeonameId()).getWeight(), location.getWeight());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void geocoder() throws Exception {
+        Geocoder subject;
+        try (BufferedReader gazetteer = gazetteer()) {
+            GeoDbIndexer indexer = indexer(gazetteer, LocationFilter.of(ImmutableSet.of("US"), null));
+            subject = new Geocoder(indexer.index(indexer.extractLocations()));
+        }
+        assertEquals(4648107, subject.resolve("US").getGeonameId());
+        assertNull(subject.resolve("London"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void notForSnapshots() throws Exception {
+        Geocoder.builder().snapshot(new File("geocoder.snapshot")).countries("GB").build();
+    }
+
+    private static Set<Location> extract(LocationFilter filter) throws IOException {
+        try (BufferedReader gazetteer = gazetteer()) {
+            return indexer(gazetteer, filter).extractLocations();
+        }
+    }
+
+    private static GeoDbIndexer indexer(BufferedReader gazetteer, LocationFilter filter) throws IOException {
+        return new GeoDbIndexer(gazetteer, TestUtils.testPopulationThreshold(), ImmutableMap.of("US", 0.2, "GB", 0.1)).filter(filter);
+    }
+
+    private static BufferedReader gazetteer() {
+        return new BufferedReader(new InputStreamReader(
+                LocationFilterTest.class.getResourceAsStream("test.gazetteer.txt"), Charsets.UTF_8));
+    }
+
+    private static Map<Integer, Location> byId(Set<Location> locations) {
+        Map<Integer, Location> ret = new HashMap<>();
+        for (Location location : locations) {
+            ret.put(location.getGeonameId(), location);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,54 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class NameBlobTest {
+
+    @Test
+    public void roundTrip() {
+        List<Set<String>> names = ImmutableList.<Set<String>>of(
+                ImmutableSet.of("London", "Londres", "Лондон", "ロンドン"),
+                ImmutableSet.<String>of(),
+                // Lengths that need more than one byte
+                ImmutableSet.of(Strings.repeat("x", 127), Strings.repeat("y", 128), Strings.repeat("é", 20000)),
+                ImmutableSet.of("Z"));
+        NameBlob.Builder builder = new NameBlob.Builder(names.size());
+        for (Set<String> n : names) {
+            builder.add(n);
+        }
+        NameBlob subject = builder.build();
+        for (int i = 0; i < names.size(); i++) {
+            // In the same order
+            assertEquals(ImmutableList.copyOf(names.get(i)), ImmutableList.copyOf(subject.names(i)));
+        }
+        assertTrue(NameBlob.empty(3).names(2).isEmpty());
+    }
+
+    @Test
+    public void decodedWhenSerialized() throws Exception {
+        NameBlob.Builder builder = new NameBlob.Builder(1);
+        builder.add(ImmutableSet.of("London", "Londres"));
+        Location location = new Location();
+        location.setNames(builder.build(), 0);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(location);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertEquals(ImmutableSet.of("London", "Londres"), ((Location) in.readObject()).getNames());
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ParallelIndexTest {
+    private ForkJoinPool pool;
+    private String gazetteer;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new ForkJoinPool(3);
+        // The test gazetteer many times over, with distinct ids and some duplicate ids
+        List<String> lines = Resources.readLines(Resources.getResource(getClass(), "test.gazetteer.txt"), Charsets.UTF_8);
+        StringBuilder b = new StringBuilder();
+        for (int copy = 0; copy < 300; copy++) {
+            for (String line : lines) {
+                List<String> columns = new ArrayList<>(ImmutableList.copyOf(Splitter.on('\t').split(line)));
+                columns.set(0, String.valueOf(Integer.parseInt(columns.get(0)) + (copy % 200) * 10000000));
+                columns.set(1, columns.get(1) + " " + copy % 7);
+                columns.set(3, columns.get(3) + "," + columns.get(1));
+                b.append(Joiner.on('\t').join(columns)).append('\n');
+            }
+        }
+        gazetteer = b.toString();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void sameAsSequential() throws Exception {
+        Set<Location> sequentialLocations = indexer().extractLocations();
+        ImmutableMap<ImmutableList<String>, Set<Location>> sequential = indexer().index(sequentialLocations);
+
+        Set<Location> parallelLocations = indexer().extractLocations(pool, 7);
+        assertEquals(describe(sequentialLocations), describe(parallelLocations));
+        ImmutableMap<ImmutableList<String>, Set<Location>> parallel = indexer().index(parallelLocations, pool, 5);
+        assertEquals(sequential, parallel);
+        for (Map.Entry<ImmutableList<String>, Set<Location>> entry : sequential.entrySet()) {
+            assertEquals(describe(entry.getValue()), describe(parallel.get(entry.getKey())));
+        }
+
+        // Deterministic
+        assertEquals(ImmutableList.copyOf(parallel.keySet()),
+                ImmutableList.copyOf(indexer().index(indexer().extractLocations(pool, 3), pool, 11).keySet()));
+    }
+
+    @Test
+    public void defaultChunking() throws Exception {
+        Set<Location> locations = indexer().extractLocations(pool);
+        assertEquals(indexer().index(indexer().extractLocations()), indexer().index(locations, pool));
+    }
+
+    @Test
+    public void bytesSameAsLines() throws Exception {
+        Set<Location> lines = indexer().extractLocations();
+        assertEquals(describe(lines), describe(byteIndexer().extractLocations()));
+        assertEquals(describe(lines), describe(byteIndexer().extractLocations(pool)));
+        assertEquals(describe(lines), describe(byteIndexer().extractLocations(pool, 1000)));
+        assertEquals(indexer().index(lines), byteIndexer().index(byteIndexer().extractLocations(pool, 777), pool));
+    }
+
+    private GeoDbIndexer byteIndexer() throws Exception {
+        return new GeoDbIndexer(new ByteArrayInputStream(gazetteer.getBytes(Charsets.UTF_8)), TestUtils.testPopulationThreshold(),
+                ImmutableMap.of("US", 0.2, "GB", 0.1));
+    }
+
+    private GeoDbIndexer indexer() throws Exception {
+        return new GeoDbIndexer(new BufferedReader(new StringReader(gazetteer)), TestUtils.testPopulationThreshold(),
+                ImmutableMap.of("US", 0.2, "GB", 0.1));
+    }
+
+    private static List<String> describe(Collection<Location> locations) {
+        List<String> ret = new ArrayList<>();
+        for (Location location : locations) {
+            ret.add(location + " " + new TreeSet<>(location.getNames()));
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+}
@@ -0,0 +1,98 @@
+package net.peerindex.geocoder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParentIndexTest {
+    private LocationStore store;
+    private List<Integer> all;
+
+    @Before
+    public void setUp() {
+        List<Location> locations = new ArrayList<>();
+        locations.add(TestUtils.location(1, FeatureCodeCategory.PCL, 0, "GB"));
+        locations.add(TestUtils.location(2, FeatureCodeCategory.ADM1, 0, "GB", "ENG"));
+        locations.add(TestUtils.location(3, FeatureCodeCategory.ADM1, 0, "GB", "SCT"));
+        locations.add(TestUtils.location(4, FeatureCodeCategory.ADM2, 0, "GB", "ENG", "GLA"));
+        locations.add(TestUtils.location(5, FeatureCodeCategory.SUBADM, 0, "GB", "ENG", "GLA"));
+        locations.add(TestUtils.location(6, FeatureCodeCategory.SUBADM, 0, "GB", "SCT"));
+        // Missing codes match anything
+        locations.add(TestUtils.location(7, FeatureCodeCategory.SUBADM, 0, null, "ENG"));
+        locations.add(TestUtils.location(8, FeatureCodeCategory.ADM1, 0, null, "SCT"));
+        locations.add(TestUtils.location(9, FeatureCodeCategory.PCL, 0, "US"));
+        locations.add(TestUtils.location(10, FeatureCodeCategory.SUBADM, 0, "US", null, "GLA"));
+        store = LocationStore.of(locations);
+        all = new ArrayList<>();
+        for (int i = 0; i < store.size(); i++) {
+            all.add(i);
+        }
+    }
+
+    @Test
+    public void containsFollowsCodes() {
+        assertTrue(store.contains(ordinal(1), ordinal(5)));
+        assertTrue(store.contains(ordinal(2), ordinal(5)));
+        assertTrue(store.contains(ordinal(4), ordinal(5)));
+        assertFalse(store.contains(ordinal(3), ordinal(5)));
+        assertFalse(store.contains(ordinal(9), ordinal(5)));
+        assertFalse(store.contains(ordinal(5), ordinal(1)));
+
+        assertTrue(store.contains(ordinal(2), ordinal(7)));
+        assertFalse(store.contains(ordinal(3), ordinal(7)));
+        assertTrue(store.contains(ordinal(8), ordinal(6)));
+        assertTrue(store.contains(ordinal(9), ordinal(10)));
+        assertFalse(store.contains(ordinal(4), ordinal(10)));
+    }
+
+    @Test
+    public void samePathIdIffSameCodes() {
+        assertEquals(store.path(ordinal(4), 2), store.path(ordinal(5), 2));
+        assertEquals(store.path(ordinal(2), 1), store.path(ordinal(5), 1));
+        assertNotEquals(store.path(ordinal(2), 1), store.path(ordinal(3), 1));
+        assertEquals(LocationStore.GAP, store.path(ordinal(7), 1));
+        assertEquals(LocationStore.GAP, store.path(ordinal(10), 2));
+    }
+
+    @Test
+    public void hashedLookupAgreesWithScan() {
+        // One key with all locations (hashed) and one per location (scanned)
+        TokenTrie.Builder builder = new TokenTrie.Builder(all.size() + 1);
+        builder.add(new int[]{0}, toArray(all));
+        for (int i = 0; i < store.size(); i++) {
+            builder.add(new int[]{1, i}, new int[]{i});
+        }
+        TokenTrie keys = builder.build();
+        ParentIndex subject = new ParentIndex(store, keys);
+        int allKey = keys.child(TokenTrie.ROOT, 0);
+        assertTrue(all.size() >= ParentIndex.MIN_POSTINGS);
+
+        Collections.shuffle(all);
+        for (int child : all) {
+            boolean expected = false;
+            for (int parent = 0; parent < store.size(); parent++) {
+                int single = keys.child(keys.child(TokenTrie.ROOT, 1), parent);
+                assertEquals(store.contains(parent, child), subject.hasParent(single, child));
+                expected |= store.contains(parent, child);
+            }
+            assertEquals(expected, subject.hasParent(allKey, child));
+        }
+    }
+
+    private int ordinal(int geonameId) {
+        return store.ordinalOf(geonameId);
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] ret = new int[values.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = values.get(i);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,134 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ReloadTest {
+    private static final ImmutableMap<String, Double> SHARES = ImmutableMap.of("US", 0.2, "GB", 0.1);
+    // Makes the London in the US the heavier one
+    private static final ImmutableMap<String, Double> OTHER_SHARES = ImmutableMap.of("US", 0.2, "GB", 0.01);
+
+    private static final String GAZETTEER = Joiner.on('\n').join(
+            TestUtils.gazetteerRow(1, "UK", "PCL", "GB", "", 100000000),
+            TestUtils.gazetteerRow(2, "US", "PCL", "US", "", 300000000),
+            TestUtils.gazetteerRow(3, "France", "PCL", "FR", "", 60000000),
+            TestUtils.gazetteerRow(10, "London", "PPL", "GB", "ENG", 100000),
+            TestUtils.gazetteerRow(20, "London", "PPL", "US", "OH", 100000),
+            TestUtils.gazetteerRow(30, "Paris", "PPL", "FR", "A8", 2000000));
+
+    private static GeoDbIndexer indexer(Map<String, Double> shares) throws IOException {
+        return new GeoDbIndexer(new BufferedReader(new StringReader(GAZETTEER)), TestUtils.testPopulationThreshold(),
+                ImmutableMap.copyOf(shares));
+    }
+
+    private static ImmutableMap<ImmutableList<String>, Set<Location>> index(Map<String, Double> shares) throws IOException {
+        GeoDbIndexer indexer = indexer(shares);
+        return indexer.index(indexer.extractLocations());
+    }
+
+    @Test
+    public void reweightLikeRebuild() throws Exception {
+        for (Map<String, Double> shares : ImmutableList.of(SHARES, OTHER_SHARES)) {
+            Geocoder subject = new Geocoder(index(SHARES));
+            subject.reweight(shares);
+
+            Map<Integer, Double> expected = new HashMap<>();
+            for (Location location : indexer(shares).extractLocations()) {
+                expected.put(location.getGeonameId(), location.getWeight());
+            }
+            LocationStore locations = subject.index().locations;
+            for (int i = 0; i < locations.size(); i++) {
+                assertEquals(expected.get(locations.geonameId(i)), locations.weight(i), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void reweightFilteredLikeRebuild() throws Exception {
+        // Without the countries, whose populations the weights are calibrated with
+        LocationFilter towns = LocationFilter.of(null, EnumSet.of(FeatureCodeCategory.SUBADM));
+        GeoDbIndexer indexer = indexer(SHARES).filter(towns);
+        Geocoder subject = new Geocoder(
+                GeoIndex.of(indexer.index(indexer.extractLocations()), true, indexer.countryPopulations()));
+        subject.reweight(OTHER_SHARES);
+
+        Map<Integer, Double> expected = new HashMap<>();
+        for (Location location : indexer(OTHER_SHARES).extractLocations()) {
+            expected.put(location.getGeonameId(), location.getWeight());
+        }
+        LocationStore locations = subject.index().locations;
+        assertEquals(3, locations.size());
+        for (int i = 0; i < locations.size(); i++) {
+            assertEquals(expected.get(locations.geonameId(i)), locations.weight(i), 0.0);
+        }
+        assertEquals(20, subject.resolve("London").getGeonameId());
+    }
+
+    @Test
+    public void reloadActivityShare() throws Exception {
+        Geocoder subject = Geocoder.builder().index(index(SHARES)).cacheSize(100).typoTolerance(1).build();
+        assertEquals(10, subject.resolve("London").getGeonameId());
+        assertEquals(30, subject.resolve("Pariss").getGeonameId());
+
+        subject.reloadActivityShare(new BufferedReader(new StringReader("US,0.2\nGB,0.01\n")));
+        // Not the cached result of the old weights
+        assertEquals(20, subject.resolve("London").getGeonameId());
+        assertEquals(30, subject.resolve("Pariss").getGeonameId());
+        assertEquals(0, subject.cacheStats().hitCount());
+    }
+
+    @Test
+    public void reloadIndex() throws Exception {
+        Geocoder subject = Geocoder.builder().index(TestUtils.testIndex("test.gazetteer.txt")).cacheSize(100).build();
+        assertEquals(2648109, subject.resolve("London").getGeonameId());
+        assertNull(subject.resolve("Paris"));
+
+        subject.reload(index(SHARES));
+        assertEquals(30, subject.resolve("Paris").getGeonameId());
+        assertEquals(10, subject.resolve("London").getGeonameId());
+    }
+
+    @Test
+    public void consistentWhileReloading() throws Exception {
+        final Geocoder subject = new Geocoder(index(SHARES));
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[3];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            List<Candidate> top = subject.resolveTopK("London", 2);
+                            // Whichever weights were current, the ranking agrees with them
+                            assertEquals(2, top.size());
+                            assertTrue(top.get(0).getWeight() >= top.get(1).getWeight());
+                            int id = subject.resolve("London").getGeonameId();
+                            assertTrue(id == 10 || id == 20);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (int i = 0; i < 200; i++) {
+            subject.reweight(i % 2 == 0 ? OTHER_SHARES : SHARES);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,60 @@
+package net.peerindex.geocoder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ResolveAllTest {
+    private static final String[] QUERIES = {
+            "London", "london, UK", "LDN", "New York, UK", "Tiny town", "Super Region", "US", "nowhere", "", "!!"
+    };
+
+    private Geocoder subject;
+
+    @Before
+    public void setUp() throws Exception {
+        subject = new Geocoder(TestUtils.testIndex("test.gazetteer.txt"));
+    }
+
+    @Test
+    public void sameResultsAsResolveInInputOrder() {
+        Random random = new Random(0);
+        List<String> input = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            input.add(QUERIES[random.nextInt(QUERIES.length)]);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            List<Location> actual = subject.resolveAll(input, pool);
+            assertEquals(input.size(), actual.size());
+            for (int i = 0; i < input.size(); i++) {
+                assertEquals(input.get(i), subject.resolve(input.get(i)), actual.get(i));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(Arrays.asList(subject.resolveAll(input.toArray(new String[input.size()]))), subject.resolveAll(input));
+    }
+
+    @Test
+    public void duplicatesGetTheirOwnLocation() {
+        Location[] actual = subject.resolveAll(new String[]{"London", "LONDON", "nowhere"});
+        assertEquals(2648109, actual[0].getGeonameId());
+        assertEquals(actual[0], actual[1]);
+        assertNotSame(actual[0], actual[1]);
+        assertNull(actual[2]);
+    }
+
+    @Test
+    public void emptyBatch() {
+        assertEquals(0, subject.resolveAll(new String[0]).length);
+    }
+}
@@ -0,0 +1,116 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ResolveTopKTest {
+    private Geocoder subject;
+
+    @Before
+    public void setUp() throws Exception {
+        List<String> lines = new ArrayList<>();
+        lines.add(TestUtils.gazetteerRow(1, "UK", "United Kingdom", "PCL", "GB", "", 100000000));
+        lines.add(TestUtils.gazetteerRow(2, "US", "United States", "PCL", "US", "", 300000000));
+        for (int i = 0; i < 10; i++) {
+            // Londons in the UK and in the US, of different sizes
+            lines.add(TestUtils.gazetteerRow(100 + i, "London", "LDN", "PPL", "GB", "ENG", 10000 + (i * 7919) % 10 * 1000));
+            lines.add(TestUtils.gazetteerRow(200 + i, "London", "", "PPL", "US", "OH", 10000 + (i * 104729) % 10 * 1000));
+        }
+        // Same weight as the first one
+        lines.add(TestUtils.gazetteerRow(99, "London", "", "PPL", "GB", "ENG", 10000));
+        GeoDbIndexer indexer = new GeoDbIndexer(new BufferedReader(new StringReader(Joiner.on('\n').join(lines))),
+                TestUtils.testPopulationThreshold(), ImmutableMap.of("US", 0.2, "GB", 0.1));
+        subject = new Geocoder(indexer.index(indexer.extractLocations()));
+    }
+
+    @Test
+    public void consistentFirstThenByWeight() {
+        List<Candidate> top = subject.resolveTopK("London, UK", 100);
+        // 11 Londons in the UK, then 10 in the US and the UK itself
+        assertEquals(22, top.size());
+        assertEquals(subject.resolve("London, UK"), top.get(0).getLocation());
+
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < top.size(); i++) {
+            Candidate candidate = top.get(i);
+            assertTrue(ids.add(candidate.getLocation().getGeonameId()));
+            assertEquals(i < 11, candidate.isConsistent());
+            if (candidate.isConsistent()) {
+                assertEquals("GB", candidate.getLocation().getCodes().get(FeatureCodeCategory.PCL));
+            }
+            if (i > 0 && candidate.isConsistent() == top.get(i - 1).isConsistent()) {
+                Candidate previous = top.get(i - 1);
+                assertTrue(previous.getWeight() > candidate.getWeight()
+                        || (previous.getWeight() == candidate.getWeight()
+                        && previous.getLocation().getGeonameId() < candidate.getLocation().getGeonameId()));
+            }
+            // Spans of "London" and "UK"
+            if (candidate.getLocation().getGeonameId() == 1) {
+                assertEquals(1, candidate.getTokenStart());
+                assertEquals(2, candidate.getTokenEnd());
+            } else {
+                assertEquals(0, candidate.getTokenStart());
+                assertEquals(1, candidate.getTokenEnd());
+            }
+        }
+    }
+
+    @Test
+    public void smallerKIsAPrefix() {
+        for (String query : ImmutableList.of("London, UK", "London", "UK London", "London US", "US")) {
+            List<Candidate> all = subject.resolveTopK(query, Integer.MAX_VALUE);
+            for (int k = 1; k <= all.size() + 1; k++) {
+                List<Candidate> top = subject.resolveTopK(query, k);
+                assertEquals(query + " " + k, describe(all.subList(0, Math.min(k, all.size()))), describe(top));
+            }
+            assertEquals(query, subject.resolve(query), all.get(0).getLocation());
+        }
+    }
+
+    @Test
+    public void specialRule() throws Exception {
+        List<String> lines = new ArrayList<>();
+        lines.add(TestUtils.gazetteerRow(2, "US", "United States", "PCL", "US", "", 300000000));
+        lines.add(TestUtils.gazetteerRow(5128638, "New York", "NY", "ADM1", "US", "NY", 19000000));
+        lines.add(TestUtils.gazetteerRow(5128581, "New York City", "", "PPL", "US", "NY", 8000000));
+        GeoDbIndexer indexer = new GeoDbIndexer(new BufferedReader(new StringReader(Joiner.on('\n').join(lines))),
+                TestUtils.testPopulationThreshold(), ImmutableMap.of("US", 0.2));
+        Geocoder geocoder = new Geocoder(indexer.index(indexer.extractLocations()));
+
+        // The state is found, and the rule replaces it with the city, which the state named by "NY" contains
+        List<Candidate> top = geocoder.resolveTopK("New York, NY", 5);
+        assertEquals(geocoder.resolve("New York, NY"), top.get(0).getLocation());
+        assertEquals(5128581, top.get(0).getLocation().getGeonameId());
+        assertTrue(top.get(0).isConsistent());
+        assertEquals(0, top.get(0).getTokenStart());
+        assertEquals(2, top.get(0).getTokenEnd());
+    }
+
+    @Test
+    public void noMatch() {
+        assertTrue(subject.resolveTopK("nowhere", 5).isEmpty());
+        assertTrue(subject.resolveTopK("", 5).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void positiveK() {
+        subject.resolveTopK("London", 0);
+    }
+
+    private static List<String> describe(List<Candidate> candidates) {
+        List<String> ret = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            ret.add(candidate.toString());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,107 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+
+    @Test
+    public void boundedAndCountsHitsMissesEvictions() {
+        ResultCache subject = new ResultCache(100);
+        for (int i = 0; i < 1000; i++) {
+            if (subject.get(query(i)) == ResultCache.ABSENT) {
+                subject.put(query(i), i);
+            }
+        }
+        assertEquals(100, subject.size());
+        CacheStats stats = subject.stats();
+        assertEquals(0, stats.hitCount());
+        assertEquals(1000, stats.missCount());
+        assertEquals(900, stats.evictionCount());
+    }
+
+    @Test
+    public void frequentQueriesSurviveBurstOfOneOffs() {
+        ResultCache subject = new ResultCache(64);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 32; i++) {
+                if (subject.get(query(i)) == ResultCache.ABSENT) {
+                    subject.put(query(i), i);
+                }
+            }
+        }
+        for (int i = 1000; i < 1200; i++) {
+            if (subject.get(query(i)) == ResultCache.ABSENT) {
+                subject.put(query(i), i);
+            }
+        }
+        for (int i = 0; i < 32; i++) {
+            assertEquals(i, subject.get(query(i)));
+        }
+    }
+
+    @Test
+    public void cachesNegativeResults() throws Exception {
+        Geocoder subject = Geocoder.builder().index(TestUtils.testIndex("test.gazetteer.txt")).cacheSize(10).build();
+        assertNull(subject.resolve("nowhere"));
+        assertNull(subject.resolve("NOWHERE!"));
+        assertEquals(2648109, subject.resolve("London").getGeonameId());
+        Location london = subject.resolve("london");
+        assertEquals(2648109, london.getGeonameId());
+        // Still a new object per call
+        london.setGeonameId(0);
+        assertEquals(2648109, subject.resolve("London").getGeonameId());
+
+        CacheStats stats = subject.cacheStats();
+        assertEquals(3, stats.hitCount());
+        assertEquals(2, stats.missCount());
+    }
+
+    @Test
+    public void profilesCountSeparately() throws Exception {
+        Geocoder subject = Geocoder.builder().index(TestUtils.testIndex("test.gazetteer.txt")).cacheSize(10)
+                .profile("uk", ImmutableMap.of("GB", 0.5)).build();
+        subject.resolve("London");
+        subject.resolve("London", "uk");
+        subject.resolve("London", "uk");
+        assertEquals(0, subject.cacheStats().hitCount());
+        assertEquals(1, subject.cacheStats().missCount());
+        assertEquals(1, subject.cacheStats("uk").hitCount());
+        assertEquals(1, subject.cacheStats("uk").missCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void statsOfUnknownProfile() throws Exception {
+        Geocoder.builder().index(TestUtils.testIndex("test.gazetteer.txt")).cacheSize(10).build().cacheStats("uk");
+    }
+
+    @Test
+    public void warmUp() throws Exception {
+        File queries = File.createTempFile("queries", ".txt");
+        queries.deleteOnExit();
+        Files.write("London\nLondon\nUK\nnowhere\n", queries, Charsets.UTF_8);
+
+        Geocoder subject = Geocoder.builder().index(TestUtils.testIndex("test.gazetteer.txt")).cacheSize(10).build();
+        assertEquals(4, subject.warmUpCache(queries));
+        assertEquals(3, subject.cacheStats().missCount());
+
+        assertEquals(1648107, subject.resolve("UK").getGeonameId());
+        assertEquals(2, subject.cacheStats().hitCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void warmUpWithoutCache() throws Exception {
+        new Geocoder(TestUtils.testIndex("test.gazetteer.txt")).warmUpCache(new File("unused"));
+    }
+
+    private static TokenSequence query(int i) {
+        return new TokenSequence(new int[]{i, -1, i * 31});
+    }
+}
@@ -0,0 +1,175 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ShardedGeocoderTest {
+    private static final List<String> FIXED = ImmutableList.of("London", "London, UK", "New York, UK", "US",
+            "I live in New York UK", "Super Region UK", "nowhere", "", "London London London");
+
+    private ImmutableMap<ImmutableList<String>, Set<Location>> index;
+    private Geocoder whole;
+
+    @Before
+    public void setUp() throws Exception {
+        index = TestUtils.testIndex("test.gazetteer.txt");
+        whole = new Geocoder(index);
+    }
+
+    @Test
+    public void shardsSplitByCountry() {
+        List<ImmutableMap<ImmutableList<String>, Set<Location>>> shards = GeoDbIndexer.shards(index, 3);
+        assertEquals(3, shards.size());
+        Set<Location> all = new HashSet<>();
+        Map<String, Integer> shardOf = new HashMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            for (Map.Entry<ImmutableList<String>, Set<Location>> entry : shards.get(i).entrySet()) {
+                assertTrue(index.get(entry.getKey()).containsAll(entry.getValue()));
+                for (Location location : entry.getValue()) {
+                    all.add(location);
+                    Integer previous = shardOf.put(location.getCodes().get(FeatureCodeCategory.PCL), i);
+                    assertTrue(previous == null || previous == i);
+                }
+            }
+        }
+        Set<Location> expected = new HashSet<>();
+        for (Set<Location> locations : index.values()) {
+            expected.addAll(locations);
+        }
+        assertEquals(expected, all);
+    }
+
+    @Test
+    public void sameAsWholeIndex() throws Exception {
+        List<String> queries = queries(index, 5000);
+        for (int shards : new int[]{1, 2, 3, 7}) {
+            try (ShardedGeocoder subject = ShardedGeocoder.local(index, shards)) {
+                assertSame(whole, subject, queries);
+            }
+        }
+    }
+
+    @Test
+    public void parentsInOtherShards() throws Exception {
+        // A place without a country code is contained by places of any country with the same codes below it
+        ImmutableMap<ImmutableList<String>, Set<Location>> index = ImmutableMap.<ImmutableList<String>, Set<Location>>of(
+                ImmutableList.of("ATLANTIS"), ImmutableSet.of(
+                        TestUtils.location(1, FeatureCodeCategory.SUBADM, 0.001, null, "01"),
+                        TestUtils.location(2, FeatureCodeCategory.SUBADM, 0.1, "CC", "02")),
+                ImmutableList.of("ALPHA"), ImmutableSet.of(
+                        TestUtils.location(3, FeatureCodeCategory.ADM1, 0.2, "AA", "01")),
+                ImmutableList.of("BETA"), ImmutableSet.of(
+                        TestUtils.location(4, FeatureCodeCategory.PCL, 0.3, "BB")));
+        Geocoder whole = new Geocoder(index);
+        assertEquals(1, whole.resolve("Atlantis, Alpha, Beta").getGeonameId());
+        try (ShardedGeocoder subject = ShardedGeocoder.local(index, 3)) {
+            assertEquals(1, subject.resolve("Atlantis, Alpha, Beta").getGeonameId());
+            assertSame(whole, subject, ImmutableList.of("Atlantis", "Atlantis Alpha", "Atlantis Beta", "Beta Atlantis"));
+        }
+    }
+
+    @Test
+    public void remoteShards() throws Exception {
+        File dir = Files.createTempDir();
+        List<ShardServer> servers = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        try {
+            for (File snapshot : whole.writeSnapshotShards(new File(dir, "geocoder.snapshot"), 3)) {
+                ShardServer server = new ShardServer(snapshot, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                servers.add(server);
+                addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port()));
+            }
+            try (ShardedGeocoder subject = ShardedGeocoder.remote(addresses)) {
+                assertSame(whole, subject, queries(index, 500));
+
+                // Every field makes it over the wire
+                Location expected = whole.resolve("London, UK");
+                Location actual = subject.resolve("London, UK");
+                assertEquals(expected.toString(), actual.toString());
+                assertEquals(expected.getNames(), actual.getNames());
+
+                // Malformed requests only cost the client its connection
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), servers.get(0).port())) {
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    out.writeByte(ShardProtocol.LONGEST_KEYS);
+                    out.writeInt(Integer.MAX_VALUE);
+                    out.flush();
+                    assertEquals(-1, socket.getInputStream().read());
+                }
+                assertEquals(expected.getGeonameId(), subject.resolve("London, UK").getGeonameId());
+            }
+        } finally {
+            for (ShardServer server : servers) {
+                server.close();
+            }
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void stalledShard() throws Exception {
+        // Accepts connections, but never answers
+        try (ServerSocket stalled = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             ShardedGeocoder subject = ShardedGeocoder.remote(ImmutableList.of(
+                     new InetSocketAddress(InetAddress.getLoopbackAddress(), stalled.getLocalPort())), 200)) {
+            long start = System.nanoTime();
+            try {
+                subject.resolve("London");
+                fail();
+            } catch (IOException e) {
+                // Timed out
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        }
+    }
+
+    private static void assertSame(Geocoder whole, ShardedGeocoder sharded, List<String> queries) throws IOException {
+        for (String query : queries) {
+            Location expected = whole.resolve(query);
+            Location actual = sharded.resolve(query);
+            assertEquals(query, expected == null ? null : expected.getGeonameId(),
+                    actual == null ? null : actual.getGeonameId());
+        }
+    }
+
+    /**
+     * Fixed queries and random sequences of names of the index and other words
+     */
+    private static List<String> queries(Map<ImmutableList<String>, Set<Location>> index, int n) {
+        List<String> words = new ArrayList<>();
+        for (ImmutableList<String> key : index.keySet()) {
+            words.addAll(key);
+        }
+        words.addAll(ImmutableList.of("NY", "LA", "in", "the", "123"));
+        List<String> ret = new ArrayList<>(FIXED);
+        Random random = new Random(7);
+        for (int i = 0; i < n; i++) {
+            List<String> query = new ArrayList<>();
+            for (int j = random.nextInt(6); j >= 0; j--) {
+                query.add(words.get(random.nextInt(words.size())));
+            }
+            ret.add(Joiner.on(random.nextBoolean() ? ", " : " ").join(query));
+        }
+        return ret;
+    }
+}
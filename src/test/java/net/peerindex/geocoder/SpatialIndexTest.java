@@ -0,0 +1,178 @@
+package net.peerindex.geocoder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SpatialIndexTest {
+    private LocationStore store;
+    private SpatialIndex subject;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        random = new Random(7);
+        List<Location> locations = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            FeatureCodeCategory category = FeatureCodeCategory.values()[random.nextInt(FeatureCodeCategory.values().length)];
+            // Clustered, with duplicate points and points near the poles and the antimeridian
+            double lat = i % 10 == 0 ? 89.9 - random.nextDouble() : random.nextDouble() * 180 - 90;
+            double lng = i % 7 == 0 ? 179.5 + random.nextDouble() - (i % 2) * 359.5 : random.nextDouble() * 360 - 180;
+            if (i % 13 == 0) {
+                lat = 51.5;
+                lng = -0.12;
+            }
+            locations.add(TestUtils.location(i + 1, category, lat, lng, i + 1, "C" + i % 5,
+                    category == FeatureCodeCategory.PCL ? null : "A" + i % 11));
+        }
+        store = LocationStore.of(locations);
+        subject = new SpatialIndex(store);
+    }
+
+    @Test
+    public void nearestLikeBruteForce() {
+        for (int q = 0; q < 2000; q++) {
+            double lat = random.nextDouble() * 180 - 90;
+            double lng = random.nextDouble() * 360 - 180;
+            if (q % 50 == 0) {
+                lat = 51.5;
+                lng = -0.12;
+            }
+            for (FeatureCodeCategory category : FeatureCodeCategory.values()) {
+                int expected = Geocoder.NONE;
+                double best = Double.MAX_VALUE;
+                for (int i = 0; i < store.size(); i++) {
+                    double distance = distance(lat, lng, i);
+                    if (store.category(i) == category && distance < best) {
+                        best = distance;
+                        expected = i;
+                    }
+                }
+                assertEquals(expected, subject.nearest(lat, lng, category));
+            }
+        }
+    }
+
+    @Test
+    public void withinRadiusLikeBruteForce() {
+        for (int q = 0; q < 300; q++) {
+            double lat = random.nextDouble() * 180 - 90;
+            double lng = random.nextDouble() * 360 - 180;
+            double radiusKm = q % 30 == 0 ? 30000 : random.nextDouble() * 2000;
+            double chord = 2 * Math.sin(Math.min(Math.PI, radiusKm / SpatialIndex.EARTH_RADIUS_KM) / 2);
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < store.size(); i++) {
+                if (distance(lat, lng, i) <= chord * chord) {
+                    expected.add(i);
+                }
+            }
+            int[] actual = subject.within(lat, lng, radiusKm);
+            assertEquals(new HashSet<>(expected), set(actual));
+            assertEquals(expected.size(), actual.length);
+            for (int i = 1; i < actual.length; i++) {
+                assertTrue(distance(lat, lng, actual[i - 1]) <= distance(lat, lng, actual[i]));
+            }
+        }
+    }
+
+    @Test
+    public void withinBoxLikeBruteForce() {
+        for (int q = 0; q < 300; q++) {
+            double south = random.nextDouble() * 180 - 90;
+            double north = Math.min(90, south + random.nextDouble() * (q % 3 == 0 ? 180 : 20));
+            double west = random.nextDouble() * 360 - 180;
+            double east = west + random.nextDouble() * (q % 4 == 0 ? 300 : 40);
+            if (east > 180) {
+                // Crosses the antimeridian
+                east -= 360;
+            }
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < store.size(); i++) {
+                double lat = store.lats()[i];
+                double lng = store.lngs()[i];
+                boolean inLng = west <= east ? lng >= west && lng <= east : lng >= west || lng <= east;
+                if (lat >= south && lat <= north && inLng) {
+                    expected.add(i);
+                }
+            }
+            int[] actual = subject.within(south, west, north, east);
+            assertEquals(south + " " + west + " " + north + " " + east, expected.size(), actual.length);
+            assertEquals(new HashSet<>(expected), set(actual));
+        }
+    }
+
+    @Test
+    public void areas() {
+        int pcl = -1;
+        int adm1 = -1;
+        int town = -1;
+        for (int i = 0; i < store.size(); i++) {
+            if (store.category(i) == FeatureCodeCategory.SUBADM && town < 0) {
+                town = i;
+            }
+        }
+        String country = store.get(town).getCodes().get(FeatureCodeCategory.PCL);
+        String adm1Code = store.get(town).getCodes().get(FeatureCodeCategory.ADM1);
+        for (int i = 0; i < store.size(); i++) {
+            Location location = store.get(i);
+            if (location.getFeatureCodeCategory() == FeatureCodeCategory.PCL
+                    && location.getCodes().get(FeatureCodeCategory.PCL).equals(country)
+                    && (pcl < 0 || store.weight(i) > store.weight(pcl))) {
+                pcl = i;
+            }
+            if (location.getFeatureCodeCategory() == FeatureCodeCategory.ADM1
+                    && location.getCodes().get(FeatureCodeCategory.PCL).equals(country)
+                    && location.getCodes().get(FeatureCodeCategory.ADM1).equals(adm1Code)
+                    && (adm1 < 0 || store.weight(i) > store.weight(adm1))) {
+                adm1 = i;
+            }
+        }
+        assertEquals(pcl, subject.area(town, 0));
+        assertEquals(adm1, subject.area(town, 1));
+        assertEquals(Geocoder.NONE, subject.area(town, 2));
+    }
+
+    @Test
+    public void geocoderApi() throws Exception {
+        Geocoder geocoder = new Geocoder(TestUtils.testIndex("test.gazetteer.txt"));
+        // London and New York of the test gazetteer share a coordinate; the smaller geonameId wins
+        assertEquals(2648109, geocoder.reverse(11.0, -1.0).getGeonameId());
+        List<Location> hierarchy = geocoder.reverseHierarchy(11.0, -1.0);
+        assertEquals(2, hierarchy.size());
+        assertEquals(2648109, hierarchy.get(0).getGeonameId());
+        // UK
+        assertEquals(1648107, hierarchy.get(1).getGeonameId());
+        // US
+        assertEquals(4648107, geocoder.reverse(0, 0, FeatureCodeCategory.PCL).getGeonameId());
+
+        List<Location> near = geocoder.within(11.1, -1.11, 1);
+        assertEquals(3, near.size());
+        assertTrue(geocoder.within(-10, -10, -5, -5).isEmpty());
+        assertEquals(near.size(), geocoder.within(11, -2, 12, 0).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidLatitude() throws Exception {
+        new Geocoder(TestUtils.testIndex("test.gazetteer.txt")).reverse(91, 0);
+    }
+
+    private double distance(double lat, double lng, int ordinal) {
+        double[] a = SpatialIndex.xyz(lat, lng);
+        double[] b = SpatialIndex.xyz(store.lats()[ordinal], store.lngs()[ordinal]);
+        double dx = a[0] - b[0];
+        double dy = a[1] - b[1];
+        double dz = a[2] - b[2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static Set<Integer> set(int[] values) {
+        Set<Integer> ret = new HashSet<>();
+        for (int value : values) {
+            ret.add(value);
+        }
+        return ret;
+    }
+}
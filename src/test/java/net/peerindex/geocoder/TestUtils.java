@@ -1,10 +1,12 @@
 package net.peerindex.geocoder;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
 import java.io.*;
+import java.util.Collections;
 import java.util.Set;
 
 /**
@@ -37,6 +39,49 @@ public enum TestUtils {
         return testLocations(gazetteerName, testActivityShare(), testPopulationThreshold());
     }
 
+    /**
+     * @param codes Codes of the levels of {@link LocationStore#LEVELS}, country first; null for none
+     * @return A location named after its id, without alternate names, at 0, 0
+     */
+    public static Location location(int geonameId, FeatureCodeCategory category, double weight, String... codes) {
+        return location(geonameId, category, 0, 0, weight, codes);
+    }
+
+    public static Location location(int geonameId, FeatureCodeCategory category, double lat, double lng, double weight,
+                                    String... codes) {
+        Location location = new Location();
+        location.setGeonameId(geonameId);
+        location.setFeatureCodeCategory(category);
+        location.setFeatureCode(category.name());
+        location.setDefaultName("L" + geonameId);
+        location.setNames(Collections.<String>emptySet());
+        location.setPopulation(1000L);
+        location.setWeight(weight);
+        location.setLat(lat);
+        location.setLng(lng);
+        for (int level = 0; level < codes.length; level++) {
+            if (codes[level] != null) {
+                location.addCode(LocationStore.LEVELS[level], codes[level]);
+            }
+        }
+        return location;
+    }
+
+    /**
+     * @return A line of a gazetteer in the Geonames format, for tests that build their own
+     */
+    public static String gazetteerRow(int id, String name, String featureCode, String country, String adm1, long population) {
+        return gazetteerRow(id, name, "", featureCode, country, adm1, population);
+    }
+
+    /**
+     * @param alternateNames Comma separated
+     */
+    public static String gazetteerRow(int id, String name, String alternateNames, String featureCode, String country, String adm1, long population) {
+        return Joiner.on('\t').join(id, name, name, alternateNames, "1.0", "2.0", "P", featureCode, country, "", adm1,
+                "", "", "", population, "", "0", "Europe/London", "2012-02-01");
+    }
+
     private static ImmutableMap<String, Double> testActivityShare() {
         return ImmutableMap.of("US", 0.2, "GB", 0.1);
     }
@@ -0,0 +1,104 @@
+package net.peerindex.geocoder;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TokenTrieTest {
+    private ImmutableMap<ImmutableList<String>, Set<Location>> index;
+    private GeoIndex geoIndex;
+    private TokenTrie subject;
+
+    @Before
+    public void setUp() throws Exception {
+        index = TestUtils.testIndex("test.gazetteer.txt");
+        geoIndex = GeoIndex.of(index);
+        subject = geoIndex.keys;
+    }
+
+    @Test
+    public void longestMatchPrefersLongerKeys() {
+        int[] tokens = ids("SUPER", "REGION", "UK");
+        ConsumedMatch match = subject.longestMatch(tokens, 0);
+        assertEquals(Integer.valueOf(2), match.consumedUpto);
+        assertEquals(3648209, onlyLocation(match.match));
+
+        assertNull(subject.longestMatch(tokens, 1));
+        assertEquals(1648107, onlyLocation(subject.longestMatch(tokens, 2).match));
+    }
+
+    @Test
+    public void prefixOfKeyIsNotAMatch() {
+        assertNull(subject.longestMatch(ids("SUPER"), 0));
+        assertNull(subject.longestMatch(ids("SUPER", "MARKET"), 0));
+    }
+
+    @Test
+    public void startsKey() {
+        assertTrue(subject.startsKey(geoIndex.tokens.id("SUPER")));
+        assertTrue(subject.startsKey(geoIndex.tokens.id("UK")));
+        // Only the second token of a key
+        assertFalse(subject.startsKey(geoIndex.tokens.id("REGION")));
+        assertFalse(subject.startsKey(TokenDictionary.UNKNOWN));
+        assertFalse(subject.startsKey(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void postingsRankedByWeight() {
+        assertRanked(geoIndex);
+
+        // Reversed weights, with ties
+        double[] weights = new double[geoIndex.locations.size()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (double) (i / 2) / weights.length;
+        }
+        GeoIndex reweighted = geoIndex.withWeights(weights);
+        assertRanked(reweighted);
+        assertEquals(geoIndex.toMap(), reweighted.toMap());
+    }
+
+    private static void assertRanked(GeoIndex index) {
+        TokenTrie keys = index.keys;
+        for (int key = 0; key < keys.nodeCount(); key++) {
+            for (int p = keys.postingStart(key) + 1; p < keys.postingEnd(key); p++) {
+                int previous = keys.posting(p - 1);
+                int current = keys.posting(p);
+                int byWeight = Double.compare(index.locations.weight(previous), index.locations.weight(current));
+                assertTrue(byWeight > 0 || (byWeight == 0 && previous < current));
+            }
+        }
+    }
+
+    @Test
+    public void unknownTokensMapToUnknown() {
+        assertEquals(TokenDictionary.UNKNOWN, geoIndex.tokens.id("MARKET"));
+        assertEquals("LONDON", geoIndex.tokens.token(geoIndex.tokens.id(new StringBuilder("LONDON"))));
+    }
+
+    @Test
+    public void toMapReturnsAllKeys() {
+        assertEquals(index, geoIndex.toMap());
+    }
+
+    private int[] ids(String... tokens) {
+        return geoIndex.tokens.ids(ImmutableList.copyOf(tokens));
+    }
+
+    private int onlyLocation(int key) {
+        assertEquals(1, subject.postingEnd(key) - subject.postingStart(key));
+        return geoIndex.locations.geonameId(subject.posting(subject.postingStart(key)));
+    }
+
+    @Test
+    public void matchSkipsUnknownTokens() {
+        Geocoder geocoder = new Geocoder(index);
+        List<Set<Location>> candidates = geocoder.match(ImmutableList.of("I", "LIVE", "IN", "NEW", "YORK", "UK"));
+        assertEquals(ImmutableList.of(index.get(ImmutableList.of("NEW", "YORK")), index.get(ImmutableList.of("UK"))), candidates);
+    }
+}
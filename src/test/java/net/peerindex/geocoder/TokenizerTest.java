@@ -0,0 +1,126 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TokenizerTest {
+    private final Tokenizer subject = new Tokenizer();
+
+    /**
+     * The original, Splitter based implementation the tokenizer must stay compatible with
+     */
+    private static ImmutableList<String> reference(String locationString) {
+        CharMatcher notLetterNorDigit = new CharMatcher() {
+            @Override
+            public boolean matches(char c) {
+                return !Character.isLetter((int) c) && !Character.isDigit((int) c);
+            }
+        };
+        Iterable<String> split = Splitter.on(notLetterNorDigit).omitEmptyStrings().trimResults().split(locationString);
+        return ImmutableList.copyOf(Iterables.transform(split, new Function<String, String>() {
+            @Override
+            public String apply(String input) {
+                return input.length() < 3 ? input : input.toUpperCase(Locale.ENGLISH);
+            }
+        }));
+    }
+
+    private List<String> viaBuffer(TokenBuffer buffer) {
+        List<String> ret = new ArrayList<>();
+        for (int i = 0; i < buffer.size(); i++) {
+            ret.add(buffer.token(i));
+        }
+        return ret;
+    }
+
+    private void assertSameAsReference(String input, TokenBuffer buffer) {
+        ImmutableList<String> expected = reference(input);
+        assertEquals(input, expected, subject.tokenize(input));
+
+        subject.tokenize(input, buffer);
+        assertEquals(input, expected, viaBuffer(buffer));
+
+        byte[] utf8 = input.getBytes(Charsets.UTF_8);
+        byte[] padded = new byte[utf8.length + 4];
+        System.arraycopy(utf8, 0, padded, 2, utf8.length);
+        subject.tokenize(padded, 2, utf8.length, buffer);
+        assertEquals(input, expected, viaBuffer(buffer));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length);
+        direct.put(utf8).flip();
+        subject.tokenize(direct, buffer);
+        assertEquals(input, expected, viaBuffer(buffer));
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    public void examples() {
+        TokenBuffer buffer = new TokenBuffer();
+        assertSameAsReference("", buffer);
+        assertSameAsReference(",san Francisco", buffer);
+        assertSameAsReference("London@US", buffer);
+        assertSameAsReference("I am 12345 in la", buffer);
+        assertSameAsReference("Москва является удивительным", buffer);
+        assertSameAsReference("神戶", buffer);
+        assertSameAsReference("Straße Ǆemal ŉab", buffer);
+        assertSameAsReference("emoji 😀 in between 𐐀x", buffer);
+        assertEquals(ImmutableList.of("NY", "ny", "NYC", "STRASSE"), subject.tokenize("NY ny nyc straße"));
+    }
+
+    @Test
+    public void foldsEveryCharLikeToUpperCase() {
+        TokenBuffer buffer = new TokenBuffer();
+        StringBuilder sb = new StringBuilder();
+        for (char c = 1; c < Character.MAX_VALUE; c++) {
+            sb.append("ab").append(c).append(' ');
+            if (sb.length() > 4000) {
+                assertSameAsReference(sb.toString(), buffer);
+                sb.setLength(0);
+            }
+        }
+        assertSameAsReference(sb.toString(), buffer);
+    }
+
+    @Test
+    public void randomInput() {
+        Random random = new Random(42);
+        TokenBuffer buffer = new TokenBuffer();
+        char[] alphabet = "aZ09 ,.@ßıİǅﬁ神Дд́ 😀".toCharArray();
+        for (int i = 0; i < 5000; i++) {
+            char[] chars = new char[random.nextInt(40)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            assertSameAsReference(new String(chars), buffer);
+        }
+    }
+
+    @Test
+    public void malformedUtf8IsADelimiter() {
+        TokenBuffer buffer = new TokenBuffer();
+        Random random = new Random(42);
+        byte[] alphabet = {'a', 'B', '1', ' ', (byte) 0x80, (byte) 0xBF, (byte) 0xC0, (byte) 0xC3, (byte) 0xA9,
+                (byte) 0xE0, (byte) 0xED, (byte) 0xA0, (byte) 0xE2, (byte) 0xF0, (byte) 0x9F, (byte) 0xF4, (byte) 0xFF};
+        for (int i = 0; i < 5000; i++) {
+            byte[] bytes = new byte[random.nextInt(20)];
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            subject.tokenize(bytes, 0, bytes.length, buffer);
+            assertEquals(reference(new String(bytes, Charsets.UTF_8)), viaBuffer(buffer));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package net.peerindex.geocoder;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class WeightingProfileTest {
+    private static final ImmutableMap<String, Double> SHARES = ImmutableMap.of("US", 0.2, "GB", 0.1);
+    private static final ImmutableMap<String, Double> US_SHARES = ImmutableMap.of("US", 0.5, "BR", 0.01);
+
+    private static final String GAZETTEER = Joiner.on('\n').join(
+            TestUtils.gazetteerRow(1, "UK", "PCL", "GB", "", 60000000),
+            TestUtils.gazetteerRow(2, "US", "PCL", "US", "", 300000000),
+            TestUtils.gazetteerRow(3, "Brazil", "PCL", "BR", "", 200000000),
+            TestUtils.gazetteerRow(10, "Campinas", "PPL", "BR", "27", 1000000),
+            TestUtils.gazetteerRow(20, "Campinas", "PPL", "US", "CA", 1000000),
+            TestUtils.gazetteerRow(30, "London", "PPL", "GB", "ENG", 8000000));
+
+    private Geocoder subject;
+
+    @Before
+    public void setUp() throws Exception {
+        GeoDbIndexer indexer = indexer(SHARES);
+        subject = Geocoder.builder().index(indexer.index(indexer.extractLocations()))
+                .profile("us", US_SHARES).cacheSize(100).build();
+    }
+
+    private static GeoDbIndexer indexer(ImmutableMap<String, Double> shares) throws IOException {
+        return new GeoDbIndexer(new BufferedReader(new StringReader(GAZETTEER)), TestUtils.testPopulationThreshold(),
+                shares);
+    }
+
+    @Test
+    public void perCall() {
+        assertEquals(ImmutableSet.of("us"), subject.profiles());
+        for (int i = 0; i < 2; i++) {
+            // Twice, so that the second round comes from the caches
+            assertEquals(10, subject.resolve("Campinas").getGeonameId());
+            assertEquals(20, subject.resolve("Campinas", "us").getGeonameId());
+            assertEquals(30, subject.resolve("London", "us").getGeonameId());
+        }
+
+        List<Candidate> top = subject.resolveTopK("Campinas", 2, "us");
+        assertEquals(20, top.get(0).getLocation().getGeonameId());
+        assertEquals(10, top.get(1).getLocation().getGeonameId());
+        assertEquals(top.get(0).getWeight(), top.get(0).getLocation().getWeight(), 0.0);
+        assertEquals(10, subject.resolveTopK("Campinas", 2).get(0).getLocation().getGeonameId());
+    }
+
+    @Test
+    public void keptAcrossReloads() throws Exception {
+        subject.reweight(US_SHARES);
+        assertEquals(20, subject.resolve("Campinas").getGeonameId());
+        assertEquals(20, subject.resolve("Campinas", "us").getGeonameId());
+
+        subject.reload(TestUtils.testIndex("test.gazetteer.txt"));
+        assertEquals(ImmutableSet.of("us"), subject.profiles());
+        assertNull(subject.resolve("Campinas", "us"));
+        assertEquals(2648109, subject.resolve("London", "us").getGeonameId());
+    }
+
+    @Test
+    public void filteredIndex() throws Exception {
+        // Towns only, so none of the countries are indexed
+        GeoDbIndexer indexer = indexer(SHARES).filter(LocationFilter.of(null, EnumSet.of(FeatureCodeCategory.SUBADM)));
+        GeoIndex towns = GeoIndex.of(indexer.index(indexer.extractLocations()), true, indexer.countryPopulations());
+        File snapshot = File.createTempFile("geocoder", ".snapshot");
+        try {
+            IndexSnapshot.write(towns, snapshot);
+            Geocoder filtered = Geocoder.builder().snapshot(snapshot).profile("us", US_SHARES).build();
+
+            Map<Integer, Double> expected = new HashMap<>();
+            for (Location location : indexer(US_SHARES).extractLocations()) {
+                expected.put(location.getGeonameId(), location.getWeight());
+            }
+            List<Candidate> top = filtered.resolveTopK("Campinas", 2, "us");
+            assertEquals(2, top.size());
+            for (Candidate candidate : top) {
+                assertEquals(expected.get(candidate.getLocation().getGeonameId()), candidate.getWeight(), 0.0);
+            }
+            assertEquals(20, filtered.resolve("Campinas", "us").getGeonameId());
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noCountryPopulations() throws Exception {
+        GeoDbIndexer indexer = indexer(SHARES).filter(LocationFilter.of(null, EnumSet.of(FeatureCodeCategory.SUBADM)));
+        // The countries of the shares have locations, but no populations
+        Geocoder.builder().index(indexer.index(indexer.extractLocations())).profile("us", US_SHARES).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownProfile() {
+        subject.resolve("Campinas", "xx");
+    }
+}